@@ -0,0 +1,69 @@
+package com.github.bingoohuang.blackcat.maven.benchmark;
+
+import com.github.bingoohuang.blackcat.maven.utils.AntPathMatcher;
+import com.github.bingoohuang.blackcat.maven.utils.PatternTrie;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AntPathMatcherBenchmark {
+    static final String[] PATTERNS = {
+            "**/*.class",
+            "com/ourcorp/*.class",
+            "com/ourcorp/service/**/*.class",
+            "com/ourcorp/*/dao/*Dao.class",
+            "com/ourcorp/**/*Controller.class",
+            "com/ourcorp/web/Us?rController.class",
+    };
+
+    static final String[] PATHS = {
+            "com/ourcorp/Main.class",
+            "com/ourcorp/service/order/OrderService.class",
+            "com/ourcorp/service/order/impl/OrderServiceImpl$1.class",
+            "com/ourcorp/user/dao/UserDao.class",
+            "com/ourcorp/web/UserController.class",
+            "org/apache/commons/lang/StringUtils.class",
+    };
+
+    AntPathMatcher matcher;
+    PatternTrie trie;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        matcher = new AntPathMatcher();
+        trie = new PatternTrie(Arrays.asList(PATTERNS));
+    }
+
+    @Benchmark
+    public void match(Blackhole bh) {
+        for (String pattern : PATTERNS) {
+            for (String path : PATHS) {
+                bh.consume(matcher.match(pattern, path));
+            }
+        }
+    }
+
+    @Benchmark
+    public void matchStart(Blackhole bh) {
+        for (String pattern : PATTERNS) {
+            for (String path : PATHS) {
+                bh.consume(matcher.matchStart(pattern, path));
+            }
+        }
+    }
+
+    @Benchmark
+    public void trieMatch(Blackhole bh) {
+        for (String path : PATHS) {
+            bh.consume(trie.match(path));
+        }
+    }
+}
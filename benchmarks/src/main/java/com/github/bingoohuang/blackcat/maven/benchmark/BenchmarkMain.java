@@ -0,0 +1,46 @@
+package com.github.bingoohuang.blackcat.maven.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks like {@code org.openjdk.jmh.Main}, listing them with {@code -l}/{@code -lp}
+ * and the profilers and result formats with {@code -lprof}/{@code -lrf}, but writes the results
+ * as JSON to {@code target/jmh-result.json} unless {@code -rf}/{@code -rff} are given.
+ */
+public class BenchmarkMain {
+    public static final String DEFAULT_RESULT = "target/jmh-result.json";
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmdOptions = new CommandLineOptions(args);
+        if (cmdOptions.shouldHelp()) {
+            cmdOptions.showHelp();
+            return;
+        }
+        if (cmdOptions.shouldList()) {
+            new Runner(cmdOptions).list();
+            return;
+        }
+        if (cmdOptions.shouldListWithParams()) {
+            new Runner(cmdOptions).listWithParams(cmdOptions);
+            return;
+        }
+        if (cmdOptions.shouldListProfilers()) {
+            cmdOptions.listProfilers();
+            return;
+        }
+        if (cmdOptions.shouldListResultFormats()) {
+            cmdOptions.listResultFormats();
+            return;
+        }
+
+        OptionsBuilder options = new OptionsBuilder();
+        options.parent(cmdOptions);
+        if (!cmdOptions.getResultFormat().hasValue()) options.resultFormat(ResultFormatType.JSON);
+        if (!cmdOptions.getResult().hasValue()) options.result(DEFAULT_RESULT);
+
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,88 @@
+package com.github.bingoohuang.blackcat.maven.benchmark;
+
+import com.github.bingoohuang.blackcat.maven.instrument.BlackcatTransformer;
+import com.google.common.io.Files;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end instrumentation of a synthetic output directory, from scanning to writing.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InstrumentBenchmark {
+    @Param({"3000"})
+    int classCount;
+
+    @Param({"1", "4"})
+    int threads;
+
+    File corpus;
+    File outputDirectory;
+    Set<String> includes = Collections.singleton("com.ourcorp/*");
+    Set<String> excludes = Collections.emptySet();
+
+    @Setup(Level.Trial)
+    public void generateCorpus() throws IOException {
+        corpus = Files.createTempDir();
+        SyntheticCorpus.generate(corpus, classCount);
+    }
+
+    @Setup(Level.Invocation)
+    public void copyCorpus() throws IOException {
+        outputDirectory = Files.createTempDir();
+        copyDirectory(corpus, outputDirectory);
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteOutputDirectory() throws IOException {
+        deleteDirectory(outputDirectory);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteCorpus() throws IOException {
+        deleteDirectory(corpus);
+    }
+
+    @Benchmark
+    public void instrument() {
+        BlackcatTransformer transformer = new BlackcatTransformer(new NopLog());
+        transformer.setThreads(threads);
+        transformer.instrument(outputDirectory, includes, excludes);
+    }
+
+    static void copyDirectory(File from, File to) throws IOException {
+        File[] files = from.listFiles();
+        if (files == null) return;
+
+        for (File file : files) {
+            File target = new File(to, file.getName());
+            if (file.isDirectory()) {
+                target.mkdirs();
+                copyDirectory(file, target);
+            } else {
+                Files.copy(file, target);
+            }
+        }
+    }
+
+    static void deleteDirectory(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) deleteDirectory(file);
+                else file.delete();
+            }
+        }
+        dir.delete();
+    }
+}
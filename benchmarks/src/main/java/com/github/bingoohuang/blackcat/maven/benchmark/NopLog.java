@@ -0,0 +1,25 @@
+package com.github.bingoohuang.blackcat.maven.benchmark;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Keeps the per class log lines out of the measurements.
+ */
+public class NopLog implements Log {
+    @Override public boolean isDebugEnabled() { return false; }
+    @Override public void debug(CharSequence content) { }
+    @Override public void debug(CharSequence content, Throwable error) { }
+    @Override public void debug(Throwable error) { }
+    @Override public boolean isInfoEnabled() { return false; }
+    @Override public void info(CharSequence content) { }
+    @Override public void info(CharSequence content, Throwable error) { }
+    @Override public void info(Throwable error) { }
+    @Override public boolean isWarnEnabled() { return false; }
+    @Override public void warn(CharSequence content) { }
+    @Override public void warn(CharSequence content, Throwable error) { }
+    @Override public void warn(Throwable error) { }
+    @Override public boolean isErrorEnabled() { return true; }
+    @Override public void error(CharSequence content) { System.err.println(content); }
+    @Override public void error(CharSequence content, Throwable error) { System.err.println(content); error.printStackTrace(); }
+    @Override public void error(Throwable error) { error.printStackTrace(); }
+}
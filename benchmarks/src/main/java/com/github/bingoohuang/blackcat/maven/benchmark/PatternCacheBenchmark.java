@@ -0,0 +1,75 @@
+package com.github.bingoohuang.blackcat.maven.benchmark;
+
+import com.github.bingoohuang.blackcat.maven.utils.AntPathMatcher;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.github.bingoohuang.blackcat.maven.benchmark.AntPathMatcherBenchmark.PATTERNS;
+
+/**
+ * {@code AntPathMatcher.tokenizePattern} with the pattern cache on, off, and cycling through twice
+ * as many distinct patterns as the bounded cache holds, where every lookup misses and evicts:
+ * the cost of a thrashing cache next to no cache at all.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PatternCacheBenchmark {
+    /**
+     * Opens the protected tokenizer to the benchmark.
+     */
+    static class ExposedAntPathMatcher extends AntPathMatcher {
+        String[] tokenize(String pattern) {
+            return tokenizePattern(pattern);
+        }
+    }
+
+    public enum CacheMode {ON, OFF, EVICTING}
+
+    @Param({"ON", "OFF", "EVICTING"})
+    CacheMode cacheMode;
+
+    ExposedAntPathMatcher tokenizer;
+    String[] workingSet;
+    int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        tokenizer = new ExposedAntPathMatcher();
+        tokenizer.setCachePatterns(cacheMode != CacheMode.OFF);
+        if (cacheMode != CacheMode.EVICTING) {
+            workingSet = PATTERNS;
+            return;
+        }
+
+        // more distinct patterns than the cache holds, as a long lived process could see
+        workingSet = new String[AntPathMatcher.DEFAULT_PATTERN_CACHE_SIZE * 2];
+        for (int i = 0; i < workingSet.length; ++i) {
+            workingSet[i] = "generated" + i + "/" + PATTERNS[i % PATTERNS.length];
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void checkEvictions() {
+        long evictions = tokenizer.getTokenizedPatternCacheStats().evictionCount();
+        if (cacheMode == CacheMode.EVICTING && evictions == 0) {
+            throw new IllegalStateException("the working set of " + workingSet.length + " patterns fits the cache");
+        }
+    }
+
+    /**
+     * Tokenizes as many patterns per invocation in every mode, the next ones of the working set.
+     */
+    @Benchmark
+    public void tokenizePattern(Blackhole bh) {
+        for (int i = 0; i < PATTERNS.length; ++i) {
+            bh.consume(tokenizer.tokenize(workingSet[next]));
+            next = (next + 1) % workingSet.length;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.github.bingoohuang.blackcat.maven.benchmark;
+
+import com.github.bingoohuang.blackcat.maven.benchmark.probe.ProbeClassLoader;
+import com.github.bingoohuang.blackcat.maven.benchmark.probe.ProbeTarget;
+import com.github.bingoohuang.blackcat.maven.benchmark.probe.ProbeTargets;
+import com.github.bingoohuang.blackcat.maven.classfile.InstrumentedMarker;
+import com.github.bingoohuang.blackcat.maven.instrument.BlackcatTransformer;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of the probes per call: the same methods loaded plain and woven by {@link BlackcatTransformer},
+ * measured for throughput and latency, by one thread and by several threads calling the same instance.
+ * <pre>
+ * java -jar target/benchmarks.jar ProbeOverheadBenchmark
+ * </pre>
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public abstract class ProbeOverheadBenchmark {
+    @Param({"plain", "instrumented"})
+    String variant;
+
+    ProbeTarget target;
+    // not final, so that the JIT cannot fold the calls
+    int a = 7, b = 13, size = 16, depth = 15;
+
+    @Setup(Level.Trial)
+    public void loadTarget() throws Exception {
+        String className = ProbeTargets.class.getName();
+        byte[] classfileBuffer = readClass(className);
+        boolean instrumented = "instrumented".equals(variant);
+        if (instrumented) classfileBuffer = instrument(className, classfileBuffer);
+        // a rule or weaver change that leaves the class alone would compare plain with plain
+        if (InstrumentedMarker.isMarked(classfileBuffer) != instrumented) {
+            throw new IllegalStateException(className + " is " + (instrumented ? "not " : "") + "instrumented");
+        }
+
+        ClassLoader loader = new ProbeClassLoader(getClass().getClassLoader(), className, classfileBuffer);
+        target = (ProbeTarget) loader.loadClass(className).newInstance();
+    }
+
+    @Benchmark
+    public void empty() {
+        target.empty();
+    }
+
+    @Benchmark
+    public int arithmetic() {
+        return target.arithmetic(a, b);
+    }
+
+    @Benchmark
+    public Object allocating() {
+        return target.allocate(size);
+    }
+
+    @Benchmark
+    public Object throwing() {
+        try {
+            return target.fail(a);
+        } catch (IllegalStateException e) {
+            return e;
+        }
+    }
+
+    @Benchmark
+    public int recursive() {
+        return target.fib(depth);
+    }
+
+    @Threads(1)
+    public static class SingleThreaded extends ProbeOverheadBenchmark {
+    }
+
+    @Threads(4)
+    public static class Contended extends ProbeOverheadBenchmark {
+    }
+
+    static byte[] readClass(String className) throws IOException {
+        InputStream in = ProbeOverheadBenchmark.class.getResourceAsStream("/" + className.replace('.', '/') + ".class");
+        try {
+            return ByteStreams.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    static byte[] instrument(String className, byte[] classfileBuffer) throws IOException {
+        File outputDirectory = Files.createTempDir();
+        try {
+            File classFile = new File(outputDirectory, className.replace('.', '/') + ".class");
+            Files.createParentDirs(classFile);
+            Files.write(classfileBuffer, classFile);
+
+            BlackcatTransformer transformer = new BlackcatTransformer(new NopLog());
+            transformer.instrument(outputDirectory, Collections.singleton(className), Collections.<String>emptySet());
+            return Files.toByteArray(classFile);
+        } finally {
+            InstrumentBenchmark.deleteDirectory(outputDirectory);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.github.bingoohuang.blackcat.maven.benchmark;
+
+import com.google.common.io.Files;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Generates plain classes spread over a few packages, each with a field, a getter,
+ * a setter, a loop and a call, as a stand-in for a compiled module.
+ */
+public class SyntheticCorpus {
+    public static final String BASE_PACKAGE = "com/ourcorp/synthetic";
+    private static final int CLASSES_PER_PACKAGE = 100;
+
+    public static void generate(File outputDirectory, int classCount) throws IOException {
+        for (int i = 0; i < classCount; ++i) {
+            String className = BASE_PACKAGE + "/p" + (i / CLASSES_PER_PACKAGE) + "/Service" + i;
+            File classFile = new File(outputDirectory, className + ".class");
+            Files.createParentDirs(classFile);
+            Files.write(generateClass(className), classFile);
+        }
+    }
+
+    public static byte[] generateClass(String className) {
+        // version 1.6 needs no stack map frames, so no class hierarchy is required to write it
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(V1_6, ACC_PUBLIC | ACC_SUPER, className, null, "java/lang/Object", null);
+        cw.visitField(ACC_PRIVATE, "value", "I", null, null).visitEnd();
+
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = cw.visitMethod(ACC_PUBLIC, "getValue", "()I", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitFieldInsn(GETFIELD, className, "value", "I");
+        mv.visitInsn(IRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = cw.visitMethod(ACC_PUBLIC, "setValue", "(I)V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(ILOAD, 1);
+        mv.visitFieldInsn(PUTFIELD, className, "value", "I");
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = cw.visitMethod(ACC_PUBLIC, "sum", "(I)I", null, null);
+        mv.visitCode();
+        Label loop = new Label(), done = new Label();
+        mv.visitInsn(ICONST_0);
+        mv.visitVarInsn(ISTORE, 2);
+        mv.visitLabel(loop);
+        mv.visitVarInsn(ILOAD, 1);
+        mv.visitJumpInsn(IFLE, done);
+        mv.visitVarInsn(ILOAD, 2);
+        mv.visitVarInsn(ILOAD, 1);
+        mv.visitInsn(IADD);
+        mv.visitVarInsn(ISTORE, 2);
+        mv.visitIincInsn(1, -1);
+        mv.visitJumpInsn(GOTO, loop);
+        mv.visitLabel(done);
+        mv.visitVarInsn(ILOAD, 2);
+        mv.visitInsn(IRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = cw.visitMethod(ACC_PUBLIC, "process", "(Ljava/lang/String;)Ljava/lang/String;", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "length", "()I", false);
+        mv.visitMethodInsn(INVOKEVIRTUAL, className, "sum", "(I)I", false);
+        mv.visitMethodInsn(INVOKESTATIC, "java/lang/String", "valueOf", "(I)Ljava/lang/String;", false);
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+}
@@ -0,0 +1,28 @@
+package com.github.bingoohuang.blackcat.maven.benchmark.probe;
+
+/**
+ * Defines one class from the given bytes before asking the parent, so that the plain and the
+ * instrumented versions of the same class can be loaded side by side.
+ */
+public class ProbeClassLoader extends ClassLoader {
+    private final String className;
+    private final byte[] classfileBuffer;
+
+    public ProbeClassLoader(ClassLoader parent, String className, byte[] classfileBuffer) {
+        super(parent);
+        this.className = className;
+        this.classfileBuffer = classfileBuffer;
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        if (!className.equals(name)) return super.loadClass(name, resolve);
+
+        synchronized (getClassLoadingLock(name)) {
+            Class<?> loaded = findLoadedClass(name);
+            if (loaded == null) loaded = defineClass(name, classfileBuffer, 0, classfileBuffer.length);
+            if (resolve) resolveClass(loaded);
+            return loaded;
+        }
+    }
+}
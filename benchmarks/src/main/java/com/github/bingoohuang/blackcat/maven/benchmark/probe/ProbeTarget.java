@@ -0,0 +1,17 @@
+package com.github.bingoohuang.blackcat.maven.benchmark.probe;
+
+/**
+ * The calls measured by {@link com.github.bingoohuang.blackcat.maven.benchmark.ProbeOverheadBenchmark},
+ * loaded by the benchmark class loader, while its implementation is loaded plain or instrumented.
+ */
+public interface ProbeTarget {
+    void empty();
+
+    int arithmetic(int a, int b);
+
+    Object allocate(int size);
+
+    int fail(int code);
+
+    int fib(int n);
+}
@@ -0,0 +1,29 @@
+package com.github.bingoohuang.blackcat.maven.benchmark.probe;
+
+/**
+ * Representative method shapes to weave the probes into.
+ */
+public class ProbeTargets implements ProbeTarget {
+    // preallocated, so that the throwing path measures the probe rather than filling a stack trace
+    private static final IllegalStateException FAILURE = new IllegalStateException("probe benchmark failure");
+
+    @Override public void empty() {
+    }
+
+    @Override public int arithmetic(int a, int b) {
+        return (a * 31 + b) ^ (a >>> 3);
+    }
+
+    @Override public Object allocate(int size) {
+        return new int[size];
+    }
+
+    @Override public int fail(int code) {
+        if (code >= 0) throw FAILURE;
+        return code;
+    }
+
+    @Override public int fib(int n) {
+        return n < 2 ? n : fib(n - 1) + fib(n - 2);
+    }
+}
@@ -0,0 +1,69 @@
+package com.github.bingoohuang.blackcat.agent;
+
+import com.github.bingoohuang.blackcat.maven.instrument.InlinePolicy;
+import com.google.common.base.Splitter;
+import lombok.Data;
+
+import java.io.File;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The agent arguments, {@code ;} separated {@code name=value} pairs, where {@code include}
+ * and {@code exclude} may be repeated and take the same rules as the instrument goal:
+ * <pre>
+ * -javaagent:blackcat-maven-plugin.jar=include=com.foo.*;include=com.bar.Baz:get*:sample=64;cache=/tmp/blackcat
+ * </pre>
+ */
+@Data
+public class AgentOptions {
+    private final Set<String> includes = new LinkedHashSet<String>();
+    private final Set<String> excludes = new LinkedHashSet<String>();
+    private File cacheDirectory = new File(System.getProperty("java.io.tmpdir"), "blackcat-agent-cache");
+    private boolean cacheEnabled = true;
+    /**
+     * The size in MB the cache is kept under, by evicting the least recently used classes at startup.
+     */
+    private long cacheMaxSize = 512;
+    private int sampleRate = 1;
+    private String thresholdReporter;
+    /**
+     * The inline policy of the instrument goal, with the same defaults.
+     */
+    private int minMethodSize;
+    private boolean protectInlining;
+    private int maxInlineSize = InlinePolicy.MAX_INLINE_SIZE;
+    private int freqInlineSize = InlinePolicy.FREQ_INLINE_SIZE;
+    private boolean verbose;
+
+    public static AgentOptions parse(String agentArgs) {
+        AgentOptions options = new AgentOptions();
+        if (agentArgs == null) return options;
+
+        for (String pair : Splitter.on(';').trimResults().omitEmptyStrings().split(agentArgs)) {
+            int equals = pair.indexOf('=');
+            String name = equals < 0 ? pair : pair.substring(0, equals).trim();
+            String value = equals < 0 ? "" : pair.substring(equals + 1).trim();
+
+            if ("include".equals(name)) options.includes.add(value);
+            else if ("exclude".equals(name)) options.excludes.add(value);
+            else if ("cache".equals(name)) {
+                if ("off".equals(value)) options.cacheEnabled = false;
+                else options.cacheDirectory = new File(value);
+            } else if ("cacheMaxSize".equals(name)) options.cacheMaxSize = Long.parseLong(value);
+            else if ("sampleRate".equals(name)) options.sampleRate = Integer.parseInt(value);
+            else if ("thresholdReporter".equals(name)) options.thresholdReporter = value;
+            else if ("minMethodSize".equals(name)) options.minMethodSize = Integer.parseInt(value);
+            else if ("protectInlining".equals(name)) options.protectInlining = value.isEmpty() || Boolean.parseBoolean(value);
+            else if ("maxInlineSize".equals(name)) options.maxInlineSize = Integer.parseInt(value);
+            else if ("freqInlineSize".equals(name)) options.freqInlineSize = Integer.parseInt(value);
+            else if ("verbose".equals(name)) options.verbose = value.isEmpty() || Boolean.parseBoolean(value);
+            else throw new IllegalArgumentException("unknown agent argument " + pair);
+        }
+        return options;
+    }
+
+    public InlinePolicy inlinePolicy() {
+        return new InlinePolicy(minMethodSize, protectInlining, maxInlineSize, freqInlineSize);
+    }
+}
@@ -0,0 +1,80 @@
+package com.github.bingoohuang.blackcat.agent;
+
+import com.github.bingoohuang.blackcat.maven.cache.TransformedClassCache;
+import com.github.bingoohuang.blackcat.maven.classfile.ClassFileReader;
+import com.github.bingoohuang.blackcat.maven.classfile.ClassPreFilter;
+import com.github.bingoohuang.blackcat.maven.classfile.InstrumentedMarker;
+import com.github.bingoohuang.blackcat.maven.instrument.ClassWeaver;
+import com.github.bingoohuang.blackcat.maven.instrument.InstrumentRules;
+import lombok.val;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+
+/**
+ * Weaves the classes matched by the rules when they are loaded, the same way as the instrument goal
+ * weaves them at build time. Nothing thrown here may break the class loading, a failed class is
+ * reported and loaded unchanged.
+ */
+public class AgentTransformer implements ClassFileTransformer {
+    private static final String AGENT_PACKAGE = "com/github/bingoohuang/blackcat/";
+
+    private final InstrumentRules rules;
+    private final ClassWeaver weaver;
+    private final TransformedClassCache cache;
+    private final boolean verbose;
+
+    /**
+     * @param cache the cache of the transformed classes, {@code null} to weave on every load
+     */
+    public AgentTransformer(InstrumentRules rules, ClassWeaver weaver, TransformedClassCache cache, boolean verbose) {
+        this.rules = rules;
+        this.weaver = weaver;
+        this.cache = cache;
+        this.verbose = verbose;
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        // the bootstrap classes and the agent itself are never woven
+        if (className == null || loader == null || className.startsWith(AGENT_PACKAGE)) return null;
+
+        String srcRelativePath = className + ".class";
+        if (!rules.isIncluded(srcRelativePath)) return null;
+
+        try {
+            return transform(srcRelativePath, classfileBuffer);
+        } catch (Throwable e) {
+            System.err.println("[blackcat] Instrument class failed:" + className + ", " + e);
+            if (verbose) e.printStackTrace();
+            return null;
+        }
+    }
+
+    private byte[] transform(String srcRelativePath, byte[] classfileBuffer) throws Exception {
+        val match = rules.match(srcRelativePath);
+        if (match.isExcluded()) return null;
+
+        val reader = new ClassFileReader(classfileBuffer);
+        if (InstrumentedMarker.isMarked(reader)) return null;
+
+        val selector = match.newMethodSelector();
+        if (ClassPreFilter.reject(reader, selector) != null) return null;
+
+        String key = null;
+        if (cache != null) {
+            key = cache.key(classfileBuffer, classfileBuffer.length, match.getRules());
+            byte[] cached = cache.get(key);
+            if (cached != null) return cached.length == 0 ? null : cached;
+        }
+
+        byte[] instrumented = weaver.weave(classfileBuffer, selector);
+        if (cache != null) cache.put(key, instrumented);
+        if (verbose && instrumented != null) System.err.println("[blackcat] Instrument class:" + srcRelativePath);
+        if (verbose && !selector.getSkipped().isEmpty()) {
+            System.err.println("[blackcat] Skip methods of " + srcRelativePath + ":" + selector.getSkipped());
+        }
+        return instrumented;
+    }
+}
@@ -0,0 +1,83 @@
+package com.github.bingoohuang.blackcat.agent;
+
+import com.github.bingoohuang.blackcat.maven.cache.TransformedClassCache;
+import com.github.bingoohuang.blackcat.maven.instrument.ClassWeaver;
+import com.github.bingoohuang.blackcat.maven.instrument.InstrumentRules;
+import lombok.val;
+
+import java.lang.instrument.Instrumentation;
+
+/**
+ * The load-time weaving agent, applying the include/exclude rules of the instrument goal
+ * to the classes as they are loaded:
+ * <pre>
+ * java -javaagent:blackcat-maven-plugin.jar=include=com.foo.* -jar app.jar
+ * </pre>
+ * See {@link AgentOptions} for the arguments.
+ */
+public class Main {
+    public static void premain(String agentArgs, Instrumentation inst) {
+        install(agentArgs, inst);
+    }
+
+    public static void agentmain(String agentArgs, Instrumentation inst) {
+        install(agentArgs, inst);
+    }
+
+    public static void main(String[] args) {
+        System.out.println("Usage: java -javaagent:blackcat-maven-plugin.jar="
+                + "include=<rule>[;include=<rule>][;exclude=<rule>][;cache=<dir>|off][;cacheMaxSize=<MB>]"
+                + "[;sampleRate=<n>][;thresholdReporter=<class.method>][;minMethodSize=<bytes>][;protectInlining]"
+                + "[;maxInlineSize=<bytes>][;freqInlineSize=<bytes>][;verbose] ...");
+    }
+
+    private static void install(String agentArgs, Instrumentation inst) {
+        val options = AgentOptions.parse(agentArgs);
+        if (options.getIncludes().isEmpty()) {
+            // unlike the build, weaving every class of the JVM is never what is meant
+            System.err.println("[blackcat] No include rule in the agent arguments, nothing is instrumented");
+            return;
+        }
+
+        val rules = new InstrumentRules(options.getIncludes(), options.getExcludes(), options.getSampleRate());
+        val inlinePolicy = options.inlinePolicy();
+        val weaver = new ClassWeaver(options.getThresholdReporter(), inlinePolicy);
+        weaver.checkRules(rules);
+
+        TransformedClassCache cache = null;
+        if (options.isCacheEnabled()) {
+            cache = new TransformedClassCache(options.getCacheDirectory(),
+                    TransformedClassCache.salt(options.getThresholdReporter(), inlinePolicy));
+            evictInBackground(cache, options.getCacheMaxSize() * 1024 * 1024, options.isVerbose());
+        }
+
+        inst.addTransformer(new AgentTransformer(rules, weaver, cache, options.isVerbose()));
+        if (options.isVerbose() && cache != null) printCacheStatsOnExit(cache);
+    }
+
+    /**
+     * Trim the classes cached by the previous runs without delaying the startup.
+     */
+    private static void evictInBackground(final TransformedClassCache cache, final long maxBytes,
+                                          final boolean verbose) {
+        val evictor = new Thread("blackcat-agent-evict") {
+            @Override public void run() {
+                int evicted = cache.evict(maxBytes);
+                if (verbose && evicted > 0) {
+                    System.err.println("[blackcat] Evicted " + evicted + " class(es) from the transformed class cache");
+                }
+            }
+        };
+        evictor.setDaemon(true);
+        evictor.start();
+    }
+
+    private static void printCacheStatsOnExit(final TransformedClassCache cache) {
+        Runtime.getRuntime().addShutdownHook(new Thread("blackcat-agent-stats") {
+            @Override public void run() {
+                System.err.println("[blackcat] Transformed class cache hits:" + cache.getHits()
+                        + ", misses:" + cache.getMisses());
+            }
+        });
+    }
+}
@@ -0,0 +1,126 @@
+package com.github.bingoohuang.blackcat.maven;
+
+import com.github.bingoohuang.blackcat.maven.instrument.BlackcatTransformer;
+import com.github.bingoohuang.blackcat.maven.instrument.InlinePolicy;
+import org.apache.maven.plugin.AbstractMojo;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The instrument rules and options shared by the instrument goals.
+ */
+public abstract class AbstractInstrumentMojo extends AbstractMojo {
+
+    /**
+     * A list of instrument inclusion filters for the compiler.
+     *
+     * @parameter
+     */
+    protected Set<String> instrumentIncludes = new HashSet<String>();
+
+    /**
+     * A list of instrument exclusion filters for the compiler.
+     *
+     * @parameter
+     */
+    protected Set<String> instrumentExcludes = new HashSet<String>();
+
+    /**
+     * The number of worker threads to instrument classes with,
+     * 0 means the number of available processors.
+     *
+     * @parameter expression="${blackcat.instrumentThreads}" default-value="0"
+     */
+    protected int instrumentThreads;
+
+    /**
+     * Take the probes on 1 in N calls of the instrumented methods, rounded up to a power of two,
+     * the include rules may override it with a {@code :sample=N} option.
+     *
+     * @parameter expression="${blackcat.sampleRate}" default-value="1"
+     */
+    protected int sampleRate;
+
+    /**
+     * The static method called with the class name, the method name with its descriptor and the
+     * elapsed nanos by the methods of the {@code :threshold=T} rules which run longer than T,
+     * like {@code com.foo.Probes.slow}.
+     *
+     * @parameter expression="${blackcat.thresholdReporter}"
+     */
+    protected String thresholdReporter;
+
+    /**
+     * The static method called with the dense ID of the method and the elapsed nanos by every call of
+     * the instrumented methods, like {@code com.foo.Probes.timed} taking an {@code int} and a {@code long},
+     * instead of the probes of blackcat-instrument. The methods are listed by their ID in
+     * {@code META-INF/blackcat/method-ids.txt} of the output directory.
+     *
+     * @parameter expression="${blackcat.methodIdReporter}"
+     */
+    protected String methodIdReporter;
+
+    /**
+     * Leave the methods with less bytecode than this uninstrumented, 0 to instrument them all.
+     *
+     * @parameter expression="${blackcat.minMethodSize}" default-value="0"
+     */
+    protected int minMethodSize;
+
+    /**
+     * Leave the methods uninstrumented when the probes would push their bytecode over
+     * {@code maxInlineSize} or {@code freqInlineSize}, so that the JIT keeps inlining them.
+     *
+     * @parameter expression="${blackcat.protectInlining}" default-value="false"
+     */
+    protected boolean protectInlining;
+
+    /**
+     * The HotSpot {@code -XX:MaxInlineSize} of the target JVM.
+     *
+     * @parameter expression="${blackcat.maxInlineSize}" default-value="35"
+     */
+    protected int maxInlineSize;
+
+    /**
+     * The HotSpot {@code -XX:FreqInlineSize} of the target JVM.
+     *
+     * @parameter expression="${blackcat.freqInlineSize}" default-value="325"
+     */
+    protected int freqInlineSize;
+
+    /**
+     * A local directory caching the instrumented classes by a hash of their bytes, of their rules and of the
+     * plugin version, so that the builds of the same classes copy them instead of instrumenting them again.
+     *
+     * @parameter expression="${blackcat.buildCache}"
+     */
+    protected File buildCacheDirectory;
+
+    /**
+     * The size in MB the build cache is kept under, by evicting the least recently used classes.
+     *
+     * @parameter expression="${blackcat.buildCacheMaxSize}" default-value="512"
+     */
+    protected long buildCacheMaxSize;
+
+    /**
+     * Hard link the cached classes instead of copying them, only when nothing rewrites the classes in place,
+     * like an incremental compilation without clean would.
+     *
+     * @parameter expression="${blackcat.buildCacheHardLinks}" default-value="false"
+     */
+    protected boolean buildCacheHardLinks;
+
+    protected void configureBuildCache(BlackcatTransformer transformer) {
+        if (buildCacheDirectory == null) return;
+
+        transformer.setBuildCache(buildCacheDirectory, buildCacheMaxSize * 1024 * 1024, buildCacheHardLinks);
+    }
+
+    protected InlinePolicy inlinePolicy() {
+        return new InlinePolicy(minMethodSize, protectInlining, maxInlineSize, freqInlineSize);
+    }
+}
@@ -0,0 +1,82 @@
+package com.github.bingoohuang.blackcat.maven;
+
+import com.github.bingoohuang.blackcat.maven.incremental.BuildStateIndex;
+import com.github.bingoohuang.blackcat.maven.instrument.BlackcatTransformer;
+import com.github.bingoohuang.blackcat.maven.instrument.InstrumentException;
+import com.github.bingoohuang.blackcat.maven.instrument.SourceRoot;
+import lombok.val;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.project.MavenProject;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Instrument the compiled classes of all the reactor modules at once, with one rule set
+ * and one worker pool shared by all the modules, like
+ * {@code mvn compile com.github.bingoohuang:blackcat-maven-plugin:instrument-aggregate}.
+ *
+ * @goal instrument-aggregate
+ * @aggregator
+ */
+public class InstrumentAggregateMojo extends AbstractInstrumentMojo {
+
+    /**
+     * The projects of the reactor.
+     *
+     * @parameter expression="${reactorProjects}"
+     * @required
+     * @readonly
+     */
+    private List<MavenProject> reactorProjects;
+
+    /**
+     * Skip the classes which are unchanged and already processed with the same rules by the previous build,
+     * the build state of each module is kept in its {@code target/blackcat}.
+     *
+     * @parameter expression="${blackcat.incremental}" default-value="false"
+     */
+    private boolean incremental;
+
+    /**
+     * The JSON report of the phase timings, the class counts and the slowest classes to transform.
+     *
+     * @parameter default-value="${project.build.directory}/blackcat/instrument-aggregate-report.json"
+     */
+    private File reportFile;
+
+    public void execute() throws MojoExecutionException {
+        val roots = new ArrayList<SourceRoot>(reactorProjects.size());
+        for (val project : reactorProjects) {
+            val outputDirectory = new File(project.getBuild().getOutputDirectory());
+            if (!outputDirectory.isDirectory()) {
+                getLog().debug("Skip module without classes:" + project.getArtifactId());
+                continue;
+            }
+
+            BuildStateIndex buildState = null;
+            if (incremental) {
+                buildState = BuildStateIndex.load(new File(project.getBuild().getDirectory(), "blackcat"), getLog());
+            }
+            roots.add(new SourceRoot(outputDirectory, buildState));
+        }
+        getLog().info("Instrument " + roots.size() + " module(s) of " + reactorProjects.size() + " in one pass");
+
+        val transformer = new BlackcatTransformer(getLog());
+        transformer.setThreads(instrumentThreads);
+        transformer.setReportFile(reportFile);
+        transformer.setSampleRate(sampleRate);
+        transformer.setInlinePolicy(inlinePolicy());
+        configureBuildCache(transformer);
+        if (thresholdReporter != null) transformer.setThresholdReporter(thresholdReporter);
+        if (methodIdReporter != null) transformer.setMethodIdReporter(methodIdReporter);
+        try {
+            transformer.instrument(roots, instrumentIncludes, instrumentExcludes);
+        } catch (InstrumentException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        } catch (IllegalArgumentException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.github.bingoohuang.blackcat.maven;
+
+import com.github.bingoohuang.blackcat.maven.instrument.BlackcatTransformer;
+import lombok.val;
+import org.apache.maven.plugin.MojoExecutionException;
+
+import java.io.File;
+
+/**
+ * Dry run of the instrument goal on the compiled classes: report how many classes each rule
+ * matches, and the probes and the size the instrumentation would add per package,
+ * without changing any class. Run it before the instrument goal, on classes not yet instrumented.
+ *
+ * @goal analyze
+ */
+public class InstrumentAnalyzeMojo extends AbstractInstrumentMojo {
+
+    /**
+     * The directory for compiled classes.
+     *
+     * @parameter default-value="${project.build.outputDirectory}"
+     * @required
+     * @readonly
+     */
+    private File outputDirectory;
+
+    /**
+     * The JSON report of the rule matches, the probe counts, the size changes per package
+     * and the methods close to the code size limit.
+     *
+     * @parameter default-value="${project.build.directory}/blackcat/instrument-analysis.json"
+     */
+    private File analysisFile;
+
+    public void execute() throws MojoExecutionException {
+        val transformer = new BlackcatTransformer(getLog());
+        transformer.setThreads(instrumentThreads);
+        transformer.setSampleRate(sampleRate);
+        transformer.setInlinePolicy(inlinePolicy());
+        if (thresholdReporter != null) transformer.setThresholdReporter(thresholdReporter);
+        if (methodIdReporter != null) transformer.setMethodIdReporter(methodIdReporter);
+        try {
+            val analysis = transformer.analyze(outputDirectory, instrumentIncludes, instrumentExcludes);
+            analysis.logSummary(getLog());
+            if (analysisFile != null) {
+                analysis.writeReport(analysisFile);
+                getLog().info("Analysis written to " + analysisFile);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.github.bingoohuang.blackcat.maven;
+
+import com.github.bingoohuang.blackcat.maven.archive.ArchiveInstrumenter;
+import com.github.bingoohuang.blackcat.maven.instrument.ClassWeaver;
+import com.github.bingoohuang.blackcat.maven.instrument.InstrumentRules;
+import com.github.bingoohuang.blackcat.maven.instrument.WorkerPools;
+import lombok.val;
+import org.apache.maven.plugin.MojoExecutionException;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Instrument the classes inside JAR/WAR archives in place, without extracting them.
+ *
+ * @goal instrument-archive
+ * @phase package
+ */
+public class InstrumentArchiveMojo extends AbstractInstrumentMojo {
+
+    /**
+     * The archives to instrument, defaults to the project archive.
+     *
+     * @parameter
+     */
+    private File[] archives;
+
+    /**
+     * The project archive.
+     *
+     * @parameter default-value="${project.build.directory}/${project.build.finalName}.${project.packaging}"
+     * @required
+     * @readonly
+     */
+    private File projectArchive;
+
+    public void execute() throws MojoExecutionException {
+        val targets = archives == null || archives.length == 0 ? new File[]{projectArchive} : archives;
+        if (methodIdReporter != null) {
+            getLog().warn("methodIdReporter is not supported on archives, their classes take the blackcat-instrument probes");
+        }
+        InstrumentRules rules;
+        ClassWeaver weaver;
+        try {
+            rules = new InstrumentRules(instrumentIncludes, instrumentExcludes, sampleRate);
+            weaver = new ClassWeaver(thresholdReporter, inlinePolicy());
+            weaver.checkRules(rules);
+        } catch (IllegalArgumentException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+
+        int threads = WorkerPools.resolveThreads(instrumentThreads);
+        val pool = WorkerPools.newWorkerPool(threads);
+        try {
+            // a few classes ahead of each worker keep it busy while the entries are written
+            val instrumenter = new ArchiveInstrumenter(rules, weaver, pool, 4 * threads, getLog());
+            for (val archive : targets) {
+                if (!archive.isFile()) {
+                    getLog().warn("Archive " + archive + " does not exist, skipped");
+                    continue;
+                }
+
+                int instrumented = instrumenter.instrument(archive);
+                getLog().info("Instrumented " + instrumented + " class(es) in " + archive);
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -1,20 +1,27 @@
 package com.github.bingoohuang.blackcat.maven;
 
+import com.github.bingoohuang.blackcat.maven.incremental.BuildStateIndex;
 import com.github.bingoohuang.blackcat.maven.instrument.BlackcatTransformer;
+import com.github.bingoohuang.blackcat.maven.instrument.ClassHierarchy;
+import com.github.bingoohuang.blackcat.maven.instrument.InstrumentException;
 import lombok.val;
-import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 
 import java.io.File;
-import java.util.HashSet;
-import java.util.Set;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Instrument Compiles application sources
+ * <p>The compile classpath is resolved for {@code computeFrames}, which is on by default. The frames are
+ * computed again after the probes of blackcat-instrument, which computes them first with the classes the
+ * plugin class loader sees, so a class whose weaving fails there on a project type still fails.
  *
  * @goal instrument
+ * @requiresDependencyResolution compile
  */
-public class InstrumentCompilerMojo extends AbstractMojo {
+public class InstrumentCompilerMojo extends AbstractInstrumentMojo {
 
     /**
      * The directory for compiled classes.
@@ -26,21 +33,86 @@ public class InstrumentCompilerMojo extends AbstractMojo {
     private File outputDirectory;
 
     /**
-     * A list of instrument inclusion filters for the compiler.
+     * The compile classpath of the project, the output directory first.
      *
-     * @parameter
+     * @parameter default-value="${project.compileClasspathElements}"
+     * @required
+     * @readonly
+     */
+    private List<String> classpathElements;
+
+    /**
+     * Compute the stack map frames of the instrumented classes again, resolving the common superclasses
+     * from the class files of the compile classpath instead of loading the classes in the plugin.
+     *
+     * @parameter expression="${blackcat.computeFrames}" default-value="true"
      */
-    private Set<String> instrumentIncludes = new HashSet<String>();
+    private boolean computeFrames;
 
     /**
-     * A list of instrument exclusion filters for the compiler.
+     * Skip the classes which are unchanged and already processed with the same rules by the previous build.
      *
-     * @parameter
+     * @parameter expression="${blackcat.incremental}" default-value="false"
      */
-    private Set<String> instrumentExcludes = new HashSet<String>();
+    private boolean incremental;
+
+    /**
+     * The directory to keep the instrument build state in.
+     *
+     * @parameter default-value="${project.build.directory}/blackcat"
+     * @required
+     */
+    private File stateDirectory;
+
+    /**
+     * The JSON report of the phase timings, the class counts and the slowest classes to transform.
+     *
+     * @parameter default-value="${project.build.directory}/blackcat/instrument-report.json"
+     */
+    private File reportFile;
 
     public void execute() throws MojoExecutionException {
-        val transformer = new BlackcatTransformer();
-        transformer.instrument(outputDirectory, instrumentIncludes, instrumentExcludes);
+        val transformer = new BlackcatTransformer(getLog());
+        transformer.setThreads(instrumentThreads);
+        transformer.setReportFile(reportFile);
+        transformer.setSampleRate(sampleRate);
+        transformer.setInlinePolicy(inlinePolicy());
+        configureBuildCache(transformer);
+        if (thresholdReporter != null) transformer.setThresholdReporter(thresholdReporter);
+        if (methodIdReporter != null) transformer.setMethodIdReporter(methodIdReporter);
+        if (incremental) transformer.setBuildState(BuildStateIndex.load(stateDirectory, getLog()));
+        val classHierarchy = computeFrames ? buildClassHierarchy() : null;
+        if (classHierarchy != null) transformer.setClassHierarchy(classHierarchy);
+        try {
+            transformer.instrument(outputDirectory, instrumentIncludes, instrumentExcludes);
+        } catch (InstrumentException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        } catch (IllegalArgumentException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        } finally {
+            if (classHierarchy != null) close(classHierarchy);
+        }
+    }
+
+    private ClassHierarchy buildClassHierarchy() throws MojoExecutionException {
+        val classpath = new ArrayList<File>(classpathElements.size());
+        for (val element : classpathElements) classpath.add(new File(element));
+        try {
+            long start = System.currentTimeMillis();
+            val classHierarchy = ClassHierarchy.build(classpath, instrumentThreads);
+            getLog().info("Indexed " + classHierarchy.size() + " class(es) of " + classpath.size()
+                    + " classpath element(s) in " + (System.currentTimeMillis() - start) + " ms");
+            return classHierarchy;
+        } catch (IOException e) {
+            throw new MojoExecutionException("Failed to read the compile classpath: " + e.getMessage(), e);
+        }
+    }
+
+    private void close(ClassHierarchy classHierarchy) {
+        try {
+            classHierarchy.close();
+        } catch (IOException e) {
+            getLog().warn("Failed to close the compile classpath: " + e.getMessage());
+        }
     }
 }
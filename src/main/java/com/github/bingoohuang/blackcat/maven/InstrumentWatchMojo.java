@@ -0,0 +1,87 @@
+package com.github.bingoohuang.blackcat.maven;
+
+import com.github.bingoohuang.blackcat.maven.instrument.BlackcatTransformer;
+import com.github.bingoohuang.blackcat.maven.instrument.InstrumentException;
+import com.github.bingoohuang.blackcat.maven.instrument.InstrumentRules;
+import com.github.bingoohuang.blackcat.maven.instrument.SourceRoot;
+import com.github.bingoohuang.blackcat.maven.watch.ClassFileWatcher;
+import lombok.val;
+import org.apache.maven.plugin.MojoExecutionException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Instrument the compiled classes once, then keep watching the output directory and
+ * re-instrument the classes the IDE or the compiler writes again, until interrupted.
+ *
+ * @goal watch
+ */
+public class InstrumentWatchMojo extends AbstractInstrumentMojo {
+
+    /**
+     * The directory for compiled classes.
+     *
+     * @parameter default-value="${project.build.outputDirectory}"
+     * @required
+     * @readonly
+     */
+    private File outputDirectory;
+
+    /**
+     * How long the output directory must stay quiet before the changed classes are instrumented,
+     * so that a whole compilation is handled as one batch.
+     *
+     * @parameter expression="${blackcat.watchDebounceMillis}" default-value="200"
+     */
+    private long watchDebounceMillis;
+
+    public void execute() throws MojoExecutionException {
+        val transformer = new BlackcatTransformer(getLog());
+        transformer.setThreads(instrumentThreads);
+        transformer.setSampleRate(sampleRate);
+        transformer.setInlinePolicy(inlinePolicy());
+        configureBuildCache(transformer);
+        if (thresholdReporter != null) transformer.setThresholdReporter(thresholdReporter);
+        if (methodIdReporter != null) transformer.setMethodIdReporter(methodIdReporter);
+
+        try {
+            outputDirectory.mkdirs();
+            val directories = Collections.singletonList(outputDirectory);
+            InstrumentRules rules = transformer.compileRules(directories, instrumentIncludes, instrumentExcludes);
+            val root = new SourceRoot(outputDirectory, null);
+            try (ClassFileWatcher watcher = new ClassFileWatcher(outputDirectory, watchDebounceMillis)) {
+                transformer.instrument(Collections.singletonList(root), rules);
+                getLog().info("Watching " + outputDirectory + " for changed classes, press Ctrl-C to stop");
+
+                while (true) {
+                    val changed = watcher.awaitChanges();
+                    long start = System.nanoTime();
+                    // the changed classes may change what the annotation and supertype rules match
+                    val classIndex = rules.getClassIndex();
+                    if (classIndex != null) {
+                        classIndex.update(outputDirectory, changed);
+                        rules = transformer.compileRules(classIndex, instrumentIncludes, instrumentExcludes);
+                    }
+                    val stats = transformer.instrumentChanged(root, rules, changed);
+                    long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                    // our own writes come back as changes, which are then skipped as already instrumented
+                    if (stats.getInstrumented() > 0) {
+                        getLog().info("Re-instrumented " + stats.getInstrumented() + " of "
+                                + changed.size() + " changed class(es) in " + millis + " ms");
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        } catch (InstrumentException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        } catch (IllegalArgumentException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+    }
+}
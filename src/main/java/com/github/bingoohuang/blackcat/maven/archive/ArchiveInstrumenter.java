@@ -0,0 +1,427 @@
+package com.github.bingoohuang.blackcat.maven.archive;
+
+import com.github.bingoohuang.blackcat.maven.classfile.ClassFileReader;
+import com.github.bingoohuang.blackcat.maven.classfile.ClassPreFilter;
+import com.github.bingoohuang.blackcat.maven.classfile.InstrumentedMarker;
+import com.github.bingoohuang.blackcat.maven.instrument.ClassWeaver;
+import com.github.bingoohuang.blackcat.maven.instrument.InstrumentRules;
+import com.google.common.base.Charsets;
+import lombok.val;
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Instruments the classes inside a JAR/WAR archive in one pass, without extracting it.
+ * <p>The entries are streamed from the central directory order into a temporary archive:
+ * untouched entries are copied as their raw compressed bytes, and only the instrumented
+ * classes are inflated, woven and deflated again, a bounded number of them ahead of the entry
+ * being written. Classes under {@code WEB-INF/classes/} and {@code BOOT-INF/classes/} are matched
+ * by their path relative to those roots, nested archives are copied as is. The data in front of
+ * the first entry, like the launch script of an executable Spring Boot archive, is kept.
+ * ZIP64 archives are not supported.
+ */
+public class ArchiveInstrumenter {
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_HEADER = 0x06054b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_HEADER_SIZE = 22;
+    private static final int FLAG_ENCRYPTED = 1;
+    private static final int FLAG_DATA_DESCRIPTOR = 8;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+    private static final String[] CLASS_ROOTS = {"WEB-INF/classes/", "BOOT-INF/classes/"};
+
+    private final InstrumentRules rules;
+    private final ClassWeaver weaver;
+    private final ExecutorService pool;
+    private final int maxInFlight;
+    private final Log log;
+
+    /**
+     * @param maxInFlight the maximum number of classes submitted to the pool and not written yet
+     */
+    public ArchiveInstrumenter(InstrumentRules rules, ClassWeaver weaver, ExecutorService pool,
+                               int maxInFlight, Log log) {
+        this.rules = rules;
+        this.weaver = weaver;
+        this.pool = pool;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.log = log;
+    }
+
+    /**
+     * Instrument the archive in place.
+     *
+     * @return the number of instrumented classes
+     */
+    public int instrument(File archive) throws IOException {
+        val temp = File.createTempFile(archive.getName(), ".tmp", archive.getAbsoluteFile().getParentFile());
+        int instrumented = 0;
+        try (RandomAccessFile in = new RandomAccessFile(archive, "r");
+             RandomAccessFile out = new RandomAccessFile(temp, "rw")) {
+            FileChannel input = in.getChannel();
+            FileChannel output = out.getChannel();
+            long endOffset = findEndHeader(input);
+            val end = readEndHeader(input, endOffset);
+            val entries = readCentralDirectory(input, end, endOffset);
+            transfer(input, 0, prefixLength(entries, end), output, "prefix");
+
+            List<Future<byte[]>> woven = new ArrayList<Future<byte[]>>(
+                    Collections.<Future<byte[]>>nCopies(entries.size(), null));
+            int submitted = 0, inFlight = 0;
+
+            boolean signed = false;
+            for (int i = 0; i < entries.size(); ++i) {
+                for (; submitted < entries.size() && (submitted <= i || inFlight < maxInFlight); ++submitted) {
+                    val future = submitWeaving(archive, input, entries.get(submitted));
+                    woven.set(submitted, future);
+                    if (future != null) ++inFlight;
+                }
+
+                val entry = entries.get(i);
+                signed |= entry.name.startsWith("META-INF/") && entry.name.endsWith(".SF");
+
+                val future = woven.set(i, null);
+                byte[] classfile = null;
+                if (future != null) {
+                    --inFlight;
+                    classfile = getWoven(archive, entry, future);
+                }
+
+                long offset = output.position();
+                if (classfile == null) {
+                    copyRawEntry(input, output, entry);
+                } else {
+                    writeDeflatedEntry(input, output, entry, classfile);
+                    ++instrumented;
+                    log.debug("Instrument class:" + archive.getName() + "!/" + entry.name);
+                }
+                entry.putInt(42, (int) offset);
+            }
+
+            writeCentralDirectory(output, entries, end);
+            if (signed && instrumented > 0) {
+                log.warn("Archive " + archive + " is signed, its signature does not match the instrumented classes");
+            }
+        } catch (IOException | RuntimeException e) {
+            temp.delete();
+            throw e;
+        }
+
+        if (instrumented == 0) {
+            temp.delete();
+        } else {
+            java.nio.file.Files.move(temp.toPath(), archive.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        return instrumented;
+    }
+
+    private Future<byte[]> submitWeaving(final File archive, final FileChannel input, final CentralEntry entry) {
+        String srcRelativePath = classPath(entry.name);
+        if (srcRelativePath == null || (entry.getShort(8) & FLAG_ENCRYPTED) != 0) return null;
+        if (entry.getShort(10) != STORED && entry.getShort(10) != DEFLATED) return null;
+        if (!rules.isIncluded(srcRelativePath)) return null;
+
+        val match = rules.match(srcRelativePath);
+        if (match.isExcluded()) return null;
+
+        return pool.submit(new Callable<byte[]>() {
+            @Override public byte[] call() throws Exception {
+                byte[] classfileBuffer = readEntry(input, entry);
+                val reader = new ClassFileReader(classfileBuffer);
+                if (InstrumentedMarker.isMarked(reader)) return null;
+
+                val selector = match.newMethodSelector();
+                if (ClassPreFilter.reject(reader, selector) != null) return null;
+
+                return weaver.weave(classfileBuffer, selector);
+            }
+        });
+    }
+
+    private static byte[] getWoven(File archive, CentralEntry entry, Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while instrumenting " + archive, e);
+        } catch (ExecutionException e) {
+            throw new IOException("Instrument class failed:" + archive + "!/" + entry.name, e.getCause());
+        }
+    }
+
+    /**
+     * The path of a class relative to its class root, or {@code null} when the entry is not a class.
+     */
+    static String classPath(String name) {
+        if (!name.endsWith(".class")) return null;
+
+        for (String root : CLASS_ROOTS) {
+            if (name.startsWith(root)) return name.substring(root.length());
+        }
+        return name.startsWith("META-INF/") || name.startsWith("WEB-INF/") || name.startsWith("BOOT-INF/")
+                ? null : name;
+    }
+
+    private static long findEndHeader(FileChannel input) throws IOException {
+        long size = input.size();
+        int tailSize = (int) Math.min(size, END_HEADER_SIZE + 0xFFFF);
+        val tail = read(input, size - tailSize, tailSize);
+        for (int i = tailSize - END_HEADER_SIZE; i >= 0; --i) {
+            if (tail.getInt(i) != END_HEADER) continue;
+
+            int length = END_HEADER_SIZE + (tail.getShort(i + 20) & 0xFFFF);
+            if (i + length <= tailSize) return size - tailSize + i;
+        }
+        throw new IOException("Not a zip archive, end of central directory not found");
+    }
+
+    private static ByteBuffer readEndHeader(FileChannel input, long endOffset) throws IOException {
+        int length = END_HEADER_SIZE + (read(input, endOffset + 20, 2).getShort(0) & 0xFFFF);
+        val end = read(input, endOffset, length);
+        if ((end.getShort(10) & 0xFFFF) == 0xFFFF || end.getInt(16) == 0xFFFFFFFF) {
+            throw new IOException("ZIP64 archives are not supported");
+        }
+        return end;
+    }
+
+    /**
+     * Read the central directory, with the local header offsets made relative to the start of the file,
+     * as they are not when some data was prepended to the archive without updating them.
+     */
+    private static List<CentralEntry> readCentralDirectory(FileChannel input, ByteBuffer end,
+                                                           long endOffset) throws IOException {
+        int count = end.getShort(10) & 0xFFFF;
+        long size = end.getInt(12) & 0xFFFFFFFFL;
+        long shift = endOffset - size - (end.getInt(16) & 0xFFFFFFFFL);
+        if (shift < 0) throw new IOException("Corrupted end of central directory");
+
+        val directory = read(input, endOffset - size, (int) size);
+
+        List<CentralEntry> entries = new ArrayList<CentralEntry>(count);
+        int position = 0;
+        for (int i = 0; i < count; ++i) {
+            if (directory.getInt(position) != CENTRAL_HEADER) throw new IOException("Corrupted central directory");
+
+            int length = CENTRAL_HEADER_SIZE + (directory.getShort(position + 28) & 0xFFFF)
+                    + (directory.getShort(position + 30) & 0xFFFF) + (directory.getShort(position + 32) & 0xFFFF);
+            val entry = new CentralEntry(directory.array(), position, length);
+            entry.putInt(42, (int) ((entry.getInt(42) & 0xFFFFFFFFL) + shift));
+            entries.add(entry);
+            position += length;
+        }
+        return entries;
+    }
+
+    /**
+     * The length of the data in front of the first entry, or of the central directory for an empty archive.
+     */
+    private static long prefixLength(List<CentralEntry> entries, ByteBuffer end) {
+        long prefix = end.getInt(16) & 0xFFFFFFFFL;
+        for (val entry : entries) {
+            prefix = Math.min(prefix, entry.getInt(42) & 0xFFFFFFFFL);
+        }
+        return prefix;
+    }
+
+    private static void copyRawEntry(FileChannel input, FileChannel output, CentralEntry entry) throws IOException {
+        long dataOffset = writeLocalHeader(input, output, entry);
+        transfer(input, dataOffset, entry.getCompressedSize(), output, "entry " + entry.name);
+    }
+
+    private static void transfer(FileChannel input, long position, long count,
+                                 FileChannel output, String what) throws IOException {
+        for (long remaining = count; remaining > 0; ) {
+            long transferred = input.transferTo(position, remaining, output);
+            if (transferred <= 0) throw new IOException("Truncated " + what);
+            position += transferred;
+            remaining -= transferred;
+        }
+    }
+
+    private static void writeDeflatedEntry(FileChannel input, FileChannel output,
+                                           CentralEntry entry, byte[] classfile) throws IOException {
+        val crc = new CRC32();
+        crc.update(classfile);
+        byte[] compressed = deflate(classfile);
+
+        entry.putShort(6, Math.max(20, entry.getShort(6))); // version needed for deflate
+        entry.putShort(10, DEFLATED);
+        entry.putInt(16, (int) crc.getValue());
+        entry.putInt(20, compressed.length);
+        entry.putInt(24, classfile.length);
+        writeLocalHeader(input, output, entry);
+        write(output, ByteBuffer.wrap(compressed));
+    }
+
+    /**
+     * Write a local header built from the central entry, so that entries with a data descriptor
+     * are written with their sizes in front, and keep the extra field of the original local header.
+     *
+     * @return the offset of the entry data in the input archive
+     */
+    private static long writeLocalHeader(FileChannel input, FileChannel output, CentralEntry entry) throws IOException {
+        entry.putShort(8, entry.getShort(8) & ~FLAG_DATA_DESCRIPTOR);
+        long localOffset = entry.getInt(42) & 0xFFFFFFFFL;
+        val original = read(input, localOffset, LOCAL_HEADER_SIZE);
+        if (original.getInt(0) != LOCAL_HEADER) throw new IOException("Corrupted local header of " + entry.name);
+
+        int nameLength = original.getShort(26) & 0xFFFF;
+        int extraLength = original.getShort(28) & 0xFFFF;
+        val extra = read(input, localOffset + LOCAL_HEADER_SIZE + nameLength, extraLength);
+
+        val header = ByteBuffer.allocate(LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(LOCAL_HEADER);
+        header.putShort(entry.getShort(6)); // version needed
+        header.putShort(entry.getShort(8)); // flags
+        header.putShort(entry.getShort(10)); // method
+        header.putInt(entry.getInt(12)); // time and date
+        header.putInt(entry.getInt(16)); // crc
+        header.putInt(entry.getInt(20)); // compressed size
+        header.putInt(entry.getInt(24)); // uncompressed size
+        header.putShort((short) entry.nameBytes.length);
+        header.putShort((short) extraLength);
+        header.flip();
+
+        write(output, header);
+        write(output, ByteBuffer.wrap(entry.nameBytes));
+        write(output, extra);
+        return localOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+    }
+
+    private static void writeCentralDirectory(FileChannel output, List<CentralEntry> entries,
+                                              ByteBuffer end) throws IOException {
+        long offset = output.position();
+        for (val entry : entries) {
+            write(output, ByteBuffer.wrap(entry.record));
+        }
+
+        end.putInt(12, (int) (output.position() - offset));
+        end.putInt(16, (int) offset);
+        end.rewind();
+        write(output, end);
+    }
+
+    private static byte[] readEntry(FileChannel input, CentralEntry entry) throws IOException {
+        long localOffset = entry.getInt(42) & 0xFFFFFFFFL;
+        val local = read(input, localOffset, LOCAL_HEADER_SIZE);
+        long dataOffset = localOffset + LOCAL_HEADER_SIZE + (local.getShort(26) & 0xFFFF) + (local.getShort(28) & 0xFFFF);
+        int compressedSize = (int) entry.getCompressedSize();
+        int size = entry.getInt(24);
+        if (entry.getShort(10) == STORED) return read(input, dataOffset, size).array();
+
+        // the nowrap inflater may need one extra dummy byte after the deflated data
+        byte[] compressed = new byte[compressedSize + 1];
+        read(input, dataOffset, compressedSize).get(compressed, 0, compressedSize);
+
+        val inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed);
+            byte[] classfile = new byte[size];
+            int inflated = 0;
+            while (inflated < size && !inflater.finished()) {
+                int count = inflater.inflate(classfile, inflated, size - inflated);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                inflated += count;
+            }
+            if (inflated != size) throw new IOException("Corrupted entry " + entry.name);
+            return classfile;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted entry " + entry.name, e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] deflate(byte[] classfile) {
+        val deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(classfile);
+            deflater.finish();
+            byte[] buffer = new byte[Math.max(64, classfile.length + classfile.length / 100 + 64)];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == buffer.length) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            return Arrays.copyOf(buffer, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static ByteBuffer read(FileChannel input, long position, int length) throws IOException {
+        val buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (input.read(buffer, position + buffer.position()) < 0) throw new IOException("Unexpected end of archive");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void write(FileChannel output, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            output.write(buffer);
+        }
+    }
+
+    /**
+     * A central directory record, kept as raw bytes to be written back with the updated fields.
+     */
+    private static class CentralEntry {
+        final byte[] record;
+        final ByteBuffer fields;
+        final byte[] nameBytes;
+        final String name;
+
+        CentralEntry(byte[] directory, int offset, int length) {
+            this.record = Arrays.copyOfRange(directory, offset, offset + length);
+            this.fields = ByteBuffer.wrap(record).order(ByteOrder.LITTLE_ENDIAN);
+            this.nameBytes = Arrays.copyOfRange(record, CENTRAL_HEADER_SIZE,
+                    CENTRAL_HEADER_SIZE + (fields.getShort(28) & 0xFFFF));
+            this.name = new String(nameBytes, Charsets.UTF_8);
+        }
+
+        short getShort(int index) {
+            return fields.getShort(index);
+        }
+
+        int getInt(int index) {
+            return fields.getInt(index);
+        }
+
+        long getCompressedSize() {
+            return getInt(20) & 0xFFFFFFFFL;
+        }
+
+        void putShort(int index, int value) {
+            fields.putShort(index, (short) value);
+        }
+
+        void putInt(int index, int value) {
+            fields.putInt(index, value);
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package com.github.bingoohuang.blackcat.maven.cache;
+
+import com.github.bingoohuang.blackcat.instrument.instrument.BlackcatInstrument;
+import com.github.bingoohuang.blackcat.maven.classfile.ClassFileIO;
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import lombok.Setter;
+import lombok.val;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A directory of transformed class bytes, keyed by a hash of the original bytes, of the rules
+ * matching the class and of a salt standing for everything else the transformation depends on,
+ * like the weaver version and options. A class left unchanged by the weaver is cached as an
+ * empty entry, so that it is not parsed again either.
+ * <p>Entries are written atomically, so several processes may share the directory.
+ * The last use of an entry is the last modified time of its {@code .used} sidecar, for the
+ * LRU {@link #evict eviction}, and not of the entry itself, which may be hard linked into an output
+ * directory.
+ */
+public class TransformedClassCache {
+    // bump it whenever the woven bytes change for the same input, to invalidate the caches
+    private static final String FORMAT = "1";
+    private static final byte[] UNCHANGED = new byte[0];
+    private static final String SKIPPED_SUFFIX = ".skipped";
+    private static final String USED_SUFFIX = ".used";
+    private static final String[] SIDECAR_SUFFIXES = {SKIPPED_SUFFIX, USED_SUFFIX};
+
+    private final File directory;
+    private final String salt;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    /**
+     * Whether {@link #copyTo} hard links the entries instead of copying them, which is only safe when
+     * nothing rewrites the target files in place afterwards, like an incremental compiler does.
+     */
+    @Setter private boolean hardLinks;
+
+    public TransformedClassCache(File directory, String salt) {
+        this.directory = directory;
+        this.salt = salt;
+    }
+
+    /**
+     * @return a salt made of the cache format, the weaver code version and the given weaver options
+     */
+    public static String salt(Object... options) {
+        return FORMAT + ":" + CodeVersion.VALUE + ":" + Joiner.on(':').useForNull("").join(options);
+    }
+
+    /**
+     * A hash of the jars of the weaver and of the probes, as the implementation version stays the same
+     * across the rebuilds of a SNAPSHOT. Out of a jar, like in an IDE, the implementation version is
+     * the best there is.
+     */
+    private static class CodeVersion {
+        static final String VALUE = compute(TransformedClassCache.class, BlackcatInstrument.class);
+
+        static String compute(Class<?>... classes) {
+            val hasher = Hashing.murmur3_128().newHasher();
+            val jars = new LinkedHashSet<File>();
+            for (Class<?> type : classes) {
+                File jar = jarOf(type);
+                if (jar == null) {
+                    hasher.putString(String.valueOf(type.getPackage().getImplementationVersion()), Charsets.UTF_8);
+                } else if (jars.add(jar)) {
+                    try {
+                        hasher.putBytes(Files.asByteSource(jar).hash(Hashing.murmur3_128()).asBytes());
+                    } catch (IOException e) {
+                        hasher.putLong(jar.length()).putLong(jar.lastModified());
+                    }
+                }
+            }
+            return hasher.hash().toString();
+        }
+
+        private static File jarOf(Class<?> type) {
+            val codeSource = type.getProtectionDomain().getCodeSource();
+            if (codeSource == null || codeSource.getLocation() == null) return null;
+
+            try {
+                val location = new File(codeSource.getLocation().toURI());
+                return location.isFile() ? location : null;
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+
+    public String key(byte[] original, int length, String rules) {
+        return Hashing.murmur3_128().newHasher()
+                .putBytes(original, 0, length)
+                .putString(rules, Charsets.UTF_8)
+                .putString(salt, Charsets.UTF_8)
+                .hash().toString();
+    }
+
+    /**
+     * @return the cached bytes, an empty array for a class the weaver left unchanged,
+     * or {@code null} on a miss
+     */
+    public byte[] get(String key) {
+        val file = file(key);
+        try {
+            byte[] bytes = file.isFile() ? Files.toByteArray(file) : null;
+            (bytes == null ? misses : hits).incrementAndGet();
+            if (bytes != null) touchUsed(file);
+            return bytes;
+        } catch (IOException e) {
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * @return the methods the weaver skipped when the entry was put, by their name and descriptor
+     */
+    public Map<String, String> getSkipped(String key) throws IOException {
+        val file = new File(file(key).getPath() + SKIPPED_SUFFIX);
+        if (!file.isFile()) return Collections.emptyMap();
+
+        val skipped = new LinkedHashMap<String, String>();
+        for (String line : Files.readLines(file, Charsets.UTF_8)) {
+            val parts = Splitter.on('\t').limit(2).splitToList(line);
+            if (parts.size() == 2) skipped.put(parts.get(0), parts.get(1));
+        }
+        return skipped;
+    }
+
+    /**
+     * @param transformed the transformed bytes, or {@code null} for a class left unchanged
+     */
+    public void put(String key, byte[] transformed) throws IOException {
+        put(key, transformed, Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * @param skipped the methods the weaver skipped, to give back with the entry
+     */
+    public void put(String key, byte[] transformed, Map<String, String> skipped) throws IOException {
+        val file = file(key);
+        Files.createParentDirs(file);
+        if (!skipped.isEmpty()) {
+            val lines = new StringBuilder();
+            for (val method : skipped.entrySet()) {
+                lines.append(method.getKey()).append('\t').append(method.getValue()).append('\n');
+            }
+            ClassFileIO.write(new File(file.getPath() + SKIPPED_SUFFIX), lines.toString().getBytes(Charsets.UTF_8));
+        }
+        // the class bytes last, a reader seeing them sees the skipped methods too
+        ClassFileIO.write(file, transformed == null ? UNCHANGED : transformed);
+    }
+
+    /**
+     * Replace the target by the entry, hard linked or copied.
+     */
+    public void copyTo(String key, File target) throws IOException {
+        val entry = file(key).toPath();
+        val temp = File.createTempFile("." + target.getName(), ".tmp", target.getParentFile()).toPath();
+        try {
+            if (hardLinks) {
+                java.nio.file.Files.delete(temp);
+                java.nio.file.Files.createLink(temp, entry);
+            } else {
+                java.nio.file.Files.copy(entry, temp, StandardCopyOption.REPLACE_EXISTING);
+            }
+            java.nio.file.Files.move(temp, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            java.nio.file.Files.deleteIfExists(temp);
+        }
+    }
+
+    private static void touchUsed(File file) {
+        try {
+            Files.touch(new File(file.getPath() + USED_SUFFIX));
+        } catch (IOException e) {
+            // the entry is only evicted earlier
+        }
+    }
+
+    /**
+     * Delete the least recently used entries, with their sidecars, until the cache holds at most the given size.
+     *
+     * @return the number of deleted entries
+     */
+    public int evict(long maxBytes) {
+        // the size of each entry with its sidecars, by the path of its class bytes
+        final Map<String, Long> entries = new HashMap<String, Long>();
+        long size = 0;
+        File[] buckets = directory.listFiles();
+        for (File bucket : buckets == null ? new File[0] : buckets) {
+            File[] files = bucket.listFiles();
+            if (files == null) continue;
+
+            for (File file : files) {
+                String entry = entryPath(file.getPath());
+                if (entry == null) continue;
+
+                long length = file.length();
+                Long entrySize = entries.get(entry);
+                entries.put(entry, entrySize == null ? length : entrySize + length);
+                size += length;
+            }
+        }
+        if (size <= maxBytes) return 0;
+
+        // a sidecar left without its class bytes has no last use and goes first
+        final Map<String, Long> lastUsed = new HashMap<String, Long>();
+        for (String entry : entries.keySet()) {
+            val file = new File(entry);
+            val used = new File(entry + USED_SUFFIX);
+            lastUsed.put(entry, !file.isFile() ? 0L : used.isFile() ? used.lastModified() : file.lastModified());
+        }
+        val sorted = new ArrayList<String>(entries.keySet());
+        Collections.sort(sorted, new Comparator<String>() {
+            @Override public int compare(String o1, String o2) {
+                return lastUsed.get(o1).compareTo(lastUsed.get(o2));
+            }
+        });
+
+        int evicted = 0;
+        for (int i = 0; i < sorted.size() && size > maxBytes; ++i) {
+            String entry = sorted.get(i);
+            val file = new File(entry);
+            if (file.exists() && !file.delete()) continue;
+
+            for (String suffix : SIDECAR_SUFFIXES) {
+                new File(entry + suffix).delete();
+            }
+            size -= entries.get(entry);
+            ++evicted;
+        }
+        return evicted;
+    }
+
+    /**
+     * @return the path of the class bytes of an entry file or of its sidecar, or {@code null} for another file
+     */
+    private static String entryPath(String path) {
+        if (path.endsWith(".class")) return path;
+
+        for (String suffix : SIDECAR_SUFFIXES) {
+            if (path.endsWith(".class" + suffix)) return path.substring(0, path.length() - suffix.length());
+        }
+        return null;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private File file(String key) {
+        return new File(directory, key.substring(0, 2) + File.separator + key.substring(2) + ".class");
+    }
+}
@@ -0,0 +1,88 @@
+package com.github.bingoohuang.blackcat.maven.classfile;
+
+import lombok.val;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Class file I/O for the instrument workers: files are read through NIO channels into a buffer
+ * reused by each worker thread, and written to a temporary file which atomically replaces the
+ * target, so an interrupted build never leaves a half written class behind.
+ */
+public class ClassFileIO {
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> BUFFERS = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        }
+    };
+
+    /**
+     * Read the whole file into the buffer of the calling thread.
+     *
+     * @return the heap buffer holding the file from 0 to its limit, only valid until
+     * the next read on the same thread
+     */
+    public static ByteBuffer read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) throw new IOException("File too large: " + file);
+
+            val buffer = ensureCapacity((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) break;
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    /**
+     * Copy the bytes of a buffer returned by {@link #read(File)} into an array of the exact size.
+     */
+    public static byte[] toByteArray(ByteBuffer buffer) {
+        return Arrays.copyOf(buffer.array(), buffer.limit());
+    }
+
+    public static void write(File target, byte[] content) throws IOException {
+        val dir = target.getAbsoluteFile().getParentFile();
+        val temp = File.createTempFile("." + target.getName(), ".tmp", dir).toPath();
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                val buffer = ByteBuffer.wrap(content);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+
+            try {
+                Files.move(temp, target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static ByteBuffer ensureCapacity(int size) {
+        ByteBuffer buffer = BUFFERS.get();
+        if (buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+            BUFFERS.set(buffer);
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+}
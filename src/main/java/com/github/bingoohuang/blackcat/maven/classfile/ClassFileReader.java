@@ -0,0 +1,360 @@
+package com.github.bingoohuang.blackcat.maven.classfile;
+
+import com.google.common.base.Charsets;
+import lombok.val;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal reader over the raw bytes of a class file, which only locates the constant pool
+ * entries and the header fields, so that cheap checks can be made without a full ASM parse.
+ */
+public class ClassFileReader {
+    public static final int MAGIC = 0xCAFEBABE;
+    private static final byte[] CODE = {'C', 'o', 'd', 'e'};
+    private static final byte[] RUNTIME_VISIBLE_ANNOTATIONS = "RuntimeVisibleAnnotations".getBytes(Charsets.US_ASCII);
+    private static final byte[] RUNTIME_INVISIBLE_ANNOTATIONS = "RuntimeInvisibleAnnotations".getBytes(Charsets.US_ASCII);
+
+    private final byte[] b;
+    private final int[] cpOffsets;
+    private final int header;
+
+    public ClassFileReader(byte[] b) {
+        this(b, b.length);
+    }
+
+    public ClassFileReader(byte[] b, int length) {
+        if (length < 10 || readInt(b, 0) != MAGIC) {
+            throw new IllegalArgumentException("not a class file");
+        }
+
+        this.b = b;
+        int cpCount = readUnsignedShort(b, 8);
+        this.cpOffsets = new int[cpCount];
+
+        int offset = 10;
+        for (int i = 1; i < cpCount; ++i) {
+            cpOffsets[i] = offset;
+            int tag = b[offset];
+            switch (tag) {
+                case 1: // Utf8
+                    offset += 3 + readUnsignedShort(b, offset + 1);
+                    break;
+                case 5: // Long
+                case 6: // Double
+                    offset += 9;
+                    ++i;
+                    break;
+                case 3: // Integer
+                case 4: // Float
+                case 9: // Fieldref
+                case 10: // Methodref
+                case 11: // InterfaceMethodref
+                case 12: // NameAndType
+                case 17: // Dynamic
+                case 18: // InvokeDynamic
+                    offset += 5;
+                    break;
+                case 15: // MethodHandle
+                    offset += 4;
+                    break;
+                case 7: // Class
+                case 8: // String
+                case 16: // MethodType
+                case 19: // Module
+                case 20: // Package
+                    offset += 3;
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown constant pool tag " + tag);
+            }
+        }
+        this.header = offset;
+    }
+
+    public int getConstantPoolCount() {
+        return cpOffsets.length;
+    }
+
+    /**
+     * The offset of the access flags, right after the constant pool.
+     */
+    public int getHeader() {
+        return header;
+    }
+
+    public int getAccess() {
+        return readUnsignedShort(b, header);
+    }
+
+    public String getClassName() {
+        return readClass(header + 2);
+    }
+
+    public String getSuperName() {
+        return readClass(header + 4);
+    }
+
+    public String[] getInterfaces() {
+        int count = readUnsignedShort(b, header + 6);
+        String[] interfaces = new String[count];
+        for (int i = 0; i < count; ++i) {
+            interfaces[i] = readClass(header + 8 + 2 * i);
+        }
+        return interfaces;
+    }
+
+    /**
+     * The offset of the fields_count item.
+     */
+    public int getFieldsOffset() {
+        return header + 8 + 2 * readUnsignedShort(b, header + 6);
+    }
+
+    /**
+     * The offset of the methods_count item.
+     */
+    public int getMethodsOffset() {
+        return skipMembers(getFieldsOffset());
+    }
+
+    /**
+     * The offset of the class attributes_count item.
+     */
+    public int getAttributesOffset() {
+        return skipMembers(getMethodsOffset());
+    }
+
+    /**
+     * Skip a fields or methods table starting with its count item.
+     *
+     * @return the offset right after the table
+     */
+    public int skipMembers(int offset) {
+        int count = readUnsignedShort(b, offset);
+        offset += 2;
+        for (int i = 0; i < count; ++i) {
+            offset = skipAttributes(offset + 6);
+        }
+        return offset;
+    }
+
+    /**
+     * Skip an attributes table starting with its count item.
+     *
+     * @return the offset right after the table
+     */
+    public int skipAttributes(int offset) {
+        int count = readUnsignedShort(b, offset);
+        offset += 2;
+        for (int i = 0; i < count; ++i) {
+            offset += 6 + readInt(b, offset + 2);
+        }
+        return offset;
+    }
+
+    /**
+     * Check whether the class has an attribute named by the given (ASCII) bytes.
+     */
+    public boolean hasClassAttribute(byte[] ascii) {
+        int offset = getAttributesOffset();
+        int count = readUnsignedShort(b, offset);
+        offset += 2;
+        for (int i = 0; i < count; ++i) {
+            if (utf8Equals(readUnsignedShort(b, offset), ascii)) return true;
+            offset += 6 + readInt(b, offset + 2);
+        }
+        return false;
+    }
+
+    public boolean utf8Equals(int index, byte[] ascii) {
+        int offset = cpOffsets[index];
+        if (offset == 0 || b[offset] != 1 || readUnsignedShort(b, offset + 1) != ascii.length) return false;
+
+        for (int i = 0, j = offset + 3; i < ascii.length; ++i, ++j) {
+            if (b[j] != ascii[i]) return false;
+        }
+        return true;
+    }
+
+    public String readUtf8(int index) {
+        if (index == 0) return null;
+
+        int offset = cpOffsets[index];
+        int length = readUnsignedShort(b, offset + 1);
+        char[] chars = new char[length];
+        int count = 0;
+        for (int i = offset + 3, end = i + length; i < end; ) {
+            int c = b[i++] & 0xFF;
+            if (c < 0x80) {
+                chars[count++] = (char) c;
+            } else if (c < 0xE0) {
+                chars[count++] = (char) (((c & 0x1F) << 6) | (b[i++] & 0x3F));
+            } else {
+                chars[count++] = (char) (((c & 0x0F) << 12) | ((b[i++] & 0x3F) << 6) | (b[i++] & 0x3F));
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    /**
+     * Read the internal name of the Class constant referenced at the given offset.
+     */
+    public String readClass(int offset) {
+        int index = readUnsignedShort(b, offset);
+        return index == 0 ? null : readUtf8(readUnsignedShort(b, cpOffsets[index] + 1));
+    }
+
+    /**
+     * @return the bytecode length of each method with a body, by its name followed by its descriptor
+     */
+    public Map<String, Integer> readCodeLengths() {
+        Map<String, Integer> codeLengths = readCodeOffsets();
+        for (val method : codeLengths.entrySet()) {
+            method.setValue(readInt(b, method.getValue() - 4));
+        }
+        return codeLengths;
+    }
+
+    /**
+     * @return the offset of the bytecode of each method with a body, right after its 4 bytes length,
+     * by its name followed by its descriptor
+     */
+    public Map<String, Integer> readCodeOffsets() {
+        Map<String, Integer> codeOffsets = new LinkedHashMap<String, Integer>();
+        int offset = getMethodsOffset();
+        int count = readUnsignedShort(b, offset);
+        offset += 2;
+        for (int i = 0; i < count; ++i) {
+            int attributes = readUnsignedShort(b, offset + 6);
+            int attribute = offset + 8;
+            for (int j = 0; j < attributes; ++j) {
+                // name, length, max stack, max locals, code length, code
+                if (utf8Equals(readUnsignedShort(b, attribute), CODE)) {
+                    String name = readUtf8(readUnsignedShort(b, offset + 2));
+                    codeOffsets.put(name + readUtf8(readUnsignedShort(b, offset + 4)), attribute + 14);
+                }
+                attribute += 6 + readInt(b, attribute + 2);
+            }
+            offset = attribute;
+        }
+        return codeOffsets;
+    }
+
+    /**
+     * @return the value of the 4 bytes long method attribute named by the given (ASCII) bytes,
+     * by the name followed by the descriptor of each method having it
+     */
+    public Map<String, Integer> readMethodIntAttributes(byte[] ascii) {
+        Map<String, Integer> values = new LinkedHashMap<String, Integer>();
+        int offset = getMethodsOffset();
+        int count = readUnsignedShort(b, offset);
+        offset += 2;
+        for (int i = 0; i < count; ++i) {
+            int attributes = readUnsignedShort(b, offset + 6);
+            int attribute = offset + 8;
+            for (int j = 0; j < attributes; ++j) {
+                if (readInt(b, attribute + 2) == 4 && utf8Equals(readUnsignedShort(b, attribute), ascii)) {
+                    String name = readUtf8(readUnsignedShort(b, offset + 2));
+                    values.put(name + readUtf8(readUnsignedShort(b, offset + 4)), readInt(b, attribute + 6));
+                }
+                attribute += 6 + readInt(b, attribute + 2);
+            }
+            offset = attribute;
+        }
+        return values;
+    }
+
+    /**
+     * @return the internal names of the annotations of the class, visible at runtime or not
+     */
+    public List<String> readClassAnnotations() {
+        val annotations = new ArrayList<String>();
+        readAnnotations(getAttributesOffset(), annotations);
+        return annotations;
+    }
+
+    /**
+     * @return the internal names of the annotations of each annotated method, by its name followed by its descriptor
+     */
+    public Map<String, List<String>> readMethodAnnotations() {
+        Map<String, List<String>> methodAnnotations = new LinkedHashMap<String, List<String>>();
+        int offset = getMethodsOffset();
+        int count = readUnsignedShort(b, offset);
+        offset += 2;
+        for (int i = 0; i < count; ++i) {
+            val annotations = new ArrayList<String>();
+            readAnnotations(offset + 6, annotations);
+            if (!annotations.isEmpty()) {
+                String name = readUtf8(readUnsignedShort(b, offset + 2));
+                methodAnnotations.put(name + readUtf8(readUnsignedShort(b, offset + 4)), annotations);
+            }
+            offset = skipAttributes(offset + 6);
+        }
+        return methodAnnotations;
+    }
+
+    /**
+     * Collect the annotation types of the annotations attributes in an attributes table starting with its count item.
+     */
+    private void readAnnotations(int offset, List<String> annotations) {
+        int count = readUnsignedShort(b, offset);
+        offset += 2;
+        for (int i = 0; i < count; ++i) {
+            int nameIndex = readUnsignedShort(b, offset);
+            if (utf8Equals(nameIndex, RUNTIME_VISIBLE_ANNOTATIONS) || utf8Equals(nameIndex, RUNTIME_INVISIBLE_ANNOTATIONS)) {
+                int annotation = offset + 8;
+                for (int j = readUnsignedShort(b, offset + 6); j > 0; --j) {
+                    String desc = readUtf8(readUnsignedShort(b, annotation));
+                    annotations.add(desc.substring(1, desc.length() - 1));
+                    annotation = skipAnnotation(annotation);
+                }
+            }
+            offset += 6 + readInt(b, offset + 2);
+        }
+    }
+
+    // type, pairs count, then each pair name and its element value
+    private int skipAnnotation(int offset) {
+        int pairs = readUnsignedShort(b, offset + 2);
+        offset += 4;
+        for (int i = 0; i < pairs; ++i) {
+            offset = skipElementValue(offset + 2);
+        }
+        return offset;
+    }
+
+    private int skipElementValue(int offset) {
+        switch (b[offset]) {
+            case 'e': // enum type and constant names
+                return offset + 5;
+            case '@':
+                return skipAnnotation(offset + 1);
+            case '[':
+                int values = readUnsignedShort(b, offset + 1);
+                offset += 3;
+                for (int i = 0; i < values; ++i) {
+                    offset = skipElementValue(offset);
+                }
+                return offset;
+            default: // a constant or a class
+                return offset + 3;
+        }
+    }
+
+    public int readUnsignedShort(int offset) {
+        return readUnsignedShort(b, offset);
+    }
+
+    public static int readUnsignedShort(byte[] b, int offset) {
+        return ((b[offset] & 0xFF) << 8) | (b[offset + 1] & 0xFF);
+    }
+
+    public static int readInt(byte[] b, int offset) {
+        return ((b[offset] & 0xFF) << 24) | ((b[offset + 1] & 0xFF) << 16)
+                | ((b[offset + 2] & 0xFF) << 8) | (b[offset + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,61 @@
+package com.github.bingoohuang.blackcat.maven.classfile;
+
+import com.github.bingoohuang.blackcat.maven.instrument.MethodSelector;
+
+/**
+ * Rejects the classes with nothing to instrument from their header and method table only,
+ * before the class is handed to the weaver for a full ASM parse.
+ */
+public class ClassPreFilter {
+    public static final int ACC_INTERFACE = 0x0200;
+    public static final int ACC_ABSTRACT = 0x0400;
+    public static final int ACC_SYNTHETIC = 0x1000;
+    public static final int ACC_ANNOTATION = 0x2000;
+    public static final int ACC_ENUM = 0x4000;
+    public static final int ACC_BRIDGE = 0x0040;
+    public static final int ACC_NATIVE = 0x0100;
+
+    /**
+     * @param reader   the class to check
+     * @param selector the methods the matched rules select
+     * @return the reason to skip the class, or {@code null} when it may have methods to instrument
+     */
+    public static String reject(ClassFileReader reader, MethodSelector selector) {
+        int access = reader.getAccess();
+        if ((access & ACC_ANNOTATION) != 0) return "annotation";
+        if ((access & ACC_INTERFACE) != 0) return "interface";
+        if ((access & ACC_ENUM) != 0) return "enum";
+        if ((access & ACC_SYNTHETIC) != 0) return "synthetic";
+
+        String className = reader.getClassName();
+        if (className.endsWith("/package-info") || className.equals("package-info")
+                || className.equals("module-info")) return "package-info";
+
+        return hasSelectedMethod(reader, selector) ? null : "no selected method";
+    }
+
+    private static boolean hasSelectedMethod(ClassFileReader reader, MethodSelector selector) {
+        int offset = reader.getMethodsOffset();
+        int count = reader.readUnsignedShort(offset);
+        offset += 2;
+        for (int i = 0; i < count; ++i) {
+            int access = reader.readUnsignedShort(offset);
+            if (isCandidate(access)) {
+                String name = reader.readUtf8(reader.readUnsignedShort(offset + 2));
+                if (!"<clinit>".equals(name)
+                        && selector.isSelected(name, reader.readUtf8(reader.readUnsignedShort(offset + 4)))) {
+                    return true;
+                }
+            }
+            offset = reader.skipAttributes(offset + 6);
+        }
+        return false;
+    }
+
+    /**
+     * Check whether a method with the given access flags has a body worth a probe.
+     */
+    public static boolean isCandidate(int methodAccess) {
+        return (methodAccess & (ACC_ABSTRACT | ACC_NATIVE | ACC_SYNTHETIC | ACC_BRIDGE)) == 0;
+    }
+}
@@ -0,0 +1,84 @@
+package com.github.bingoohuang.blackcat.maven.classfile;
+
+import com.google.common.base.Charsets;
+import lombok.val;
+
+/**
+ * Stamps instrumented classes with an empty {@value #ATTRIBUTE} class attribute, which the JVM
+ * ignores, so that classes which are already woven are recognized by a scan of the class attributes.
+ */
+public class InstrumentedMarker {
+    public static final String ATTRIBUTE = "BlackcatInstrumented";
+    private static final byte[] ATTRIBUTE_BYTES = ATTRIBUTE.getBytes(Charsets.US_ASCII);
+
+    public static boolean isMarked(byte[] b) {
+        return isMarked(new ClassFileReader(b));
+    }
+
+    public static boolean isMarked(byte[] b, int length) {
+        return isMarked(new ClassFileReader(b, length));
+    }
+
+    public static boolean isMarked(ClassFileReader reader) {
+        return reader.hasClassAttribute(ATTRIBUTE_BYTES);
+    }
+
+    /**
+     * Append the marker attribute to the class attributes, and its name to the constant pool unless
+     * the pool already holds it, like a string constant of the same value.
+     *
+     * @return the stamped class bytes
+     * @throws IllegalArgumentException when the constant pool is full, as an unmarked class would be woven again
+     */
+    public static byte[] mark(byte[] b) {
+        val reader = new ClassFileReader(b);
+        int cpCount = reader.getConstantPoolCount();
+        int nameIndex = findName(reader);
+        if (nameIndex == 0 && cpCount >= 0xFFFF) {
+            throw new IllegalArgumentException("the constant pool of " + reader.getClassName()
+                    + " is full, it cannot be marked as instrumented, exclude it from the rules");
+        }
+
+        int poolEnd = reader.getHeader();
+        int attributesOffset = reader.getAttributesOffset();
+        int utf8Length = nameIndex == 0 ? 3 + ATTRIBUTE_BYTES.length : 0;
+        val result = new byte[b.length + utf8Length + 6];
+
+        System.arraycopy(b, 0, result, 0, poolEnd);
+        if (nameIndex == 0) {
+            nameIndex = cpCount;
+            writeShort(result, 8, cpCount + 1);
+            result[poolEnd] = 1;
+            writeShort(result, poolEnd + 1, ATTRIBUTE_BYTES.length);
+            System.arraycopy(ATTRIBUTE_BYTES, 0, result, poolEnd + 3, ATTRIBUTE_BYTES.length);
+        }
+
+        int offset = poolEnd + utf8Length;
+        System.arraycopy(b, poolEnd, result, offset, attributesOffset - poolEnd);
+        offset += attributesOffset - poolEnd;
+
+        int attributesCount = ClassFileReader.readUnsignedShort(b, attributesOffset);
+        writeShort(result, offset, attributesCount + 1);
+        System.arraycopy(b, attributesOffset + 2, result, offset + 2, b.length - attributesOffset - 2);
+        offset += b.length - attributesOffset;
+
+        writeShort(result, offset, nameIndex); // attribute_name_index
+        // attribute_length stays 0
+        return result;
+    }
+
+    /**
+     * @return the index of the Utf8 constant of the marker name, 0 when there is none
+     */
+    private static int findName(ClassFileReader reader) {
+        for (int i = 1, count = reader.getConstantPoolCount(); i < count; ++i) {
+            if (reader.utf8Equals(i, ATTRIBUTE_BYTES)) return i;
+        }
+        return 0;
+    }
+
+    private static void writeShort(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >>> 8);
+        b[offset + 1] = (byte) value;
+    }
+}
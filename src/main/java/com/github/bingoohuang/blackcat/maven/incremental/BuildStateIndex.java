@@ -0,0 +1,155 @@
+package com.github.bingoohuang.blackcat.maven.incremental;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.TypeReference;
+import com.alibaba.fastjson.serializer.SerializerFeature;
+import com.github.bingoohuang.blackcat.maven.classfile.ClassFileIO;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import lombok.SneakyThrows;
+import lombok.val;
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Persistent index of the classes processed by the previous builds, used to skip the
+ * classes which are unchanged and were processed with the same include/exclude rules.
+ * <p>The pristine bytes of every instrumented class are kept beside the index, so that
+ * a class can be re-woven from scratch when the rules matching it have been changed.
+ */
+public class BuildStateIndex {
+    private static final String INDEX_FILE = "instrument-index.json";
+    private static final String ORIGINALS_DIR = "originals";
+
+    private final File indexFile;
+    private final File originalsDir;
+    private final Log log;
+    private final ConcurrentMap<String, ClassState> states = new ConcurrentHashMap<String, ClassState>();
+    private final Set<String> seen = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private BuildStateIndex(File stateDirectory, Log log) {
+        this.indexFile = new File(stateDirectory, INDEX_FILE);
+        this.originalsDir = new File(stateDirectory, ORIGINALS_DIR);
+        this.log = log;
+    }
+
+    public static BuildStateIndex load(File stateDirectory, Log log) {
+        val index = new BuildStateIndex(stateDirectory, log);
+        if (!index.indexFile.isFile()) return index;
+
+        try {
+            String json = Files.toString(index.indexFile, Charsets.UTF_8);
+            Map<String, ClassState> saved = JSON.parseObject(json, new TypeReference<Map<String, ClassState>>() {
+            });
+            if (saved != null) index.states.putAll(saved);
+        } catch (Exception e) {
+            log.warn("Unreadable instrument index " + index.indexFile + ", all classes will be processed", e);
+        }
+        return index;
+    }
+
+    /**
+     * Check whether the class is unchanged since the last build and matched by the same rules.
+     * <p>When only the rules have changed for an instrumented class, its original bytes are
+     * restored, so that the caller can process it again as a freshly compiled class.
+     */
+    @SneakyThrows
+    public boolean isUpToDate(File source, String srcRelativePath, String rules) {
+        seen.add(srcRelativePath);
+        val state = states.get(srcRelativePath);
+        if (state == null) return false;
+
+        if (isUnchanged(state, source)) {
+            if (state.getRules().equals(rules)) return true;
+
+            if (state.isInstrumented()) {
+                val original = new File(originalsDir, srcRelativePath);
+                if (!original.isFile()) {
+                    log.warn("Original bytes of " + srcRelativePath + " are missing, recompile to apply the changed rules");
+                    return true;
+                }
+                ClassFileIO.write(source, Files.toByteArray(original));
+            }
+        }
+
+        // forget the class until it is recorded again, so a failed build processes it next time
+        states.remove(srcRelativePath);
+        return false;
+    }
+
+    /**
+     * Keep the original bytes of a class which is going to be overwritten by its instrumented bytes.
+     */
+    public void backup(String srcRelativePath, byte[] original) throws IOException {
+        val file = new File(originalsDir, srcRelativePath);
+        Files.createParentDirs(file);
+        ClassFileIO.write(file, original);
+    }
+
+    public void record(File source, String srcRelativePath, String rules,
+                       byte[] content, boolean instrumented) {
+        record(source, srcRelativePath, rules, content, content.length, instrumented);
+    }
+
+    public void record(File source, String srcRelativePath, String rules,
+                       byte[] content, int length, boolean instrumented) {
+        val state = new ClassState();
+        state.setPath(srcRelativePath);
+        state.setSize(source.length());
+        state.setMtime(source.lastModified());
+        state.setHash(hash(content, length));
+        state.setRules(rules);
+        state.setInstrumented(instrumented);
+        states.put(srcRelativePath, state);
+    }
+
+    /**
+     * Drop the classes which are not seen by this build, either because they are deleted or
+     * because the include rules do not match them anymore. In the latter case their
+     * original bytes are restored.
+     */
+    @SneakyThrows
+    public void removeUnseen(File sourceDir) {
+        for (val state : states.values()) {
+            String path = state.getPath();
+            if (seen.contains(path)) continue;
+
+            states.remove(path);
+            val source = new File(sourceDir, path);
+            val original = new File(originalsDir, path);
+            if (state.isInstrumented() && original.isFile() && isUnchanged(state, source)) {
+                ClassFileIO.write(source, Files.toByteArray(original));
+                log.info("Restore uninstrumented class:" + path);
+            }
+            original.delete();
+        }
+    }
+
+    @SneakyThrows
+    public void save() {
+        Files.createParentDirs(indexFile);
+        val sorted = new TreeMap<String, ClassState>(states);
+        Files.write(JSON.toJSONString(sorted, SerializerFeature.PrettyFormat), indexFile, Charsets.UTF_8);
+    }
+
+    private boolean isUnchanged(ClassState state, File source) throws IOException {
+        if (!source.isFile() || source.length() != state.getSize()) return false;
+        if (source.lastModified() == state.getMtime()) return true;
+
+        val buffer = ClassFileIO.read(source);
+        return hash(buffer.array(), buffer.limit()).equals(state.getHash());
+    }
+
+    private static String hash(byte[] content, int length) {
+        return Hashing.murmur3_128().hashBytes(content, 0, length).toString();
+    }
+}
@@ -0,0 +1,13 @@
+package com.github.bingoohuang.blackcat.maven.incremental;
+
+import lombok.Data;
+
+@Data
+public class ClassState {
+    private String path;
+    private long size;
+    private long mtime;
+    private String hash;
+    private String rules;
+    private boolean instrumented;
+}
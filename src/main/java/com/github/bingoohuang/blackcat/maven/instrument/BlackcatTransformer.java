@@ -1,13 +1,14 @@
 package com.github.bingoohuang.blackcat.maven.instrument;
 
 import com.alibaba.fastjson.JSON;
-import com.github.bingoohuang.blackcat.instrument.instrument.BlackcatInstrument;
+import com.github.bingoohuang.blackcat.maven.cache.TransformedClassCache;
+import com.github.bingoohuang.blackcat.maven.classfile.ClassFileIO;
+import com.github.bingoohuang.blackcat.maven.classfile.ClassFileReader;
+import com.github.bingoohuang.blackcat.maven.classfile.ClassPreFilter;
+import com.github.bingoohuang.blackcat.maven.classfile.InstrumentedMarker;
+import com.github.bingoohuang.blackcat.maven.incremental.BuildStateIndex;
 import com.github.bingoohuang.blackcat.maven.scan.InstrumentSourceScanner;
-import com.github.bingoohuang.blackcat.maven.utils.AntPathMatcher;
-import com.google.common.base.Strings;
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Multimap;
-import com.google.common.io.Files;
+import lombok.Setter;
 import lombok.SneakyThrows;
 import lombok.val;
 import org.apache.maven.plugin.logging.Log;
@@ -15,89 +16,505 @@ import org.apache.maven.plugin.logging.SystemStreamLog;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Set;
-
-import static com.google.common.collect.Sets.newHashSet;
-import static java.util.Collections.EMPTY_SET;
-import static java.util.Collections.singleton;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class BlackcatTransformer {
-    static final AntPathMatcher matcher = new AntPathMatcher();
-    static final Log log = new SystemStreamLog();
+    private final Log log;
+    private ClassWeaver weaver = new ClassWeaver();
+    private int threads = WorkerPools.resolveThreads(0);
+    @Setter private BuildStateIndex buildState;
+    @Setter private File reportFile;
+    @Setter private int sampleRate = 1;
+    private String thresholdReporter;
+    private String methodIdReporter;
+    private InlinePolicy inlinePolicy = InlinePolicy.NONE;
+    private ClassHierarchy classHierarchy;
+    private File buildCacheDirectory;
+    private long buildCacheMaxBytes;
+    private boolean buildCacheHardLinks;
+
+    public BlackcatTransformer() {
+        this(new SystemStreamLog());
+    }
+
+    public BlackcatTransformer(Log log) {
+        this.log = log;
+    }
+
+    /**
+     * Set the number of worker threads, a non-positive value means the number of available processors.
+     */
+    public void setThreads(int threads) {
+        this.threads = WorkerPools.resolveThreads(threads);
+    }
+
+    /**
+     * Set the reporter method of the threshold rules, like {@code com.foo.Probes.slow}.
+     */
+    public void setThresholdReporter(String thresholdReporter) {
+        this.thresholdReporter = thresholdReporter;
+        this.weaver = new ClassWeaver(thresholdReporter, methodIdReporter, inlinePolicy, classHierarchy);
+    }
 
+    /**
+     * Set the reporter method taking the dense ID of a probed method and the elapsed nanos,
+     * like {@code com.foo.Probes.timed}, and write the {@link MethodIdTable} of each directory.
+     */
+    public void setMethodIdReporter(String methodIdReporter) {
+        this.methodIdReporter = methodIdReporter;
+        this.weaver = new ClassWeaver(thresholdReporter, methodIdReporter, inlinePolicy, classHierarchy);
+    }
+
+    /**
+     * Set the policy keeping the probes out of the small methods the JIT would inline.
+     */
+    public void setInlinePolicy(InlinePolicy inlinePolicy) {
+        this.inlinePolicy = inlinePolicy;
+        this.weaver = new ClassWeaver(thresholdReporter, methodIdReporter, inlinePolicy, classHierarchy);
+    }
+
+    /**
+     * Compute the stack map frames of the probed classes again, resolving the common superclasses
+     * from the given compile classpath instead of loading the classes.
+     */
+    public void setClassHierarchy(ClassHierarchy classHierarchy) {
+        this.classHierarchy = classHierarchy;
+        this.weaver = new ClassWeaver(thresholdReporter, methodIdReporter, inlinePolicy, classHierarchy);
+    }
+
+    /**
+     * Reuse the classes woven by the previous builds, from a local directory kept under the given size
+     * by evicting the least recently used classes at the end of each run.
+     *
+     * @param hardLinks hard link the cached classes into the output directory instead of copying them
+     */
+    public void setBuildCache(File directory, long maxBytes, boolean hardLinks) {
+        this.buildCacheDirectory = directory;
+        this.buildCacheMaxBytes = maxBytes;
+        this.buildCacheHardLinks = hardLinks;
+    }
+
+    /**
+     * Compile the rules with the options of this transformer.
+     */
+    public InstrumentRules compileRules(Set<String> srcIncludes, Set<String> srcExcludes) {
+        return compileRules(Collections.<File>emptyList(), srcIncludes, srcExcludes);
+    }
+
+    /**
+     * Compile the rules with the options of this transformer, indexing the classes of the directories
+     * first when the rules select classes by annotation or supertype, or methods by annotation.
+     */
     @SneakyThrows
-    public void instrument(File sourceDir,
-                           Set<String> srcIncludes,
-                           Set<String> srcExcludes) {
-        val incSet = srcIncludes.isEmpty() ? singleton("*") : srcIncludes;
-        val includes = parseSources(incSet);
-        val excSet = srcExcludes == null ? (Set<String>) EMPTY_SET : srcExcludes;
-        val excludes = parseSources(excSet);
-
-        val sourceBasePath = sourceDir.getCanonicalPath() + "/";
-        val scanner = new InstrumentSourceScanner(includes.keySet(), EMPTY_SET);
-        val sources = scanner.getIncludedSources(sourceDir, null);
-        for (val source : sources) {
-            processSource(includes, excludes, sourceBasePath, source);
-        }
-    }
-
-    private void processSource(Multimap<String, String> includes,
-                               Multimap<String, String> excludes,
-                               String sourceBasePath,
-                               File source) throws IOException {
-        String canonicalPath = source.getCanonicalPath();
-        int srcBasePathLen = sourceBasePath.length();
-        String srcRelativePath = canonicalPath.substring(srcBasePathLen);
+    public InstrumentRules compileRules(List<File> directories, Set<String> srcIncludes, Set<String> srcExcludes) {
+        ClassIndex classIndex = null;
+        if (!directories.isEmpty() && InstrumentRules.needsIndex(srcIncludes, srcExcludes)) {
+            long start = System.nanoTime();
+            classIndex = ClassIndex.build(directories, threads);
+            log.info("Indexed " + classIndex.size() + " class(es) in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        }
+        return compileRules(classIndex, srcIncludes, srcExcludes);
+    }
+
+    /**
+     * Compile the rules with the options of this transformer against the classes already indexed,
+     * like after a {@link ClassIndex#update} of the changed classes.
+     */
+    public InstrumentRules compileRules(ClassIndex classIndex, Set<String> srcIncludes, Set<String> srcExcludes) {
+        val rules = new InstrumentRules(srcIncludes, srcExcludes, sampleRate, classIndex);
+        weaver.checkRules(rules);
+        return rules;
+    }
+
+    /**
+     * @return the counters of this run
+     */
+    public InstrumentStats instrument(File sourceDir,
+                                      Set<String> srcIncludes,
+                                      Set<String> srcExcludes) {
+        return instrument(Collections.singletonList(new SourceRoot(sourceDir, buildState)), srcIncludes, srcExcludes);
+    }
+
+    /**
+     * Instrument several directories in one pass, sharing the rules and the workers.
+     *
+     * @return the counters of this run
+     */
+    public InstrumentStats instrument(List<SourceRoot> roots,
+                                      Set<String> srcIncludes,
+                                      Set<String> srcExcludes) {
+        val directories = new ArrayList<File>(roots.size());
+        for (val root : roots) directories.add(root.getDirectory());
+        return instrument(roots, compileRules(directories, srcIncludes, srcExcludes));
+    }
+
+    /**
+     * Instrument several directories in one pass with rules already {@link #compileRules compiled}.
+     *
+     * @return the counters of this run
+     */
+    public InstrumentStats instrument(List<SourceRoot> roots, InstrumentRules rules) {
+        return run(roots, rules, null);
+    }
+
+    /**
+     * Run the instrument pipeline as a dry run, weaving the classes in memory only:
+     * no class, build state nor report is written.
+     *
+     * @return the rule matches and the estimated impact of the instrumentation
+     */
+    public InstrumentAnalysis analyze(File sourceDir, Set<String> srcIncludes, Set<String> srcExcludes) {
+        val rules = compileRules(Collections.singletonList(sourceDir), srcIncludes, srcExcludes);
+        val analysis = new InstrumentAnalysis(rules);
+        run(Collections.singletonList(new SourceRoot(sourceDir, null)), rules, analysis);
+        return analysis;
+    }
 
-        Set<String> includesSet = newHashSet();
-        for (String includeKey : includes.keySet()) {
-            if (!matcher.match(includeKey, srcRelativePath)) continue;
+    @SneakyThrows
+    private InstrumentStats run(List<SourceRoot> roots, InstrumentRules rules, InstrumentAnalysis analysis) {
+        val stats = new InstrumentStats();
+        val buildCache = analysis == null ? newBuildCache() : null;
+
+        val scanner = new InstrumentSourceScanner(rules);
+        val runs = new ArrayList<RootRun>(roots.size());
+        val batch = new WorkerBatch(rules, stats, threads);
+        Map<String, Throwable> failures;
+        try {
+            // the workers start on the first classes found while the directories are still walked
+            long start = System.nanoTime();
+            for (val root : roots) {
+                final RootRun run = new RootRun(root, analysis, buildCache, weaverSalt(),
+                        analysis == null ? loadMethodIds(root) : null);
+                runs.add(run);
+                scanner.scan(root.getDirectory(), new InstrumentSourceScanner.SourceHandler() {
+                    @Override public void handle(File source) {
+                        batch.submit(run, source);
+                    }
+                });
+            }
+            stats.time(InstrumentStats.Phase.SCAN, System.nanoTime() - start);
 
-            includesSet.addAll(includes.get(includeKey));
+            failures = batch.await();
+        } finally {
+            batch.shutdown();
         }
+        evict(buildCache);
+        stats.directoryPruningCaches(rules.getMatcher());
 
-        Set<String> excludesSet = newHashSet();
-        for (String excludeKey : excludes.keySet()) {
-            if (!matcher.match(excludeKey, srcRelativePath)) continue;
+        if (analysis != null) {
+            stats.finish();
+            log.info("Dry run: " + stats.summary());
+            for (val failure : failures.entrySet()) {
+                analysis.failed(failure.getKey(), failure.getValue());
+            }
+            return stats;
+        }
 
-            if (excludes.containsEntry(excludeKey, "*")) return;
-            excludesSet.addAll(excludes.get(excludeKey));
+        val sourceDirs = new ArrayList<File>(runs.size());
+        for (val run : runs) {
+            File sourceDir = run.root.getDirectory();
+            sourceDirs.add(sourceDir);
+            val buildState = run.root.getBuildState();
+            if (buildState != null) {
+                buildState.removeUnseen(sourceDir);
+                buildState.save();
+            }
+            writeMethodIds(run);
         }
 
-        doInstrument(source, srcRelativePath, includesSet, excludesSet);
+        stats.finish();
+        if (reportFile != null) stats.writeReport(reportFile, sourceDirs, threads);
+        log.info(stats.summary());
+        if (failures.isEmpty()) return stats;
+
+        logFailures(failures);
+        throw new InstrumentException(failures);
     }
 
-    private void doInstrument(File source,
-                              String srcRelativePath,
-                              Set<String> includesSet,
-                              Set<String> excludesSet)
+    /**
+     * Instrument only some class files of a root, like the watch goal does after each change.
+     * The failures are logged, not thrown.
+     *
+     * @return the counters of this run
+     */
+    @SneakyThrows
+    public InstrumentStats instrumentChanged(SourceRoot root, InstrumentRules rules, Collection<File> classFiles) {
+        val stats = new InstrumentStats();
+        val buildCache = newBuildCache();
+        val run = new RootRun(root, null, buildCache, weaverSalt(), loadMethodIds(root));
+        val sources = new ArrayList<File>();
+        for (val classFile : classFiles) {
+            if (!classFile.isFile()) continue;
+
+            String srcRelativePath = classFile.getCanonicalPath().substring(run.basePath.length());
+            if (rules.isIncluded(srcRelativePath)) sources.add(classFile);
+        }
+
+        val batch = new WorkerBatch(rules, stats, Math.min(threads, Math.max(1, sources.size())));
+        Map<String, Throwable> failures;
+        try {
+            for (val source : sources) batch.submit(run, source);
+            failures = batch.await();
+        } finally {
+            batch.shutdown();
+        }
+        evict(buildCache);
+        if (root.getBuildState() != null) root.getBuildState().save();
+        writeMethodIds(run);
+
+        stats.finish();
+        logFailures(failures);
+        return stats;
+    }
+
+    private TransformedClassCache newBuildCache() {
+        // the method IDs depend on the other classes of the directory
+        if (buildCacheDirectory == null || weaver.isMethodIds()) return null;
+
+        val cache = new TransformedClassCache(buildCacheDirectory, weaverSalt());
+        cache.setHardLinks(buildCacheHardLinks);
+        return cache;
+    }
+
+    /**
+     * @return what the woven bytes depend on besides the class and its rules
+     */
+    private String weaverSalt() {
+        return TransformedClassCache.salt(thresholdReporter, methodIdReporter, inlinePolicy, classHierarchy != null);
+    }
+
+    private MethodIdTable loadMethodIds(SourceRoot root) {
+        return weaver.isMethodIds() ? MethodIdTable.load(root.getDirectory()) : null;
+    }
+
+    private void writeMethodIds(RootRun run) {
+        if (run.methodIds == null) return;
+
+        File directory = run.root.getDirectory();
+        int ids = run.methodIds.write(directory, log);
+        log.info("Wrote " + ids + " method id(s) to " + new File(directory, MethodIdTable.MANIFEST));
+    }
+
+    private void evict(TransformedClassCache buildCache) {
+        if (buildCache == null) return;
+
+        int evicted = buildCache.evict(buildCacheMaxBytes);
+        if (evicted > 0) log.info("Evicted " + evicted + " class(es) from the build cache " + buildCacheDirectory);
+    }
+
+    private void logFailures(Map<String, Throwable> failures) {
+        for (val failure : failures.entrySet()) {
+            log.error("Instrument class failed:" + failure.getKey(), failure.getValue());
+        }
+    }
+
+    private String processSource(InstrumentRules rules,
+                                 InstrumentStats stats,
+                                 RootRun run,
+                                 File source) throws IOException {
+        String canonicalPath = source.getCanonicalPath();
+        String srcRelativePath = canonicalPath.substring(run.basePath.length());
+        val buildState = run.root.getBuildState();
+
+        stats.seen();
+        long start = System.nanoTime();
+        val match = rules.match(srcRelativePath);
+        stats.time(InstrumentStats.Phase.MATCH, System.nanoTime() - start);
+        if (run.analysis != null) run.analysis.matched(srcRelativePath);
+        if (buildState != null && buildState.isUpToDate(source, srcRelativePath, run.stateRules(match))) {
+            stats.upToDate();
+            return null;
+        }
+
+        if (match.isExcluded()) {
+            stats.excluded();
+            if (buildState != null) {
+                val buffer = ClassFileIO.read(source);
+                buildState.record(source, srcRelativePath, run.stateRules(match), buffer.array(), buffer.limit(), false);
+            }
+            return null;
+        }
+
+        return doInstrument(source, srcRelativePath, stats, run, match);
+    }
+
+    private String doInstrument(File source,
+                                String srcRelativePath,
+                                InstrumentStats stats,
+                                RootRun run,
+                                InstrumentRules.RuleMatch match)
             throws IOException {
-        byte[] classfileBuffer = Files.toByteArray(source);
-        val blackcatInst = new BlackcatInstrument(classfileBuffer);
-        val result = blackcatInst.modifyClass();
-        if (result.x) {
-            Files.write(result.y, source);
-            log.info("Instrument class:" + srcRelativePath
-                    + ", include:" + JSON.toJSONString(includesSet)
-                    + ", exclude:" + JSON.toJSONString(excludesSet));
+        String stateRules = run.stateRules(match);
+        val buildState = run.root.getBuildState();
+        long start = System.nanoTime();
+        val buffer = ClassFileIO.read(source);
+        stats.time(InstrumentStats.Phase.READ, System.nanoTime() - start);
+        val reader = new ClassFileReader(buffer.array(), buffer.limit());
+        if (InstrumentedMarker.isMarked(reader)) {
+            stats.alreadyInstrumented();
+            if (run.methodIds != null) run.methodIds.touch(reader.getClassName());
+            if (buildState != null) {
+                buildState.record(source, srcRelativePath, stateRules, buffer.array(), buffer.limit(), true);
+            }
+            log.debug("Skip already instrumented class:" + srcRelativePath);
+            return null;
         }
+
+        val selector = match.newMethodSelector();
+        start = System.nanoTime();
+        String rejected = ClassPreFilter.reject(reader, selector);
+        stats.time(InstrumentStats.Phase.PRE_FILTER, System.nanoTime() - start);
+        if (rejected != null) {
+            stats.preFiltered();
+            if (buildState != null) {
+                buildState.record(source, srcRelativePath, stateRules, buffer.array(), buffer.limit(), false);
+            }
+            log.debug("Skip class:" + srcRelativePath + ", " + rejected);
+            return null;
+        }
+
+        val buildCache = run.buildCache;
+        String cacheKey = null;
+        byte[] cached = null;
+        if (buildCache != null) {
+            cacheKey = buildCache.key(buffer.array(), buffer.limit(), match.getRules());
+            cached = buildCache.get(cacheKey);
+            // an entry hard linked then rewritten in place by a compiler is not instrumented anymore
+            if (cached != null && cached.length > 0 && !InstrumentedMarker.isMarked(new ClassFileReader(cached))) {
+                cached = null;
+            }
+            stats.buildCache(cached != null);
+        }
+
+        // only the classes handed to the weaver get an array of their own
+        byte[] classfileBuffer = ClassFileIO.toByteArray(buffer);
+
+        byte[] instrumented;
+        if (cached != null) {
+            instrumented = cached.length == 0 ? null : cached;
+            for (val skipped : buildCache.getSkipped(cacheKey).entrySet()) {
+                int paren = skipped.getKey().indexOf('(');
+                selector.skip(skipped.getKey().substring(0, paren), skipped.getKey().substring(paren), skipped.getValue());
+            }
+        } else {
+            start = System.nanoTime();
+            instrumented = weaver.weave(classfileBuffer, selector, run.methodIds);
+            stats.transform(srcRelativePath, System.nanoTime() - start);
+            if (buildCache != null) buildCache.put(cacheKey, instrumented, selector.getSkipped());
+        }
+        if (!selector.getSkipped().isEmpty()) {
+            stats.inlineSkipped(reader.getClassName().replace('/', '.'), selector.getSkipped());
+        }
+        if (instrumented == null) {
+            if (buildState != null) {
+                buildState.record(source, srcRelativePath, stateRules, classfileBuffer, false);
+            }
+            return null;
+        }
+
+        if (run.analysis != null) {
+            stats.instrumented(classfileBuffer.length, instrumented.length);
+            run.analysis.woven(srcRelativePath, classfileBuffer, instrumented, selector);
+            return null;
+        }
+
+        start = System.nanoTime();
+        if (buildState != null) buildState.backup(srcRelativePath, classfileBuffer);
+        if (cached != null) buildCache.copyTo(cacheKey, source);
+        else ClassFileIO.write(source, instrumented);
+        stats.time(InstrumentStats.Phase.WRITE, System.nanoTime() - start);
+        stats.instrumented(classfileBuffer.length, instrumented.length);
+        if (buildState != null) buildState.record(source, srcRelativePath, stateRules, instrumented, true);
+
+        // the per-class line is only built for the debug log, it is costly on big modules
+        if (!log.isDebugEnabled()) return null;
+        return "Instrument class:" + srcRelativePath
+                + ", include:" + JSON.toJSONString(match.getIncludesSet())
+                + ", exclude:" + JSON.toJSONString(match.getExcludesSet());
     }
 
-    private Multimap<String, String> parseSources(Set<String> sources) {
-        Multimap<String, String> result = HashMultimap.create();
-        for (String source : sources) {
-            String[] split = source.split(":");
-            if (Strings.isNullOrEmpty(split[0])) continue;
+    /**
+     * The classes handed to the workers as they come, whose results are collected in the same order.
+     */
+    private class WorkerBatch {
+        final InstrumentRules rules;
+        final InstrumentStats stats;
+        final ExecutorService pool;
+        final List<File> sources = new ArrayList<File>();
+        final List<Future<String>> futures = new ArrayList<Future<String>>();
+
+        WorkerBatch(InstrumentRules rules, InstrumentStats stats, int threads) {
+            this.rules = rules;
+            this.stats = stats;
+            this.pool = WorkerPools.newWorkerPool(threads);
+        }
 
-            String key = split[0].replaceAll("\\.", "/")
-                    + ("*".equals(split[0]) || split[0].endsWith("/*")
-                    ? "*/*" : "") + ".class";
-            String value = split.length < 2 ? "*" : split[1];
+        void submit(final RootRun run, final File source) {
+            sources.add(source);
+            futures.add(pool.submit(new Callable<String>() {
+                @Override public String call() throws Exception {
+                    return processSource(rules, stats, run, source);
+                }
+            }));
+        }
 
-            result.put(key, value);
+        /**
+         * @return the failures by class file path
+         */
+        Map<String, Throwable> await() throws InterruptedException {
+            val failures = new LinkedHashMap<String, Throwable>();
+            for (int i = 0; i < futures.size(); ++i) {
+                try {
+                    String message = futures.get(i).get();
+                    if (message != null) log.debug(message);
+                } catch (ExecutionException e) {
+                    stats.failed();
+                    failures.put(sources.get(i).getPath(), e.getCause());
+                }
+            }
+            return failures;
         }
 
-        return result;
+        void shutdown() {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * The state of one source root during a run.
+     */
+    private static class RootRun {
+        final SourceRoot root;
+        final String basePath;
+        // set on a dry run, which records into it instead of writing the classes
+        final InstrumentAnalysis analysis;
+        final TransformedClassCache buildCache;
+        final String weaverSalt;
+        // set when the probed methods report their IDs, except on a dry run
+        final MethodIdTable methodIds;
+
+        RootRun(SourceRoot root, InstrumentAnalysis analysis, TransformedClassCache buildCache,
+                String weaverSalt, MethodIdTable methodIds) throws IOException {
+            this.root = root;
+            this.analysis = analysis;
+            this.buildCache = buildCache;
+            this.weaverSalt = weaverSalt;
+            this.methodIds = methodIds;
+            this.basePath = root.getDirectory().getCanonicalPath() + "/";
+        }
+
+        /**
+         * The rules recorded in the build state, with the weaver options, so that changing an option
+         * weaves the unchanged classes again.
+         */
+        String stateRules(InstrumentRules.RuleMatch match) {
+            return match.getRules() + ";" + weaverSalt;
+        }
     }
 }
@@ -0,0 +1,263 @@
+package com.github.bingoohuang.blackcat.maven.instrument;
+
+import com.github.bingoohuang.blackcat.maven.classfile.ClassFileReader;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Uninterruptibles;
+import lombok.SneakyThrows;
+import lombok.Value;
+import lombok.val;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.ZipFile;
+
+/**
+ * The superclasses of the classes of a compile classpath, read from the class file headers in the
+ * directories and jars without loading any class, to compute the stack map frames of the woven classes
+ * whatever the class loader of the plugin sees.
+ * <p>The classpath elements are listed in parallel, and the headers are read on demand into a
+ * concurrent cache. The classes missing from the classpath, like the JDK ones, are read as resources
+ * of the parent of the system class loader.
+ */
+public class ClassHierarchy implements Closeable {
+    public static final String OBJECT = "java/lang/Object";
+
+    private static final ClassLoader JDK_CLASSES = ClassLoader.getSystemClassLoader().getParent();
+
+    // the first element of the classpath holding a class wins, like for a class loader
+    private final Map<String, ClassSource> index = new HashMap<String, ClassSource>();
+    private final List<ClassSource> sources;
+    private final ConcurrentMap<String, ClassHeader> headers = new ConcurrentHashMap<String, ClassHeader>();
+
+    @Value
+    public static class ClassHeader {
+        int access;
+        String superName;
+
+        public boolean isInterface() {
+            return (access & Opcodes.ACC_INTERFACE) != 0;
+        }
+    }
+
+    private ClassHierarchy(List<ClassSource> sources) {
+        this.sources = sources;
+        for (val source : sources) {
+            for (val name : source.names) {
+                if (!index.containsKey(name)) index.put(name, source);
+            }
+        }
+    }
+
+    /**
+     * List the classes of the directories and jars of a classpath, one worker per element.
+     * The missing elements are ignored.
+     *
+     * @param threads the number of workers, a non-positive value means the number of available processors
+     */
+    public static ClassHierarchy build(List<File> classpath, int threads) throws IOException {
+        val pool = WorkerPools.newWorkerPool(Math.min(WorkerPools.resolveThreads(threads), classpath.size()));
+        val futures = new ArrayList<Future<ClassSource>>(classpath.size());
+        try {
+            for (final File element : classpath) {
+                futures.add(pool.submit(new Callable<ClassSource>() {
+                    @Override public ClassSource call() throws IOException {
+                        return open(element);
+                    }
+                }));
+            }
+
+            val sources = new ArrayList<ClassSource>(classpath.size());
+            try {
+                for (val future : futures) {
+                    ClassSource source = getUninterruptibly(future);
+                    if (source != null) sources.add(source);
+                }
+            } catch (IOException e) {
+                for (val future : futures) closeQuietly(future);
+                throw e;
+            }
+            return new ClassHierarchy(sources);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static ClassSource open(File element) throws IOException {
+        if (element.isDirectory()) return new DirectorySource(element);
+        if (element.isFile()) return new JarSource(new ZipFile(element));
+        return null;
+    }
+
+    private static ClassSource getUninterruptibly(Future<ClassSource> future) throws IOException {
+        try {
+            return Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static void closeQuietly(Future<ClassSource> future) {
+        try {
+            ClassSource source = getUninterruptibly(future);
+            if (source != null) source.close();
+        } catch (IOException e) {
+            // already reported by the first failure
+        }
+    }
+
+    /**
+     * @return the number of classes found on the classpath
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * The common superclass of two classes, as {@link ClassWriter#getCommonSuperClass} defines it,
+     * except that an interface gives {@value #OBJECT}, which the verifier accepts for any interface.
+     *
+     * @throws TypeNotPresentException when a class is neither on the classpath nor in the JDK
+     */
+    public String getCommonSuperClass(String type1, String type2) {
+        if (type1.equals(type2)) return type1;
+        if (getHeader(type1).isInterface() || getHeader(type2).isInterface()) return OBJECT;
+
+        val supers = new HashSet<String>();
+        for (String type = type1; type != null; type = getHeader(type).getSuperName()) {
+            supers.add(type);
+        }
+        for (String type = type2; type != null; type = getHeader(type).getSuperName()) {
+            if (supers.contains(type)) return type;
+        }
+        return OBJECT;
+    }
+
+    /**
+     * @param internalName a class name like {@code java/lang/String}
+     */
+    public ClassHeader getHeader(String internalName) {
+        ClassHeader header = headers.get(internalName);
+        if (header != null) return header;
+
+        byte[] bytes = readClass(internalName);
+        if (bytes == null) throw new TypeNotPresentException(internalName.replace('/', '.'), null);
+
+        val reader = new ClassFileReader(bytes);
+        header = new ClassHeader(reader.getAccess(), reader.getSuperName());
+        ClassHeader previous = headers.putIfAbsent(internalName, header);
+        return previous == null ? header : previous;
+    }
+
+    @SneakyThrows
+    private byte[] readClass(String internalName) {
+        val source = index.get(internalName);
+        if (source != null) return source.read(internalName);
+
+        try (InputStream in = JDK_CLASSES.getResourceAsStream(internalName + ".class")) {
+            return in == null ? null : ByteStreams.toByteArray(in);
+        }
+    }
+
+    /**
+     * Compute the stack map frames of a class again, resolving the common superclasses with this hierarchy.
+     *
+     * @return the class with the new frames, or the same bytes for a class older than Java 6,
+     * which has no frames
+     */
+    public byte[] computeFrames(byte[] classfileBuffer) {
+        val reader = new ClassReader(classfileBuffer);
+        if (reader.readUnsignedShort(6) < Opcodes.V1_6) return classfileBuffer;
+
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES) {
+            @Override protected String getCommonSuperClass(String type1, String type2) {
+                return ClassHierarchy.this.getCommonSuperClass(type1, type2);
+            }
+        };
+        reader.accept(writer, ClassReader.SKIP_FRAMES);
+        return writer.toByteArray();
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (val source : sources) {
+            try {
+                source.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    private static abstract class ClassSource implements Closeable {
+        final Set<String> names = new HashSet<String>();
+
+        abstract byte[] read(String internalName) throws IOException;
+
+        @Override public void close() throws IOException {
+        }
+    }
+
+    private static class DirectorySource extends ClassSource {
+        private final File directory;
+
+        DirectorySource(File directory) throws IOException {
+            this.directory = directory;
+            final Path root = directory.toPath();
+            Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+                    new SimpleFileVisitor<Path>() {
+                        @Override public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                            String path = root.relativize(file).toString().replace(File.separatorChar, '/');
+                            if (path.endsWith(".class")) names.add(path.substring(0, path.length() - 6));
+                            return FileVisitResult.CONTINUE;
+                        }
+                    });
+        }
+
+        // not through the buffer of ClassFileIO, which the worker weaving the class is still using
+        @Override byte[] read(String internalName) throws IOException {
+            return Files.readAllBytes(new File(directory, internalName + ".class").toPath());
+        }
+    }
+
+    private static class JarSource extends ClassSource {
+        private final ZipFile jar;
+
+        JarSource(ZipFile jar) {
+            this.jar = jar;
+            val entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                String path = entries.nextElement().getName();
+                // the versioned classes of a multi-release jar share the hierarchy of the base ones
+                if (path.endsWith(".class") && !path.startsWith("META-INF/")) {
+                    names.add(path.substring(0, path.length() - 6));
+                }
+            }
+        }
+
+        @Override byte[] read(String internalName) throws IOException {
+            try (InputStream in = jar.getInputStream(jar.getEntry(internalName + ".class"))) {
+                return ByteStreams.toByteArray(in);
+            }
+        }
+
+        @Override public void close() throws IOException {
+            jar.close();
+        }
+    }
+}
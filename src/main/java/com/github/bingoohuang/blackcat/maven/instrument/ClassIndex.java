@@ -0,0 +1,168 @@
+package com.github.bingoohuang.blackcat.maven.instrument;
+
+import com.github.bingoohuang.blackcat.maven.classfile.ClassFileIO;
+import com.github.bingoohuang.blackcat.maven.classfile.ClassFileReader;
+import com.google.common.util.concurrent.Uninterruptibles;
+import lombok.Value;
+import lombok.val;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The annotations and the direct supertypes of the classes of the output directories, read in one
+ * parallel pass over the class file headers, so that the annotation and supertype rules are evaluated
+ * against the index instead of parsing each class again.
+ * <p>The supertypes of a class are resolved transitively through the indexed classes only,
+ * a supertype out of the output directories is known by its name but not by its own supertypes.
+ */
+public class ClassIndex {
+    private final ConcurrentMap<String, IndexedClass> classes = new ConcurrentHashMap<String, IndexedClass>();
+    private final ConcurrentMap<String, Set<String>> supertypes = new ConcurrentHashMap<String, Set<String>>();
+
+    @Value
+    public static class IndexedClass {
+        String superName;
+        List<String> interfaces;
+        List<String> annotations;
+        /**
+         * The annotations of the annotated methods, by their name followed by their descriptor.
+         */
+        Map<String, List<String>> methodAnnotations;
+    }
+
+    /**
+     * Index the class files of the directories, one task per class.
+     *
+     * @param threads the number of workers, a non-positive value means the number of available processors
+     */
+    public static ClassIndex build(List<File> directories, int threads) throws IOException {
+        final ClassIndex index = new ClassIndex();
+        val pool = WorkerPools.newWorkerPool(WorkerPools.resolveThreads(threads));
+        final List<Future<?>> futures = new ArrayList<Future<?>>();
+        try {
+            for (val directory : directories) {
+                if (!directory.isDirectory()) continue;
+
+                Files.walkFileTree(directory.toPath(), EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+                        new SimpleFileVisitor<Path>() {
+                            @Override public FileVisitResult visitFile(final Path file, BasicFileAttributes attrs) {
+                                if (!file.getFileName().toString().endsWith(".class")) return FileVisitResult.CONTINUE;
+
+                                futures.add(pool.submit(new Callable<Void>() {
+                                    @Override public Void call() throws IOException {
+                                        index.add(file.toFile());
+                                        return null;
+                                    }
+                                }));
+                                return FileVisitResult.CONTINUE;
+                            }
+                        });
+            }
+            for (val future : futures) {
+                try {
+                    Uninterruptibles.getUninterruptibly(future);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                    throw new IOException(e.getCause());
+                }
+            }
+            return index;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Index again the changed class files of a directory, instead of building the index anew.
+     *
+     * @param classFiles the changed class files, which may be deleted since
+     */
+    public void update(File directory, Collection<File> classFiles) throws IOException {
+        String basePath = directory.getCanonicalPath() + File.separator;
+        for (val classFile : classFiles) {
+            String path = classFile.getCanonicalPath();
+            if (!path.startsWith(basePath) || !path.endsWith(".class")) continue;
+
+            // a deleted or a half written class is left out until written again
+            String className = path.substring(basePath.length(), path.length() - ".class".length());
+            classes.remove(className.replace(File.separatorChar, '/'));
+            if (classFile.isFile()) add(classFile);
+        }
+        // the supertypes of the subclasses of a changed class change too
+        supertypes.clear();
+    }
+
+    private void add(File classFile) throws IOException {
+        val buffer = ClassFileIO.read(classFile);
+        ClassFileReader reader;
+        try {
+            reader = new ClassFileReader(buffer.array(), buffer.limit());
+        } catch (IllegalArgumentException e) {
+            return; // not a class file, which the instrument pass reports
+        }
+
+        Map<String, List<String>> methodAnnotations = reader.readMethodAnnotations();
+        classes.put(reader.getClassName(), new IndexedClass(reader.getSuperName(),
+                Arrays.asList(reader.getInterfaces()), reader.readClassAnnotations(),
+                methodAnnotations.isEmpty() ? Collections.<String, List<String>>emptyMap() : methodAnnotations));
+    }
+
+    /**
+     * @return the internal names of the indexed classes
+     */
+    public Set<String> getClassNames() {
+        return classes.keySet();
+    }
+
+    public int size() {
+        return classes.size();
+    }
+
+    /**
+     * @param annotation the internal name of the annotation type
+     */
+    public boolean isAnnotated(String className, String annotation) {
+        val indexed = classes.get(className);
+        return indexed != null && indexed.getAnnotations().contains(annotation);
+    }
+
+    /**
+     * @return the superclasses and the interfaces of a class, direct or not, by their internal names
+     */
+    public Set<String> getSupertypes(String className) {
+        Set<String> types = supertypes.get(className);
+        if (types != null) return types;
+
+        types = new HashSet<String>();
+        val pending = new ArrayDeque<String>();
+        pending.add(className);
+        while (!pending.isEmpty()) {
+            val indexed = classes.get(pending.poll());
+            if (indexed == null) continue;
+
+            if (indexed.getSuperName() != null && types.add(indexed.getSuperName())) pending.add(indexed.getSuperName());
+            for (val type : indexed.getInterfaces()) {
+                if (types.add(type)) pending.add(type);
+            }
+        }
+        Set<String> previous = supertypes.putIfAbsent(className, types);
+        return previous == null ? types : previous;
+    }
+
+    /**
+     * @return the annotations of the annotated methods of a class, by their name followed by their descriptor
+     */
+    public Map<String, List<String>> getMethodAnnotations(String className) {
+        val indexed = classes.get(className);
+        return indexed == null ? Collections.<String, List<String>>emptyMap() : indexed.getMethodAnnotations();
+    }
+}
@@ -0,0 +1,141 @@
+package com.github.bingoohuang.blackcat.maven.instrument;
+
+import com.github.bingoohuang.blackcat.instrument.instrument.BlackcatInstrument;
+import com.github.bingoohuang.blackcat.maven.classfile.ClassFileReader;
+import com.github.bingoohuang.blackcat.maven.classfile.InstrumentedMarker;
+import lombok.val;
+
+/**
+ * Weaves the probes into the bytes of one class, wherever the bytes come from.
+ */
+public class ClassWeaver {
+    private final ThresholdWeaver thresholdWeaver;
+    private final InlinePolicy inlinePolicy;
+    private final ClassHierarchy classHierarchy;
+
+    public ClassWeaver() {
+        this(null);
+    }
+
+    /**
+     * @param thresholdReporter the reporter method of the threshold rules, like {@code com.foo.Probes.slow}
+     */
+    public ClassWeaver(String thresholdReporter) {
+        this(thresholdReporter, InlinePolicy.NONE);
+    }
+
+    public ClassWeaver(String thresholdReporter, InlinePolicy inlinePolicy) {
+        this(thresholdReporter, inlinePolicy, null);
+    }
+
+    /**
+     * @param classHierarchy the classes of the compile classpath to compute the stack map frames
+     *                       of the probed classes again with, or {@code null} to keep the frames as woven
+     */
+    public ClassWeaver(String thresholdReporter, InlinePolicy inlinePolicy, ClassHierarchy classHierarchy) {
+        this(thresholdReporter, null, inlinePolicy, classHierarchy);
+    }
+
+    /**
+     * @param methodIdReporter the reporter method taking the ID of a probed method and the elapsed nanos,
+     *                         like {@code com.foo.Probes.timed}, which replaces the probes of
+     *                         {@code BlackcatInstrument}, or {@code null} to keep them
+     */
+    public ClassWeaver(String thresholdReporter, String methodIdReporter,
+                       InlinePolicy inlinePolicy, ClassHierarchy classHierarchy) {
+        this.thresholdWeaver = thresholdReporter == null && methodIdReporter == null
+                ? null : new ThresholdWeaver(thresholdReporter, methodIdReporter);
+        this.inlinePolicy = inlinePolicy;
+        this.classHierarchy = classHierarchy;
+    }
+
+    /**
+     * Whether the probed methods report their dense IDs, which are then allocated from a {@link MethodIdTable}.
+     */
+    public boolean isMethodIds() {
+        return thresholdWeaver != null && thresholdWeaver.hasMethodIdReporter();
+    }
+
+    /**
+     * Fail fast when the rules need something this weaver is not configured with.
+     */
+    public void checkRules(InstrumentRules rules) {
+        if (rules.hasThresholds() && (thresholdWeaver == null || !thresholdWeaver.hasReporter())) {
+            throw new IllegalArgumentException("thresholdReporter is required by the threshold rules");
+        }
+    }
+
+    /**
+     * @param classfileBuffer the original class bytes, not yet instrumented
+     * @param selector        the methods selected by the matched rules, where the methods left out
+     *                        by the inline policy are {@link MethodSelector#skip skipped}
+     * @return the instrumented and marked class bytes, or {@code null} when nothing is woven
+     */
+    public byte[] weave(byte[] classfileBuffer, MethodSelector selector) {
+        return weave(classfileBuffer, selector, null);
+    }
+
+    /**
+     * @param methodIds the table to allocate the IDs of the probed methods from when {@link #isMethodIds},
+     *                  or {@code null} for IDs of this class only
+     */
+    public byte[] weave(byte[] classfileBuffer, MethodSelector selector, MethodIdTable methodIds) {
+        if (methodIds == null && isMethodIds()) methodIds = new MethodIdTable();
+        if (!inlinePolicy.isEnabled()) return doWeave(classfileBuffer, selector, methodIds);
+
+        val originalSizes = new ClassFileReader(classfileBuffer).readCodeLengths();
+        for (val method : originalSizes.entrySet()) {
+            skipIf(selector, method.getKey(), inlinePolicy.rejectOriginal(method.getValue()));
+        }
+
+        byte[] woven = doWeave(classfileBuffer, selector, methodIds);
+        if (woven == null || !inlinePolicy.isProtectInlining()) return woven;
+
+        // a probe only grows its own method, so weaving again without the crossing methods is enough
+        val wovenReader = new ClassFileReader(woven);
+        int skipped = selector.getSkipped().size();
+        for (val method : wovenReader.readCodeLengths().entrySet()) {
+            Integer originalSize = originalSizes.get(method.getKey());
+            if (originalSize == null) continue; // the copies of the original bodies
+
+            if (skipIf(selector, method.getKey(), inlinePolicy.rejectWoven(originalSize, method.getValue()))
+                    && methodIds != null) {
+                methodIds.release(wovenReader.getClassName(), method.getKey());
+            }
+        }
+        return selector.getSkipped().size() == skipped ? woven : doWeave(classfileBuffer, selector, methodIds);
+    }
+
+    private static boolean skipIf(MethodSelector selector, String nameAndDesc, String reason) {
+        if (reason == null) return false;
+
+        int paren = nameAndDesc.indexOf('(');
+        String name = nameAndDesc.substring(0, paren), desc = nameAndDesc.substring(paren);
+        if (!selector.isSelected(name, desc)) return false;
+
+        selector.skip(name, desc, reason);
+        return true;
+    }
+
+    private byte[] doWeave(byte[] classfileBuffer, MethodSelector selector, MethodIdTable methodIds) {
+        // the method id wrappers replace the probes of BlackcatInstrument
+        byte[] woven = isMethodIds() ? null : probe(classfileBuffer, selector);
+        if (thresholdWeaver != null) {
+            byte[] timed = thresholdWeaver.weave(woven == null ? classfileBuffer : woven, selector, methodIds);
+            if (timed != null) woven = timed;
+        }
+        if (woven == null) return null;
+
+        return InstrumentedMarker.mark(SamplingWeaver.sample(classfileBuffer, woven, selector));
+    }
+
+    private byte[] probe(byte[] classfileBuffer, MethodSelector selector) {
+        val blackcatInst = new BlackcatInstrument(classfileBuffer);
+        val result = blackcatInst.modifyClass();
+        if (!result.x) return null;
+
+        byte[] woven = MethodFilter.filter(classfileBuffer, result.y, selector);
+        // the threshold and sampling weavers keep the frames they are given valid, so only the probes need it
+        return classHierarchy == null ? woven : classHierarchy.computeFrames(woven);
+    }
+}
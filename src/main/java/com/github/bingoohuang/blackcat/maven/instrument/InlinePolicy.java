@@ -0,0 +1,54 @@
+package com.github.bingoohuang.blackcat.maven.instrument;
+
+import lombok.Value;
+
+/**
+ * Keeps the probes out of the small methods the JIT would inline: a probe pushing a method over
+ * the HotSpot {@code MaxInlineSize} (35 bytes) or {@code FreqInlineSize} (325 bytes) bytecode limits
+ * stops it from being inlined, which costs more than the probe measures.
+ * <p>The sizes are the bytecode lengths of the method bodies, before and after weaving.
+ */
+@Value
+public class InlinePolicy {
+    public static final int MAX_INLINE_SIZE = 35;
+    public static final int FREQ_INLINE_SIZE = 325;
+    public static final InlinePolicy NONE = new InlinePolicy(0, false, MAX_INLINE_SIZE, FREQ_INLINE_SIZE);
+
+    /**
+     * Methods with less bytecode than this are never woven, 0 to weave them all.
+     */
+    int minMethodSize;
+    /**
+     * Whether to skip the methods whose woven bytecode would cross one of the inline limits.
+     */
+    boolean protectInlining;
+    int maxInlineSize;
+    int freqInlineSize;
+
+    public boolean isEnabled() {
+        return minMethodSize > 0 || protectInlining;
+    }
+
+    /**
+     * @return why a method with this much bytecode is not woven, or {@code null} to weave it
+     */
+    public String rejectOriginal(int codeSize) {
+        if (codeSize >= minMethodSize) return null;
+
+        return codeSize + " bytes, under minMethodSize " + minMethodSize;
+    }
+
+    /**
+     * @return the inline limit crossed by weaving a method, as the reason to skip it, or {@code null}
+     */
+    public String rejectWoven(int originalSize, int wovenSize) {
+        if (!protectInlining) return null;
+        if (originalSize <= maxInlineSize && wovenSize > maxInlineSize) {
+            return originalSize + " -> " + wovenSize + " bytes, over MaxInlineSize " + maxInlineSize;
+        }
+        if (originalSize <= freqInlineSize && wovenSize > freqInlineSize) {
+            return originalSize + " -> " + wovenSize + " bytes, over FreqInlineSize " + freqInlineSize;
+        }
+        return null;
+    }
+}
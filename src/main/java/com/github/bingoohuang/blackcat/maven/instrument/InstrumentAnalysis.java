@@ -0,0 +1,195 @@
+package com.github.bingoohuang.blackcat.maven.instrument;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.serializer.SerializerFeature;
+import com.github.bingoohuang.blackcat.maven.classfile.ClassFileReader;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import lombok.SneakyThrows;
+import lombok.val;
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The outcome of a dry run, where the classes are woven in memory only: how many classes each rule
+ * matches, and the probes and the size the instrumentation would add, per package.
+ * <p>It also collects the woven methods whose code comes close to the 64 KB limit of the JVM,
+ * which a few more probes or a bigger method would then break.
+ */
+public class InstrumentAnalysis {
+    public static final int CODE_LIMIT = 65535;
+    public static final int CODE_WARNING = CODE_LIMIT * 9 / 10;
+
+    private final InstrumentRules rules;
+    // all the rules are put upfront, so that the rules matching nothing are reported too
+    private final Map<String, AtomicLong> ruleMatches = new LinkedHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, PackageImpact> packages = new ConcurrentSkipListMap<String, PackageImpact>();
+    private final ConcurrentMap<String, Integer> largeMethods = new ConcurrentSkipListMap<String, Integer>();
+    private final ConcurrentMap<String, String> inlineSkipped = new ConcurrentSkipListMap<String, String>();
+    private final ConcurrentMap<String, String> failures = new ConcurrentSkipListMap<String, String>();
+
+    public InstrumentAnalysis(InstrumentRules rules) {
+        this.rules = rules;
+        for (val name : rules.getRuleNames()) {
+            ruleMatches.put(name, new AtomicLong());
+        }
+    }
+
+    public void matched(String srcRelativePath) {
+        for (val name : rules.matchRuleNames(srcRelativePath)) {
+            ruleMatches.get(name).incrementAndGet();
+        }
+    }
+
+    public void woven(String srcRelativePath, byte[] original, byte[] woven, MethodSelector selector) {
+        val reader = new ClassFileReader(woven);
+        int probes = countProbes(new ClassFileReader(original), original, reader, woven);
+
+        int slash = srcRelativePath.lastIndexOf('/');
+        String packageName = slash < 0 ? "" : srcRelativePath.substring(0, slash).replace('/', '.');
+        PackageImpact impact = packages.get(packageName);
+        if (impact == null) {
+            val created = new PackageImpact();
+            impact = packages.putIfAbsent(packageName, created);
+            if (impact == null) impact = created;
+        }
+        impact.add(probes, original.length, woven.length);
+
+        collectLargeMethods(reader);
+        for (val skipped : selector.getSkipped().entrySet()) {
+            inlineSkipped.put(reader.getClassName().replace('/', '.') + "." + skipped.getKey(), skipped.getValue());
+        }
+    }
+
+    public void failed(String path, Throwable e) {
+        failures.put(path, String.valueOf(e));
+    }
+
+    /**
+     * @return the number of methods whose bytecode the weavers changed, the methods left out by the
+     * method rules or the inline policy getting their original bytecode back
+     */
+    static int countProbes(ClassFileReader originalReader, byte[] original, ClassFileReader wovenReader, byte[] woven) {
+        val originalCodes = originalReader.readCodeOffsets();
+        int probes = 0;
+        for (val method : wovenReader.readCodeOffsets().entrySet()) {
+            Integer originalOffset = originalCodes.get(method.getKey());
+            if (originalOffset == null) continue; // the copies of the original or woven bodies
+
+            if (!sameCode(original, originalOffset, woven, method.getValue())) ++probes;
+        }
+        return probes;
+    }
+
+    private static boolean sameCode(byte[] original, int originalOffset, byte[] woven, int wovenOffset) {
+        int length = ClassFileReader.readInt(original, originalOffset - 4);
+        if (length != ClassFileReader.readInt(woven, wovenOffset - 4)) return false;
+
+        for (int i = 0; i < length; ++i) {
+            if (original[originalOffset + i] != woven[wovenOffset + i]) return false;
+        }
+        return true;
+    }
+
+    private void collectLargeMethods(ClassFileReader reader) {
+        String className = reader.getClassName().replace('/', '.');
+        for (val method : reader.readCodeLengths().entrySet()) {
+            if (method.getValue() >= CODE_WARNING) largeMethods.put(className + "." + method.getKey(), method.getValue());
+        }
+    }
+
+    public void logSummary(Log log) {
+        for (val rule : ruleMatches.entrySet()) {
+            if (rule.getValue().get() == 0) log.warn("Rule " + rule.getKey() + " matches no class");
+            else log.info("Rule " + rule.getKey() + " matches " + rule.getValue() + " class(es)");
+        }
+
+        val total = new PackageImpact();
+        for (val packageImpact : packages.entrySet()) {
+            val impact = packageImpact.getValue();
+            total.add(impact);
+            log.info("Package " + packageImpact.getKey() + ": " + impact);
+        }
+        log.info("Would instrument " + total);
+
+        for (val method : largeMethods.entrySet()) {
+            log.warn("Method " + method.getKey() + " would have " + method.getValue()
+                    + " bytes of code, close to the limit of " + CODE_LIMIT);
+        }
+        if (!inlineSkipped.isEmpty()) log.info("Would skip " + inlineSkipped.size() + " method(s) to keep them inlinable");
+        for (val failure : failures.entrySet()) {
+            log.warn("Instrument class would fail:" + failure.getKey() + ", " + failure.getValue());
+        }
+    }
+
+    @SneakyThrows
+    public void writeReport(File reportFile) {
+        val report = new LinkedHashMap<String, Object>();
+        val ruleList = new ArrayList<Map<String, Object>>();
+        for (val rule : ruleMatches.entrySet()) {
+            val entry = new LinkedHashMap<String, Object>();
+            entry.put("rule", rule.getKey());
+            entry.put("classes", rule.getValue().get());
+            ruleList.add(entry);
+        }
+        report.put("rules", ruleList);
+
+        val total = new PackageImpact();
+        val packageMap = new LinkedHashMap<String, Object>();
+        for (val packageImpact : packages.entrySet()) {
+            total.add(packageImpact.getValue());
+            packageMap.put(packageImpact.getKey(), packageImpact.getValue().toMap());
+        }
+        report.put("total", total.toMap());
+        report.put("packages", packageMap);
+        report.put("largeMethods", largeMethods);
+        report.put("inlineSkippedMethods", inlineSkipped);
+        report.put("failures", failures);
+
+        Files.createParentDirs(reportFile);
+        Files.write(JSON.toJSONString(report, SerializerFeature.PrettyFormat), reportFile, Charsets.UTF_8);
+    }
+
+    private static class PackageImpact {
+        final AtomicLong classes = new AtomicLong();
+        final AtomicLong probes = new AtomicLong();
+        final AtomicLong bytesBefore = new AtomicLong();
+        final AtomicLong bytesAfter = new AtomicLong();
+
+        void add(long probeCount, long sizeBefore, long sizeAfter) {
+            classes.incrementAndGet();
+            probes.addAndGet(probeCount);
+            bytesBefore.addAndGet(sizeBefore);
+            bytesAfter.addAndGet(sizeAfter);
+        }
+
+        void add(PackageImpact other) {
+            classes.addAndGet(other.classes.get());
+            probes.addAndGet(other.probes.get());
+            bytesBefore.addAndGet(other.bytesBefore.get());
+            bytesAfter.addAndGet(other.bytesAfter.get());
+        }
+
+        Map<String, Object> toMap() {
+            val map = new LinkedHashMap<String, Object>();
+            map.put("classes", classes.get());
+            map.put("probes", probes.get());
+            map.put("bytesBefore", bytesBefore.get());
+            map.put("bytesAfter", bytesAfter.get());
+            map.put("bytesDelta", bytesAfter.get() - bytesBefore.get());
+            return map;
+        }
+
+        @Override public String toString() {
+            return classes + " class(es) with " + probes + " probe(s), " + bytesBefore + " -> " + bytesAfter
+                    + " bytes (+" + (bytesAfter.get() - bytesBefore.get()) + ")";
+        }
+    }
+}
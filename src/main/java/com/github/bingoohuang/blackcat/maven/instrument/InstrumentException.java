@@ -0,0 +1,19 @@
+package com.github.bingoohuang.blackcat.maven.instrument;
+
+import lombok.Getter;
+
+import java.util.Map;
+
+public class InstrumentException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    @Getter private final Map<String, Throwable> failures;
+
+    public InstrumentException(Map<String, Throwable> failures) {
+        super(failures.size() + " class(es) failed to instrument: " + failures.keySet());
+        this.failures = failures;
+        for (Throwable failure : failures.values()) {
+            addSuppressed(failure);
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package com.github.bingoohuang.blackcat.maven.instrument;
+
+import com.github.bingoohuang.blackcat.maven.utils.AntPathMatcher;
+import com.github.bingoohuang.blackcat.maven.utils.PatternTrie;
+import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.TreeMultimap;
+import lombok.Getter;
+import lombok.Value;
+import lombok.val;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static java.util.Collections.singleton;
+
+/**
+ * The include/exclude rules compiled once per build and shared by the scanner and the workers.
+ * <p>A rule is {@code pattern[:method][:option=value]}, where the pattern is a package/class path like
+ * {@code com.foo.Bar} or {@code com.foo.*}, and the method is a {@link MethodSelector} glob.
+ * The include rules may take {@link MethodOptions} for the methods they select, like
+ * {@code com.foo.Bar:get*:sample=1000} or {@code com.foo.Bar:*:threshold=5ms}.
+ * <p>The pattern may also be {@code @com.foo.Annotation} for the classes with that annotation, or
+ * {@code +com.foo.Supertype} for the classes extending or implementing that type, and the method
+ * may be {@code @com.foo.Annotation} for the methods with that annotation. These rules are evaluated
+ * against a {@link ClassIndex} of the classes.
+ */
+public class InstrumentRules {
+    @Getter private final Multimap<String, String> includes;
+    @Getter private final Multimap<String, String> excludes;
+    // "key:method" of the include rules with options
+    private final Map<String, MethodOptions> ruleOptions = new HashMap<String, MethodOptions>();
+    // the rules as written by their key, to tell which of them match a class
+    private final Multimap<String, String> includeSources = TreeMultimap.create();
+    private final Multimap<String, String> excludeSources = TreeMultimap.create();
+    private final int defaultSampleRate;
+    private final PatternTrie includeTrie;
+    private final PatternTrie excludeTrie;
+    @Getter private final AntPathMatcher matcher = new AntPathMatcher();
+    @Getter private final ClassIndex classIndex;
+    // the classes matched by the annotation and supertype rules, by their key
+    private final Map<String, Set<String>> indexMatches = new HashMap<String, Set<String>>();
+    // the directories holding a class matched by an annotation or supertype include rule
+    private final Set<String> indexDirectories = new HashSet<String>();
+
+    public InstrumentRules(Set<String> srcIncludes, Set<String> srcExcludes) {
+        this(srcIncludes, srcExcludes, 1);
+    }
+
+    /**
+     * @param defaultSampleRate report 1 in N calls of the methods without a sample option
+     */
+    public InstrumentRules(Set<String> srcIncludes, Set<String> srcExcludes, int defaultSampleRate) {
+        this(srcIncludes, srcExcludes, defaultSampleRate, null);
+    }
+
+    /**
+     * @param classIndex the index of the classes, required by the annotation and supertype rules
+     */
+    public InstrumentRules(Set<String> srcIncludes, Set<String> srcExcludes, int defaultSampleRate,
+                           ClassIndex classIndex) {
+        this.defaultSampleRate = Math.max(1, defaultSampleRate);
+        this.includes = parseSources(srcIncludes == null || srcIncludes.isEmpty() ? singleton("*") : srcIncludes,
+                ruleOptions, includeSources);
+        this.excludes = parseSources(srcExcludes == null ? new HashSet<String>() : srcExcludes, null, excludeSources);
+        this.includeTrie = new PatternTrie(patternKeys(includes.keySet()));
+        this.excludeTrie = new PatternTrie(patternKeys(excludes.keySet()));
+        this.classIndex = classIndex;
+
+        if (classIndex == null && needsIndex(includeSources.values(), excludeSources.values())) {
+            throw new IllegalArgumentException("the annotation and supertype rules need the classes to be indexed first");
+        }
+        matchIndex(includes.keySet(), true);
+        matchIndex(excludes.keySet(), false);
+    }
+
+    /**
+     * Whether any rule selects classes by annotation or supertype, or methods by annotation,
+     * so that the classes must be indexed before the rules are compiled.
+     */
+    public static boolean needsIndex(Collection<String> srcIncludes, Collection<String> srcExcludes) {
+        for (val sources : Arrays.asList(srcIncludes, srcExcludes)) {
+            if (sources == null) continue;
+
+            for (val source : sources) {
+                String[] split = source.split(":");
+                for (int i = 0; i < split.length; ++i) {
+                    if (split[i].startsWith("@") || i == 0 && split[i].startsWith("+")) return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isIndexKey(String key) {
+        return key.startsWith("@") || key.startsWith("+");
+    }
+
+    private static List<String> patternKeys(Set<String> keys) {
+        val patternKeys = new ArrayList<String>(keys.size());
+        for (val key : keys) {
+            if (!isIndexKey(key)) patternKeys.add(key);
+        }
+        return patternKeys;
+    }
+
+    private void matchIndex(Set<String> keys, boolean include) {
+        for (val key : keys) {
+            if (!isIndexKey(key)) continue;
+
+            String type = key.substring(1);
+            val paths = new HashSet<String>();
+            for (val className : classIndex.getClassNames()) {
+                boolean matched = key.charAt(0) == '@'
+                        ? classIndex.isAnnotated(className, type)
+                        : classIndex.getSupertypes(className).contains(type);
+                if (matched) paths.add(className + ".class");
+            }
+            indexMatches.put(key, paths);
+            if (!include) continue;
+
+            for (val path : paths) {
+                for (int slash = path.indexOf('/'); slash > 0; slash = path.indexOf('/', slash + 1)) {
+                    indexDirectories.add(path.substring(0, slash));
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether any include rule has a threshold option.
+     */
+    public boolean hasThresholds() {
+        for (MethodOptions options : ruleOptions.values()) {
+            if (options.getThresholdNanos() > 0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the include rules as written prefixed with {@code +}, then the exclude rules prefixed with {@code -}
+     */
+    public List<String> getRuleNames() {
+        val names = new ArrayList<String>();
+        for (val source : new TreeSet<String>(includeSources.values())) names.add("+" + source);
+        for (val source : new TreeSet<String>(excludeSources.values())) names.add("-" + source);
+        return names;
+    }
+
+    /**
+     * @return the names of the rules whose pattern matches the class, like in {@link #getRuleNames()}
+     */
+    public List<String> matchRuleNames(String srcRelativePath) {
+        val names = new ArrayList<String>();
+        for (val includeKey : matchKeys(includeTrie, includes, srcRelativePath)) {
+            for (val source : includeSources.get(includeKey)) names.add("+" + source);
+        }
+        for (val excludeKey : matchKeys(excludeTrie, excludes, srcRelativePath)) {
+            for (val source : excludeSources.get(excludeKey)) names.add("-" + source);
+        }
+        return names;
+    }
+
+    /**
+     * Whether any class under a directory may be included, to prune the directory walk.
+     *
+     * @param dirRelativePath the directory path relative to the output directory, like {@code com/foo}
+     */
+    public boolean mayIncludeDirectory(String dirRelativePath) {
+        for (String includeKey : includes.keySet()) {
+            if (isIndexKey(includeKey)) continue;
+            if (matcher.matchStart(includeKey, dirRelativePath)) return true;
+        }
+        return indexDirectories.contains(dirRelativePath);
+    }
+
+    public boolean isIncluded(String srcRelativePath) {
+        return includeTrie.matches(srcRelativePath) || !matchIndexKeys(includes, srcRelativePath).isEmpty();
+    }
+
+    /**
+     * @return the keys of the rules matching the class, the pattern ones then the annotation and supertype ones
+     */
+    private List<String> matchKeys(PatternTrie trie, Multimap<String, String> rules, String srcRelativePath) {
+        val keys = trie.match(srcRelativePath);
+        if (indexMatches.isEmpty()) return keys;
+
+        val matched = new ArrayList<String>(keys);
+        matched.addAll(matchIndexKeys(rules, srcRelativePath));
+        return matched;
+    }
+
+    private List<String> matchIndexKeys(Multimap<String, String> rules, String srcRelativePath) {
+        val keys = new ArrayList<String>();
+        for (val indexMatch : indexMatches.entrySet()) {
+            if (rules.containsKey(indexMatch.getKey()) && indexMatch.getValue().contains(srcRelativePath)) {
+                keys.add(indexMatch.getKey());
+            }
+        }
+        return keys;
+    }
+
+    public RuleMatch match(String srcRelativePath) {
+        Set<String> matchedRules = new TreeSet<String>();
+        Set<String> includesSet = new HashSet<String>();
+        Map<String, MethodOptions> matchedOptions = new HashMap<String, MethodOptions>();
+        for (String includeKey : matchKeys(includeTrie, includes, srcRelativePath)) {
+            Set<String> methods = new TreeSet<String>();
+            for (String method : includes.get(includeKey)) {
+                includesSet.add(method);
+                MethodOptions options = ruleOptions.get(includeKey + ":" + method);
+                if (options == null) {
+                    methods.add(method);
+                    continue;
+                }
+
+                MethodOptions matched = matchedOptions.get(method);
+                matchedOptions.put(method, matched == null ? options : matched.merge(options));
+                methods.add(method + options.signature());
+            }
+            matchedRules.add("+" + includeKey + ":" + methods);
+        }
+        if (defaultSampleRate > 1) matchedRules.add("sample=" + defaultSampleRate);
+
+        boolean excluded = false;
+        Set<String> excludesSet = new HashSet<String>();
+        for (String excludeKey : matchKeys(excludeTrie, excludes, srcRelativePath)) {
+            if (excludes.containsEntry(excludeKey, "*")) excluded = true;
+            excludesSet.addAll(excludes.get(excludeKey));
+            matchedRules.add("-" + excludeKey + ":" + new TreeSet<String>(excludes.get(excludeKey)));
+        }
+
+        Map<String, List<String>> methodAnnotations = classIndex == null ? Collections.<String, List<String>>emptyMap()
+                : classIndex.getMethodAnnotations(srcRelativePath.substring(0, srcRelativePath.length() - ".class".length()));
+        return new RuleMatch(includesSet, excludesSet, excluded, Joiner.on(',').join(matchedRules),
+                matchedOptions, defaultSampleRate, methodAnnotations);
+    }
+
+    private static Multimap<String, String> parseSources(Set<String> sources,
+                                                         Map<String, MethodOptions> ruleOptions,
+                                                         Multimap<String, String> keySources) {
+        Multimap<String, String> result = HashMultimap.create();
+        for (String source : sources) {
+            if (Strings.isNullOrEmpty(source)) continue;
+
+            String[] split = source.split(":");
+            if (split.length == 0 || split[0].isEmpty()) {
+                throw new IllegalArgumentException("missing class pattern in rule " + source);
+            }
+            if (isIndexKey(split[0]) && split[0].length() == 1) {
+                throw new IllegalArgumentException("missing type name in rule " + source);
+            }
+
+            String key = isIndexKey(split[0]) ? split[0].replace('.', '/') : split[0].replaceAll("\\.", "/")
+                    + ("*".equals(split[0]) || split[0].endsWith("/*")
+                    ? "*/*" : "") + ".class";
+            int optionsStart = split.length > 1 && split[1].indexOf('=') < 0 ? 2 : 1;
+            String value = optionsStart == 1 ? "*" : split[1].startsWith("@") ? split[1].replace('.', '/') : split[1];
+            if (value.isEmpty() || "@".equals(value)) {
+                throw new IllegalArgumentException("missing method selector in rule " + source);
+            }
+
+            result.put(key, value);
+            keySources.put(key, source);
+            if (optionsStart == split.length) continue;
+            if (ruleOptions == null) {
+                throw new IllegalArgumentException("options are only allowed on include rules: " + source);
+            }
+
+            MethodOptions options = MethodOptions.NONE;
+            for (int i = optionsStart; i < split.length; ++i) {
+                options = MethodOptions.parse(source, split[i], options);
+            }
+            // several rules may give options to the same selector, merge them whatever the order of the rules
+            MethodOptions previous = ruleOptions.get(key + ":" + value);
+            ruleOptions.put(key + ":" + value, previous == null ? options : previous.merge(options));
+        }
+
+        return result;
+    }
+
+    @Value
+    public static class RuleMatch {
+        Set<String> includesSet;
+        Set<String> excludesSet;
+        /**
+         * Whether the whole class is excluded by a rule without method part.
+         */
+        boolean excluded;
+        /**
+         * A stable description of the matched rules, to detect rule changes between builds.
+         */
+        String rules;
+        /**
+         * The options of the matched include method selectors which have some.
+         */
+        Map<String, MethodOptions> options;
+        int defaultSampleRate;
+        /**
+         * The annotations of the annotated methods of the class, for the method annotation selectors.
+         */
+        Map<String, List<String>> methodAnnotations;
+
+        public MethodSelector newMethodSelector() {
+            return new MethodSelector(includesSet, excludesSet, options, defaultSampleRate, methodAnnotations);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package com.github.bingoohuang.blackcat.maven.instrument;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.serializer.SerializerFeature;
+import com.github.bingoohuang.blackcat.maven.utils.AntPathMatcher;
+import com.google.common.cache.CacheStats;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import lombok.SneakyThrows;
+import lombok.val;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and phase timings of one instrument run, updated concurrently by the workers.
+ * <p>The phase times are summed over all the workers, so with several threads
+ * they may add up to more than the wall time of the run.
+ */
+public class InstrumentStats {
+    private static final int SLOWEST_LIMIT = 10;
+
+    public enum Phase {
+        SCAN, MATCH, READ, PRE_FILTER, TRANSFORM, WRITE
+    }
+
+    private final AtomicLongArray phaseNanos = new AtomicLongArray(Phase.values().length);
+    private final AtomicLong seen = new AtomicLong();
+    private final AtomicLong upToDate = new AtomicLong();
+    private final AtomicLong excluded = new AtomicLong();
+    private final AtomicLong alreadyInstrumented = new AtomicLong();
+    private final AtomicLong preFiltered = new AtomicLong();
+    private final AtomicLong transformed = new AtomicLong();
+    private final AtomicLong instrumented = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong bytesBefore = new AtomicLong();
+    private final AtomicLong bytesAfter = new AtomicLong();
+    private final AtomicLong buildCacheHits = new AtomicLong();
+    private final AtomicLong buildCacheMisses = new AtomicLong();
+    // the methods left out by the inline policy, with the reason
+    private final ConcurrentMap<String, String> inlineSkipped = new ConcurrentSkipListMap<String, String>();
+    // a min-heap on the transform time, the fastest of the slowest classes is evicted first
+    private final PriorityQueue<SlowClass> slowest = new PriorityQueue<SlowClass>(SLOWEST_LIMIT + 1);
+    private final long startNanos = System.nanoTime();
+    private long wallNanos;
+    // the AntPathMatcher caches only serve the matchStart pruning of the directories,
+    // the full matches of the class files go through the PatternTrie
+    private CacheStats tokenizedPatternCache;
+    private CacheStats stringMatcherCache;
+
+    public void time(Phase phase, long nanos) {
+        phaseNanos.addAndGet(phase.ordinal(), nanos);
+    }
+
+    public void seen() {
+        seen.incrementAndGet();
+    }
+
+    public void upToDate() {
+        upToDate.incrementAndGet();
+    }
+
+    public void excluded() {
+        excluded.incrementAndGet();
+    }
+
+    public void alreadyInstrumented() {
+        alreadyInstrumented.incrementAndGet();
+    }
+
+    public void preFiltered() {
+        preFiltered.incrementAndGet();
+    }
+
+    public void failed() {
+        failed.incrementAndGet();
+    }
+
+    public void transform(String className, long nanos) {
+        time(Phase.TRANSFORM, nanos);
+        transformed.incrementAndGet();
+
+        synchronized (slowest) {
+            slowest.add(new SlowClass(className, nanos));
+            if (slowest.size() > SLOWEST_LIMIT) slowest.poll();
+        }
+    }
+
+    public void instrumented(int sizeBefore, int sizeAfter) {
+        instrumented.incrementAndGet();
+        bytesBefore.addAndGet(sizeBefore);
+        bytesAfter.addAndGet(sizeAfter);
+    }
+
+    public void buildCache(boolean hit) {
+        (hit ? buildCacheHits : buildCacheMisses).incrementAndGet();
+    }
+
+    public void inlineSkipped(String className, Map<String, String> methods) {
+        for (val method : methods.entrySet()) {
+            inlineSkipped.put(className + "." + method.getKey(), method.getValue());
+        }
+    }
+
+    public void directoryPruningCaches(AntPathMatcher matcher) {
+        tokenizedPatternCache = matcher.getTokenizedPatternCacheStats();
+        stringMatcherCache = matcher.getStringMatcherCacheStats();
+    }
+
+    public void finish() {
+        wallNanos = System.nanoTime() - startNanos;
+    }
+
+    public long getPreFiltered() {
+        return preFiltered.get();
+    }
+
+    public long getInstrumented() {
+        return instrumented.get();
+    }
+
+    /**
+     * The estimated time saved by the pre-filter: the average transform time of the classes
+     * which went through the weaver, times the rejected classes, minus the pre-filter time.
+     */
+    public long getPreFilterSavedMillis() {
+        long count = transformed.get();
+        if (count == 0) return 0;
+
+        long average = phaseNanos.get(Phase.TRANSFORM.ordinal()) / count;
+        long saved = preFiltered.get() * average - phaseNanos.get(Phase.PRE_FILTER.ordinal());
+        return TimeUnit.NANOSECONDS.toMillis(Math.max(0, saved));
+    }
+
+    public String summary() {
+        long wallMillis = TimeUnit.NANOSECONDS.toMillis(wallNanos);
+        return "Instrumented " + instrumented + " of " + seen + " class(es) in " + wallMillis + " ms"
+                + " (" + classesPerSecond() + " classes/s)"
+                + ", skipped " + preFiltered + " by pre-filter (~" + getPreFilterSavedMillis() + " ms saved)"
+                + ", " + alreadyInstrumented + " already instrumented"
+                + ", " + upToDate + " up to date"
+                + (buildCacheHits.get() + buildCacheMisses.get() == 0 ? ""
+                : ", build cache hits:" + buildCacheHits + ", misses:" + buildCacheMisses)
+                + (inlineSkipped.isEmpty() ? "" : ", " + inlineSkipped.size() + " method(s) skipped by inline policy")
+                + (failed.get() > 0 ? ", " + failed + " failed" : "");
+    }
+
+    /**
+     * Write the report as JSON, the times are in nanoseconds.
+     */
+    @SneakyThrows
+    public void writeReport(File reportFile, List<File> sourceDirs, int threads) {
+        val report = new LinkedHashMap<String, Object>();
+        val directories = new ArrayList<String>(sourceDirs.size());
+        for (val sourceDir : sourceDirs) {
+            directories.add(sourceDir.getPath());
+        }
+        report.put("sourceDirectories", directories);
+        report.put("threads", threads);
+        report.put("wallNanos", wallNanos);
+        report.put("classesPerSecond", classesPerSecond());
+
+        val classes = new LinkedHashMap<String, Object>();
+        classes.put("seen", seen.get());
+        classes.put("upToDate", upToDate.get());
+        classes.put("excluded", excluded.get());
+        classes.put("alreadyInstrumented", alreadyInstrumented.get());
+        classes.put("preFiltered", preFiltered.get());
+        classes.put("transformed", transformed.get());
+        classes.put("instrumented", instrumented.get());
+        classes.put("failed", failed.get());
+        report.put("classes", classes);
+
+        val bytes = new LinkedHashMap<String, Object>();
+        bytes.put("before", bytesBefore.get());
+        bytes.put("after", bytesAfter.get());
+        report.put("instrumentedBytes", bytes);
+
+        val buildCache = new LinkedHashMap<String, Object>();
+        buildCache.put("hits", buildCacheHits.get());
+        buildCache.put("misses", buildCacheMisses.get());
+        report.put("buildCache", buildCache);
+
+        val phases = new LinkedHashMap<String, Object>();
+        for (val phase : Phase.values()) {
+            phases.put(phase.name().toLowerCase(), phaseNanos.get(phase.ordinal()));
+        }
+        report.put("phaseNanos", phases);
+        report.put("preFilterSavedMillis", getPreFilterSavedMillis());
+
+        val slowestClasses = new ArrayList<Map<String, Object>>();
+        for (val slowClass : getSlowest()) {
+            val entry = new LinkedHashMap<String, Object>();
+            entry.put("class", slowClass.className);
+            entry.put("transformNanos", slowClass.nanos);
+            slowestClasses.add(entry);
+        }
+        report.put("slowestTransforms", slowestClasses);
+        report.put("inlineSkippedMethods", inlineSkipped);
+
+        if (tokenizedPatternCache != null) {
+            val pruningCaches = new LinkedHashMap<String, Object>();
+            pruningCaches.put("tokenizedPatterns", toMap(tokenizedPatternCache));
+            pruningCaches.put("stringMatchers", toMap(stringMatcherCache));
+            report.put("directoryPruningPatternCaches", pruningCaches);
+        }
+
+        Files.createParentDirs(reportFile);
+        Files.write(JSON.toJSONString(report, SerializerFeature.PrettyFormat), reportFile, Charsets.UTF_8);
+    }
+
+    private static Map<String, Object> toMap(CacheStats cacheStats) {
+        val map = new LinkedHashMap<String, Object>();
+        map.put("hits", cacheStats.hitCount());
+        map.put("misses", cacheStats.missCount());
+        map.put("evictions", cacheStats.evictionCount());
+        return map;
+    }
+
+    private List<SlowClass> getSlowest() {
+        List<SlowClass> list;
+        synchronized (slowest) {
+            list = new ArrayList<SlowClass>(slowest);
+        }
+        Collections.sort(list, Collections.reverseOrder());
+        return list;
+    }
+
+    private long classesPerSecond() {
+        return wallNanos == 0 ? 0 : seen.get() * TimeUnit.SECONDS.toNanos(1) / wallNanos;
+    }
+
+    private static class SlowClass implements Comparable<SlowClass> {
+        final String className;
+        final long nanos;
+
+        SlowClass(String className, long nanos) {
+            this.className = className;
+            this.nanos = nanos;
+        }
+
+        @Override public int compareTo(SlowClass o) {
+            return nanos < o.nanos ? -1 : nanos == o.nanos ? 0 : 1;
+        }
+    }
+}
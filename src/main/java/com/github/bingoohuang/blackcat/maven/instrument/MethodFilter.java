@@ -0,0 +1,63 @@
+package com.github.bingoohuang.blackcat.maven.instrument;
+
+import lombok.val;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Puts the original bodies back for the methods which are not probed by the method rules,
+ * since {@code BlackcatInstrument} weaves every method of a class.
+ */
+public class MethodFilter {
+
+    /**
+     * @param original the class bytes before weaving
+     * @param woven    the class bytes woven by {@code BlackcatInstrument}
+     * @param selector the methods to keep woven
+     * @return the filtered class bytes, or {@code null} when no concrete method is probed
+     */
+    public static byte[] filter(byte[] original, byte[] woven, MethodSelector selector) {
+        if (selector.isSelectAll()) return woven;
+
+        val originalNode = new ClassNode();
+        new ClassReader(original).accept(originalNode, 0);
+
+        final Map<String, MethodNode> unselected = new HashMap<String, MethodNode>();
+        int concrete = 0, unselectedConcrete = 0;
+        for (Object node : originalNode.methods) {
+            val method = (MethodNode) node;
+            boolean isConcrete = (method.access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) == 0;
+            if (isConcrete) ++concrete;
+            if (selector.isProbed(method.name, method.desc)) continue;
+
+            unselected.put(method.name + method.desc, method);
+            if (isConcrete) ++unselectedConcrete;
+        }
+
+        if (unselectedConcrete == concrete) return null;
+        if (unselected.isEmpty()) return woven;
+
+        val reader = new ClassReader(woven);
+        val writer = new ClassWriter(reader, 0);
+        reader.accept(new ClassVisitor(Opcodes.ASM5, writer) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc,
+                                             String signature, String[] exceptions) {
+                val method = unselected.get(name + desc);
+                if (method == null) return super.visitMethod(access, name, desc, signature, exceptions);
+
+                method.accept(cv);
+                return null;
+            }
+        }, 0);
+        return writer.toByteArray();
+    }
+}
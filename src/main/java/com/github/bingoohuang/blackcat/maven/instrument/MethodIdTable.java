@@ -0,0 +1,150 @@
+package com.github.bingoohuang.blackcat.maven.instrument;
+
+import com.github.bingoohuang.blackcat.maven.classfile.ClassFileIO;
+import com.github.bingoohuang.blackcat.maven.classfile.ClassFileReader;
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.io.Files;
+import lombok.SneakyThrows;
+import lombok.val;
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Dense integer IDs of the methods woven with the method id reporter of one output directory,
+ * so that the runtime side can index primitive arrays by the ID instead of hashing the class
+ * and method names per call.
+ * <p>An ID is allocated when a method is woven, and kept by the next incremental builds.
+ * The IDs of the removed methods are given to the new methods of a later build, so the table
+ * stays dense without a clean build. Each woven method carries its ID in a {@value #ATTRIBUTE}
+ * attribute, and the manifest {@value #MANIFEST} is written from these attributes, one
+ * {@code id<TAB>class<TAB>method<TAB>descriptor} line per method, so that it always matches
+ * the classes of the output directory.
+ */
+public class MethodIdTable {
+    public static final String MANIFEST = "META-INF/blackcat/method-ids.txt";
+    public static final String ATTRIBUTE = "BlackcatMethodId";
+    private static final byte[] ATTRIBUTE_BYTES = ATTRIBUTE.getBytes(Charsets.US_ASCII);
+
+    // class internal name, tab, method name and descriptor
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+    private final TreeSet<Integer> free = new TreeSet<Integer>();
+    // the classes whose files may carry IDs
+    private final Set<String> classes = new HashSet<String>();
+    private int nextId;
+
+    /**
+     * Start from the manifest of the previous build of the output directory, if any.
+     */
+    @SneakyThrows
+    public static MethodIdTable load(File outputDirectory) {
+        val table = new MethodIdTable();
+        val manifest = new File(outputDirectory, MANIFEST);
+        if (!manifest.isFile()) return table;
+
+        val used = new HashSet<Integer>();
+        for (String line : Files.readLines(manifest, Charsets.UTF_8)) {
+            List<String> fields = Splitter.on('\t').splitToList(line);
+            if (fields.size() != 4) continue;
+
+            int id = Integer.parseInt(fields.get(0));
+            String owner = fields.get(1).replace('.', '/');
+            table.ids.put(owner + '\t' + fields.get(2) + fields.get(3), id);
+            table.classes.add(owner);
+            table.nextId = Math.max(table.nextId, id + 1);
+            used.add(id);
+        }
+        for (int id = 0; id < table.nextId; ++id) {
+            if (!used.contains(id)) table.free.add(id);
+        }
+        return table;
+    }
+
+    /**
+     * @return the ID of a woven method, allocated on its first call
+     */
+    public synchronized int idOf(String owner, String name, String desc) {
+        String key = owner + '\t' + name + desc;
+        Integer id = ids.get(key);
+        if (id == null) {
+            id = free.isEmpty() ? nextId++ : free.pollFirst();
+            ids.put(key, id);
+        }
+        classes.add(owner);
+        return id;
+    }
+
+    /**
+     * Give back the ID of a method which is finally not woven, like a method the inline policy
+     * leaves out once woven.
+     */
+    public synchronized void release(String owner, String nameAndDesc) {
+        Integer id = ids.remove(owner + '\t' + nameAndDesc);
+        if (id != null) free.add(id);
+    }
+
+    /**
+     * Read the IDs of a class whose file is not woven by this build, like an already marked class.
+     */
+    public synchronized void touch(String owner) {
+        classes.add(owner);
+    }
+
+    /**
+     * Write the manifest from the IDs the class files carry, or delete a stale one when there is none.
+     *
+     * @return the number of IDs written
+     */
+    @SneakyThrows
+    public int write(File outputDirectory, Log log) {
+        val methods = new TreeMap<Integer, String>();
+        for (String owner : new TreeSet<String>(classes)) {
+            val classFile = new File(outputDirectory, owner + ".class");
+            if (!classFile.isFile()) continue;
+
+            val buffer = ClassFileIO.read(classFile);
+            val reader = new ClassFileReader(buffer.array(), buffer.limit());
+            for (val method : reader.readMethodIntAttributes(ATTRIBUTE_BYTES).entrySet()) {
+                String nameAndDesc = originalName(method.getKey());
+                int paren = nameAndDesc.indexOf('(');
+                String line = owner.replace('/', '.') + '\t' + nameAndDesc.substring(0, paren)
+                        + '\t' + nameAndDesc.substring(paren);
+                String previous = methods.put(method.getValue(), line);
+                if (previous != null) {
+                    log.warn("Method id " + method.getValue() + " is carried by both " + previous + " and " + line
+                            + ", clean the output directory to number the methods again");
+                }
+            }
+        }
+
+        val manifest = new File(outputDirectory, MANIFEST);
+        if (methods.isEmpty()) {
+            manifest.delete();
+            return 0;
+        }
+
+        val content = new StringBuilder(methods.size() * 64);
+        for (val method : methods.entrySet()) {
+            content.append(method.getKey()).append('\t').append(method.getValue()).append('\n');
+        }
+        Files.createParentDirs(manifest);
+        Files.write(content, manifest, Charsets.UTF_8);
+        return methods.size();
+    }
+
+    // the woven body of a sampled method, with its ID, is moved into a copy
+    private static String originalName(String nameAndDesc) {
+        int suffix = nameAndDesc.indexOf(SamplingWeaver.COPY_SUFFIX);
+        if (suffix < 0) return nameAndDesc;
+
+        return nameAndDesc.substring(0, suffix) + nameAndDesc.substring(suffix + SamplingWeaver.COPY_SUFFIX.length());
+    }
+}
@@ -0,0 +1,85 @@
+package com.github.bingoohuang.blackcat.maven.instrument;
+
+import lombok.Value;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The options of an include rule, given as {@code :option=value} after its method part.
+ * <ul>
+ * <li>{@code sample=N} takes the probes on 1 in N calls only.</li>
+ * <li>{@code threshold=T} replaces the probes by a timing check which only reports the calls
+ * slower than T, given in {@code ns}, {@code us}, {@code ms} (the default) or {@code s}.</li>
+ * </ul>
+ */
+@Value
+public class MethodOptions {
+    public static final MethodOptions NONE = new MethodOptions(0, 0);
+
+    /**
+     * Report 1 in N calls, 0 when not set.
+     */
+    int sampleRate;
+    /**
+     * Only report the calls slower than this, 0 when not set.
+     */
+    long thresholdNanos;
+
+    public static MethodOptions parse(String rule, String option, MethodOptions options) {
+        String[] pair = option.split("=", 2);
+        String name = pair[0].trim();
+        if (pair.length != 2) throw new IllegalArgumentException("unknown option " + option + " in rule " + rule);
+
+        String value = pair[1].trim();
+        if ("sample".equals(name)) {
+            int sampleRate = Integer.parseInt(value);
+            if (sampleRate < 1) throw new IllegalArgumentException("sample rate must be positive in rule " + rule);
+            return new MethodOptions(sampleRate, options.thresholdNanos);
+        }
+        if ("threshold".equals(name)) {
+            long thresholdNanos = parseDuration(value);
+            if (thresholdNanos < 1) throw new IllegalArgumentException("threshold must be positive in rule " + rule);
+            return new MethodOptions(options.sampleRate, thresholdNanos);
+        }
+        throw new IllegalArgumentException("unknown option " + option + " in rule " + rule);
+    }
+
+    private static long parseDuration(String value) {
+        TimeUnit unit = TimeUnit.MILLISECONDS;
+        String number = value;
+        if (value.endsWith("ns")) {
+            unit = TimeUnit.NANOSECONDS;
+            number = value.substring(0, value.length() - 2);
+        } else if (value.endsWith("us")) {
+            unit = TimeUnit.MICROSECONDS;
+            number = value.substring(0, value.length() - 2);
+        } else if (value.endsWith("ms")) {
+            number = value.substring(0, value.length() - 2);
+        } else if (value.endsWith("s")) {
+            unit = TimeUnit.SECONDS;
+            number = value.substring(0, value.length() - 1);
+        }
+        return unit.toNanos(Long.parseLong(number.trim()));
+    }
+
+    /**
+     * Combine the options of several rules selecting the same methods,
+     * the least sampling and the lowest threshold win.
+     */
+    public MethodOptions merge(MethodOptions other) {
+        return new MethodOptions((int) minSet(sampleRate, other.sampleRate),
+                minSet(thresholdNanos, other.thresholdNanos));
+    }
+
+    /**
+     * A stable description of the options to tell rule changes between builds.
+     */
+    public String signature() {
+        return (sampleRate > 0 ? ":sample=" + sampleRate : "")
+                + (thresholdNanos > 0 ? ":threshold=" + thresholdNanos + "ns" : "");
+    }
+
+    private static long minSet(long a, long b) {
+        return a == 0 ? b : b == 0 ? a : Math.min(a, b);
+    }
+}
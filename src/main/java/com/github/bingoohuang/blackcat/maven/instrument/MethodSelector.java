@@ -0,0 +1,145 @@
+package com.github.bingoohuang.blackcat.maven.instrument;
+
+import com.github.bingoohuang.blackcat.maven.utils.Utils;
+import lombok.val;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Selects the methods to weave by the method part of the {@code pattern:method} rules.
+ * <p>A method selector is a glob on the method name, like {@code get*}, or on the name
+ * followed by the descriptor when it contains a '(', like {@code doWork(Ljava/lang/String;)*},
+ * or {@code @} followed by the internal name of an annotation of the method, like {@code @com/foo/Timed}.
+ * <p>The sample rate of a selected method is the lowest one among the include selectors
+ * matching it, the selectors without a sample option taking the default rate. Its threshold
+ * is the lowest one among the matching selectors with a threshold option.
+ * <p>A selector is made per class, the weaver may then {@link #skip} some of its methods.
+ */
+public class MethodSelector {
+    private final Set<String> includes;
+    private final Set<String> excludes;
+    private final Map<String, MethodOptions> options;
+    private final int defaultSampleRate;
+    private final Map<String, List<String>> methodAnnotations;
+    // name + descriptor of the methods left out by the weaver, with the reason
+    private final Map<String, String> skipped = new LinkedHashMap<String, String>();
+
+    public MethodSelector(Set<String> includes, Set<String> excludes) {
+        this(includes, excludes, Collections.<String, MethodOptions>emptyMap(), 1);
+    }
+
+    public MethodSelector(Set<String> includes, Set<String> excludes,
+                          Map<String, MethodOptions> options, int defaultSampleRate) {
+        this(includes, excludes, options, defaultSampleRate, Collections.<String, List<String>>emptyMap());
+    }
+
+    /**
+     * @param methodAnnotations the annotations of the annotated methods, by their name followed by their descriptor
+     */
+    public MethodSelector(Set<String> includes, Set<String> excludes, Map<String, MethodOptions> options,
+                          int defaultSampleRate, Map<String, List<String>> methodAnnotations) {
+        this.includes = includes;
+        this.excludes = excludes;
+        this.options = options;
+        this.defaultSampleRate = defaultSampleRate;
+        this.methodAnnotations = methodAnnotations;
+    }
+
+    public boolean isSelectAll() {
+        return includes.contains("*") && excludes.isEmpty() && skipped.isEmpty() && !hasThresholds();
+    }
+
+    /**
+     * Whether a method is selected and takes the probes of {@code BlackcatInstrument}, or the method id
+     * wrapper, rather than a threshold check.
+     */
+    public boolean isProbed(String name, String desc) {
+        return isSelected(name, desc) && getThresholdNanos(name, desc) == 0;
+    }
+
+    public boolean isSelected(String name, String desc) {
+        return matchAny(includes, name, desc) && !matchAny(excludes, name, desc) && !skipped.containsKey(name + desc);
+    }
+
+    /**
+     * Unselect a method of the class.
+     */
+    public void skip(String name, String desc, String reason) {
+        skipped.put(name + desc, reason);
+    }
+
+    /**
+     * @return the reasons of the skipped methods, by their name followed by their descriptor
+     */
+    public Map<String, String> getSkipped() {
+        return Collections.unmodifiableMap(skipped);
+    }
+
+    /**
+     * Whether any selected method may be sampled, so that the cost of looking for them can be avoided.
+     */
+    public boolean isSampling() {
+        if (defaultSampleRate > 1) return true;
+        for (MethodOptions methodOptions : options.values()) {
+            if (methodOptions.getSampleRate() > 1) return true;
+        }
+        return false;
+    }
+
+    public boolean hasThresholds() {
+        for (MethodOptions methodOptions : options.values()) {
+            if (methodOptions.getThresholdNanos() > 0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the threshold of a selected method, 0 when it has none
+     */
+    public long getThresholdNanos(String name, String desc) {
+        long thresholdNanos = 0;
+        for (val entry : options.entrySet()) {
+            long threshold = entry.getValue().getThresholdNanos();
+            if (threshold == 0 || !matches(entry.getKey(), name, desc)) continue;
+
+            thresholdNanos = thresholdNanos == 0 ? threshold : Math.min(thresholdNanos, threshold);
+        }
+        return thresholdNanos;
+    }
+
+    /**
+     * @return report 1 in N calls of a selected method
+     */
+    public int getSampleRate(String name, String desc) {
+        int sampleRate = Integer.MAX_VALUE;
+        for (String selector : includes) {
+            if (!matches(selector, name, desc)) continue;
+
+            MethodOptions methodOptions = options.get(selector);
+            int rate = methodOptions == null ? 0 : methodOptions.getSampleRate();
+            sampleRate = Math.min(sampleRate, rate == 0 ? defaultSampleRate : rate);
+        }
+        return sampleRate == Integer.MAX_VALUE ? defaultSampleRate : sampleRate;
+    }
+
+    private boolean matchAny(Set<String> selectors, String name, String desc) {
+        for (String selector : selectors) {
+            if (matches(selector, name, desc)) return true;
+        }
+        return false;
+    }
+
+    private boolean matches(String selector, String name, String desc) {
+        if (selector.startsWith("@")) {
+            List<String> annotations = methodAnnotations.get(name + desc);
+            return annotations != null && annotations.contains(selector.substring(1));
+        }
+
+        String target = selector.indexOf('(') < 0 ? name : name + desc;
+        return Utils.matchGlob(selector, target);
+    }
+}
@@ -0,0 +1,159 @@
+package com.github.bingoohuang.blackcat.maven.instrument;
+
+import lombok.val;
+import org.objectweb.asm.*;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Makes the sampled methods take the probes on 1 in N calls only.
+ * <p>The woven body of a sampled method is moved into a private synthetic copy named
+ * {@code name$blackcat$sampled}, and the method gets its original body back, behind a prologue
+ * which calls the woven copy when the masked value of {@link java.util.concurrent.ThreadLocalRandom}
+ * is zero. The random state is per thread, so the hot methods share no written memory between the
+ * cores, and N is rounded up to a power of two so that the check is a mask.
+ * Constructors and static initializers are never sampled, their bodies cannot be moved into another method.
+ */
+public class SamplingWeaver {
+    public static final String COPY_SUFFIX = "$blackcat$sampled";
+
+    /**
+     * @param original the class bytes before weaving
+     * @param woven    the class bytes with the probes in the selected methods
+     * @param selector the selected methods and their sample rates
+     * @return the class bytes with the sampled methods dispatching to their woven copies
+     */
+    public static byte[] sample(byte[] original, byte[] woven, MethodSelector selector) {
+        if (!selector.isSampling()) return woven;
+
+        val originalNode = new ClassNode();
+        new ClassReader(original).accept(originalNode, 0);
+
+        final Map<String, MethodNode> sampled = new LinkedHashMap<String, MethodNode>();
+        final Map<String, Integer> masks = new LinkedHashMap<String, Integer>();
+        for (Object node : originalNode.methods) {
+            val method = (MethodNode) node;
+            if (!isSampleable(method) || !selector.isProbed(method.name, method.desc)) continue;
+
+            int sampleRate = selector.getSampleRate(method.name, method.desc);
+            if (sampleRate <= 1) continue;
+
+            sampled.put(method.name + method.desc, method);
+            masks.put(method.name + method.desc, mask(sampleRate));
+        }
+        if (sampled.isEmpty()) return woven;
+
+        final String owner = originalNode.name;
+        final boolean withFrames = (originalNode.version & 0xFFFF) >= Opcodes.V1_6;
+        val reader = new ClassReader(woven);
+        val writer = new ClassWriter(reader, 0);
+        reader.accept(new ClassVisitor(Opcodes.ASM5, writer) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc,
+                                             String signature, String[] exceptions) {
+                String key = name + desc;
+                val method = sampled.get(key);
+                if (method == null) return super.visitMethod(access, name, desc, signature, exceptions);
+
+                String[] exceptionArray = new String[method.exceptions.size()];
+                for (int i = 0; i < exceptionArray.length; ++i) {
+                    exceptionArray[i] = (String) method.exceptions.get(i);
+                }
+                MethodVisitor dispatcher = super.visitMethod(method.access, method.name, method.desc, method.signature, exceptionArray);
+                method.accept(new SamplingPrologue(dispatcher, owner, method, masks.get(key), withFrames));
+
+                int copyAccess = Opcodes.ACC_PRIVATE | Opcodes.ACC_SYNTHETIC
+                        | (access & (Opcodes.ACC_STATIC | Opcodes.ACC_STRICT));
+                val copy = super.visitMethod(copyAccess, name + COPY_SUFFIX, desc, signature, exceptions);
+                return new MethodVisitor(Opcodes.ASM5, copy) {
+                    // the annotations stay on the dispatching method only
+
+                    @Override public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+                        return null;
+                    }
+
+                    @Override public AnnotationVisitor visitParameterAnnotation(int parameter, String desc, boolean visible) {
+                        return null;
+                    }
+
+                    @Override public AnnotationVisitor visitTypeAnnotation(int typeRef, TypePath typePath,
+                                                                           String desc, boolean visible) {
+                        return null;
+                    }
+                };
+            }
+        }, 0);
+        return writer.toByteArray();
+    }
+
+    private static boolean isSampleable(MethodNode method) {
+        if ((method.access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0) return false;
+        return !"<init>".equals(method.name) && !"<clinit>".equals(method.name);
+    }
+
+    /**
+     * @return the sample rate rounded up to a power of two, capped at 2^30, minus one
+     */
+    static int mask(int sampleRate) {
+        int highest = Integer.highestOneBit(sampleRate);
+        int powerOfTwo = highest == sampleRate || highest == 1 << 30 ? highest : highest << 1;
+        return powerOfTwo - 1;
+    }
+
+    private static class SamplingPrologue extends MethodVisitor {
+        private static final String THREAD_LOCAL_RANDOM = "java/util/concurrent/ThreadLocalRandom";
+
+        private final String owner;
+        private final MethodNode method;
+        private final int mask;
+        private final boolean withFrames;
+
+        SamplingPrologue(MethodVisitor mv, String owner, MethodNode method, int mask, boolean withFrames) {
+            super(Opcodes.ASM5, mv);
+            this.owner = owner;
+            this.method = method;
+            this.mask = mask;
+            this.withFrames = withFrames;
+        }
+
+        @Override
+        public void visitCode() {
+            super.visitCode();
+
+            // if ((ThreadLocalRandom.current().nextInt() & mask) != 0) goto original;
+            super.visitMethodInsn(Opcodes.INVOKESTATIC, THREAD_LOCAL_RANDOM, "current",
+                    "()L" + THREAD_LOCAL_RANDOM + ";", false);
+            super.visitMethodInsn(Opcodes.INVOKEVIRTUAL, THREAD_LOCAL_RANDOM, "nextInt", "()I", false);
+            super.visitLdcInsn(mask);
+            super.visitInsn(Opcodes.IAND);
+            val original = new Label();
+            super.visitJumpInsn(Opcodes.IFNE, original);
+
+            // return copy(args);
+            boolean isStatic = (method.access & Opcodes.ACC_STATIC) != 0;
+            int slot = 0;
+            if (!isStatic) super.visitVarInsn(Opcodes.ALOAD, slot++);
+            for (val type : Type.getArgumentTypes(method.desc)) {
+                super.visitVarInsn(type.getOpcode(Opcodes.ILOAD), slot);
+                slot += type.getSize();
+            }
+            super.visitMethodInsn(isStatic ? Opcodes.INVOKESTATIC : Opcodes.INVOKESPECIAL,
+                    owner, method.name + COPY_SUFFIX, method.desc, false);
+            super.visitInsn(Type.getReturnType(method.desc).getOpcode(Opcodes.IRETURN));
+
+            super.visitLabel(original);
+            // the same locals as on entry, the original code may start with a frame of its own
+            if (withFrames) super.visitFrame(Opcodes.F_SAME, 0, null, 0, null);
+            super.visitInsn(Opcodes.NOP);
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+            int argumentsSize = Type.getArgumentsAndReturnSizes(method.desc) >> 2;
+            super.visitMaxs(Math.max(Math.max(maxStack, 2), argumentsSize), maxLocals);
+        }
+    }
+}
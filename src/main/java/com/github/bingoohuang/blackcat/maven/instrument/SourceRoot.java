@@ -0,0 +1,18 @@
+package com.github.bingoohuang.blackcat.maven.instrument;
+
+import com.github.bingoohuang.blackcat.maven.incremental.BuildStateIndex;
+import lombok.Value;
+
+import java.io.File;
+
+/**
+ * A directory of compiled classes to instrument, with the build state of its module.
+ */
+@Value
+public class SourceRoot {
+    File directory;
+    /**
+     * The build state of the module, {@code null} when the build is not incremental.
+     */
+    BuildStateIndex buildState;
+}
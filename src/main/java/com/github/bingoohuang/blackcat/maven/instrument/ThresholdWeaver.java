@@ -0,0 +1,318 @@
+package com.github.bingoohuang.blackcat.maven.instrument;
+
+import com.github.bingoohuang.blackcat.maven.classfile.ClassPreFilter;
+import lombok.val;
+import org.objectweb.asm.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replaces the probes of the methods with a threshold option by an inlined timing check,
+ * so that only the calls slower than the threshold go into the reporting path.
+ * <p>The body of a timed method is moved into a private synthetic copy named
+ * {@code name$blackcat$timed}, and the method becomes a wrapper which reads the clock, calls
+ * the copy, reads the clock again and calls the reporter, a static method taking the class name,
+ * the method name with its descriptor and the elapsed nanos, when the call took longer than the
+ * threshold. Calls ending with an exception are checked the same way before the rethrow.
+ * <p>With a method id reporter, the probed methods are wrapped the same way instead of taking the
+ * probes of {@code BlackcatInstrument}: every call passes the dense ID of the method, from a
+ * {@link MethodIdTable}, and the elapsed nanos to the reporter, a static method taking an {@code int}
+ * and a {@code long}. The wrapper carries its ID in a {@value MethodIdTable#ATTRIBUTE} attribute.
+ */
+public class ThresholdWeaver {
+    public static final String COPY_SUFFIX = "$blackcat$timed";
+    public static final String REPORTER_DESC = "(Ljava/lang/String;Ljava/lang/String;J)V";
+    public static final String METHOD_ID_REPORTER_DESC = "(IJ)V";
+
+    private final String[] reporter;
+    private final String[] methodIdReporter;
+
+    /**
+     * @param reporter the reporter method, like {@code com.foo.Probes.slow}
+     */
+    public ThresholdWeaver(String reporter) {
+        this(reporter, null);
+    }
+
+    /**
+     * @param reporter         the reporter method of the threshold rules, or {@code null} when there is none
+     * @param methodIdReporter the reporter method of the probed methods, like {@code com.foo.Probes.timed},
+     *                         or {@code null} to leave them to {@code BlackcatInstrument}
+     */
+    public ThresholdWeaver(String reporter, String methodIdReporter) {
+        this.reporter = reporter == null ? null : parseReporter("threshold reporter", reporter);
+        this.methodIdReporter = methodIdReporter == null ? null : parseReporter("method id reporter", methodIdReporter);
+    }
+
+    private static String[] parseReporter(String what, String reporter) {
+        int dot = reporter.lastIndexOf('.');
+        if (dot <= 0 || dot == reporter.length() - 1) {
+            throw new IllegalArgumentException(what + " should be like com.foo.Probes.slow: " + reporter);
+        }
+        return new String[]{reporter.substring(0, dot).replace('.', '/'), reporter.substring(dot + 1)};
+    }
+
+    public boolean hasReporter() {
+        return reporter != null;
+    }
+
+    public boolean hasMethodIdReporter() {
+        return methodIdReporter != null;
+    }
+
+    /**
+     * @param classfileBuffer the class bytes whose timed methods still have their original bodies
+     * @param selector        the selected methods and their thresholds
+     * @return the class bytes with the timed methods wrapped, or {@code null} when there is none
+     */
+    public byte[] weave(byte[] classfileBuffer, MethodSelector selector) {
+        return weave(classfileBuffer, selector, null);
+    }
+
+    /**
+     * @param methodIds the IDs of the probed methods, which are all wrapped too when this weaver
+     *                  has a method id reporter
+     * @return the class bytes with the timed and probed methods wrapped, or {@code null} when there is none
+     */
+    public byte[] weave(byte[] classfileBuffer, final MethodSelector selector, MethodIdTable methodIds) {
+        final MethodIdTable ids = methodIdReporter == null ? null : methodIds;
+        if (!selector.hasThresholds() && ids == null) return null;
+
+        val reader = new ClassReader(classfileBuffer);
+        val writer = new ClassWriter(reader, 0);
+        final int[] timed = {0};
+        reader.accept(new ClassVisitor(Opcodes.ASM5, writer) {
+            String owner;
+            boolean withFrames;
+
+            @Override
+            public void visit(int version, int access, String name, String signature,
+                              String superName, String[] interfaces) {
+                owner = name;
+                withFrames = (version & 0xFFFF) >= Opcodes.V1_6;
+                super.visit(version, access, name, signature, superName, interfaces);
+            }
+
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc,
+                                             String signature, String[] exceptions) {
+                boolean timeable = isTimeable(access, name) && !isReporter(owner, name)
+                        && selector.isSelected(name, desc);
+                long thresholdNanos = timeable ? selector.getThresholdNanos(name, desc) : 0;
+                int methodId = timeable && thresholdNanos == 0 && ids != null ? ids.idOf(owner, name, desc) : -1;
+                if (thresholdNanos == 0 && methodId < 0) {
+                    return super.visitMethod(access, name, desc, signature, exceptions);
+                }
+
+                ++timed[0];
+                val wrapper = super.visitMethod(access, name, desc, signature, exceptions);
+                int copyAccess = Opcodes.ACC_PRIVATE | Opcodes.ACC_SYNTHETIC
+                        | (access & (Opcodes.ACC_STATIC | Opcodes.ACC_STRICT));
+                val copy = super.visitMethod(copyAccess, name + COPY_SUFFIX, desc, signature, exceptions);
+                return new BodySplitter(copy, wrapper,
+                        new TimedMethod(owner, access, name, desc, thresholdNanos, methodId, withFrames));
+            }
+        }, 0);
+
+        return timed[0] == 0 ? null : writer.toByteArray();
+    }
+
+    // a reporter timing itself would never return
+    private boolean isReporter(String owner, String name) {
+        return reporter != null && reporter[0].equals(owner) && reporter[1].equals(name)
+                || methodIdReporter != null && methodIdReporter[0].equals(owner) && methodIdReporter[1].equals(name);
+    }
+
+    private static boolean isTimeable(int access, String name) {
+        return ClassPreFilter.isCandidate(access) && !"<init>".equals(name) && !"<clinit>".equals(name);
+    }
+
+    /**
+     * Sends the body of a timed method to its copy, and the rest (annotations, parameters)
+     * to the wrapper, whose code is generated once the copy is complete.
+     */
+    private class BodySplitter extends MethodVisitor {
+        private final MethodVisitor wrapper;
+        private final TimedMethod method;
+
+        BodySplitter(MethodVisitor copy, MethodVisitor wrapper, TimedMethod method) {
+            super(Opcodes.ASM5, copy);
+            this.wrapper = wrapper;
+            this.method = method;
+        }
+
+        @Override public void visitParameter(String name, int access) {
+            wrapper.visitParameter(name, access);
+        }
+
+        @Override public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+            return wrapper.visitAnnotation(desc, visible);
+        }
+
+        @Override public AnnotationVisitor visitTypeAnnotation(int typeRef, TypePath typePath,
+                                                               String desc, boolean visible) {
+            return wrapper.visitTypeAnnotation(typeRef, typePath, desc, visible);
+        }
+
+        @Override public AnnotationVisitor visitParameterAnnotation(int parameter, String desc, boolean visible) {
+            return wrapper.visitParameterAnnotation(parameter, desc, visible);
+        }
+
+        @Override public void visitEnd() {
+            super.visitEnd();
+            generateWrapper(wrapper, method);
+        }
+    }
+
+    private void generateWrapper(MethodVisitor mv, TimedMethod method) {
+        val argumentTypes = Type.getArgumentTypes(method.desc);
+        val returnType = Type.getReturnType(method.desc);
+        int slots = method.isStatic() ? 0 : 1;
+        for (val type : argumentTypes) slots += type.getSize();
+        int startSlot = slots, elapsedSlot = slots + 2;
+
+        val locals = new ArrayList<Object>();
+        if (!method.isStatic()) locals.add(method.owner);
+        for (val type : argumentTypes) locals.add(frameType(type));
+        locals.add(Opcodes.LONG);
+        val localsAfter = new ArrayList<Object>(locals);
+        localsAfter.add(Opcodes.LONG);
+
+        val tryStart = new Label();
+        val tryEnd = new Label();
+        val handler = new Label();
+        if (method.methodId >= 0) mv.visitAttribute(new MethodIdAttribute(method.methodId));
+        mv.visitCode();
+        mv.visitTryCatchBlock(tryStart, tryEnd, handler, null);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
+        mv.visitVarInsn(Opcodes.LSTORE, startSlot);
+
+        mv.visitLabel(tryStart);
+        int slot = 0;
+        if (!method.isStatic()) mv.visitVarInsn(Opcodes.ALOAD, slot++);
+        for (val type : argumentTypes) {
+            mv.visitVarInsn(type.getOpcode(Opcodes.ILOAD), slot);
+            slot += type.getSize();
+        }
+        mv.visitMethodInsn(method.isStatic() ? Opcodes.INVOKESTATIC : Opcodes.INVOKESPECIAL,
+                method.owner, method.name + COPY_SUFFIX, method.desc, false);
+        mv.visitLabel(tryEnd);
+
+        List<Object> returnStack = new ArrayList<Object>();
+        if (returnType.getSort() != Type.VOID) returnStack.add(frameType(returnType));
+        checkElapsed(mv, method, startSlot, elapsedSlot, localsAfter, returnStack);
+        mv.visitInsn(returnType.getOpcode(Opcodes.IRETURN));
+
+        List<Object> throwableStack = new ArrayList<Object>();
+        throwableStack.add("java/lang/Throwable");
+        mv.visitLabel(handler);
+        frame(mv, method, locals, throwableStack);
+        checkElapsed(mv, method, startSlot, elapsedSlot, localsAfter, throwableStack);
+        mv.visitInsn(Opcodes.ATHROW);
+
+        // the result or the throwable, the reporter arguments and a long to compare
+        mv.visitMaxs(Math.max(slots, 2 + 2 + 2 + 2), slots + 4);
+        mv.visitEnd();
+    }
+
+    /**
+     * elapsed = System.nanoTime() - start; if (elapsed > threshold) reporter(className, method, elapsed);
+     * <p>or with an ID: methodIdReporter(id, System.nanoTime() - start);
+     */
+    private void checkElapsed(MethodVisitor mv, TimedMethod method, int startSlot, int elapsedSlot,
+                              List<Object> locals, List<Object> stack) {
+        if (method.methodId >= 0) {
+            mv.visitLdcInsn(method.methodId);
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
+            mv.visitVarInsn(Opcodes.LLOAD, startSlot);
+            mv.visitInsn(Opcodes.LSUB);
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, methodIdReporter[0], methodIdReporter[1],
+                    METHOD_ID_REPORTER_DESC, false);
+            return;
+        }
+
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
+        mv.visitVarInsn(Opcodes.LLOAD, startSlot);
+        mv.visitInsn(Opcodes.LSUB);
+        mv.visitVarInsn(Opcodes.LSTORE, elapsedSlot);
+        mv.visitVarInsn(Opcodes.LLOAD, elapsedSlot);
+        mv.visitLdcInsn(method.thresholdNanos);
+        mv.visitInsn(Opcodes.LCMP);
+        val fast = new Label();
+        mv.visitJumpInsn(Opcodes.IFLE, fast);
+        mv.visitLdcInsn(method.owner.replace('/', '.'));
+        mv.visitLdcInsn(method.name + method.desc);
+        mv.visitVarInsn(Opcodes.LLOAD, elapsedSlot);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, reporter[0], reporter[1], REPORTER_DESC, false);
+        mv.visitLabel(fast);
+        frame(mv, method, locals, stack);
+    }
+
+    private static void frame(MethodVisitor mv, TimedMethod method, List<Object> locals, List<Object> stack) {
+        if (!method.withFrames) return;
+
+        mv.visitFrame(Opcodes.F_FULL, locals.size(), locals.toArray(), stack.size(), stack.toArray());
+    }
+
+    private static Object frameType(Type type) {
+        switch (type.getSort()) {
+            case Type.BOOLEAN:
+            case Type.CHAR:
+            case Type.BYTE:
+            case Type.SHORT:
+            case Type.INT:
+                return Opcodes.INTEGER;
+            case Type.FLOAT:
+                return Opcodes.FLOAT;
+            case Type.LONG:
+                return Opcodes.LONG;
+            case Type.DOUBLE:
+                return Opcodes.DOUBLE;
+            case Type.ARRAY:
+                return type.getDescriptor();
+            default:
+                return type.getInternalName();
+        }
+    }
+
+    private static class TimedMethod {
+        final String owner;
+        final int access;
+        final String name;
+        final String desc;
+        final long thresholdNanos;
+        // -1 for a method reporting its slow calls only
+        final int methodId;
+        final boolean withFrames;
+
+        TimedMethod(String owner, int access, String name, String desc, long thresholdNanos,
+                    int methodId, boolean withFrames) {
+            this.owner = owner;
+            this.access = access;
+            this.name = name;
+            this.desc = desc;
+            this.thresholdNanos = thresholdNanos;
+            this.methodId = methodId;
+            this.withFrames = withFrames;
+        }
+
+        boolean isStatic() {
+            return (access & Opcodes.ACC_STATIC) != 0;
+        }
+    }
+
+    private static class MethodIdAttribute extends Attribute {
+        final int methodId;
+
+        MethodIdAttribute(int methodId) {
+            super(MethodIdTable.ATTRIBUTE);
+            this.methodId = methodId;
+        }
+
+        @Override
+        protected ByteVector write(ClassWriter cw, byte[] code, int len, int maxStack, int maxLocals) {
+            return new ByteVector(4).putInt(methodId);
+        }
+    }
+}
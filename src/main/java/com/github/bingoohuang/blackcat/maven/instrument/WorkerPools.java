@@ -0,0 +1,23 @@
+package com.github.bingoohuang.blackcat.maven.instrument;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.val;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class WorkerPools {
+
+    /**
+     * Resolve the configured number of worker threads, a non-positive value means the number of available processors.
+     */
+    public static int resolveThreads(int threads) {
+        return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    public static ExecutorService newWorkerPool(int threads) {
+        val threadFactory = new ThreadFactoryBuilder()
+                .setNameFormat("blackcat-instrument-%d").setDaemon(true).build();
+        return Executors.newFixedThreadPool(Math.max(1, threads), threadFactory);
+    }
+}
@@ -1,35 +1,64 @@
 package com.github.bingoohuang.blackcat.maven.scan;
 
-import org.codehaus.plexus.compiler.util.scan.AbstractSourceInclusionScanner;
-import org.codehaus.plexus.compiler.util.scan.InclusionScanException;
+import com.github.bingoohuang.blackcat.maven.instrument.InstrumentRules;
 
 import java.io.File;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Set;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
 
-public class InstrumentSourceScanner extends AbstractSourceInclusionScanner {
-    private final Set<String> sourceIncludes;
-    private final Set<String> sourceExcludes;
+/**
+ * Walks an output directory for the class files matched by the include rules, skipping
+ * the directories no include rule can reach, like the resources or the other packages.
+ * <p>The class files are handed over as they are found, so that the workers can start
+ * on them while the rest of the tree is still walked.
+ */
+public class InstrumentSourceScanner {
+    private final InstrumentRules rules;
 
-    public InstrumentSourceScanner() {
-        this(Collections.singleton("**/*"), Collections.<String>emptySet());
+    public interface SourceHandler {
+        void handle(File source);
     }
 
-    public InstrumentSourceScanner(Set<String> sourceIncludes, Set<String> sourceExcludes) {
-        this.sourceIncludes = sourceIncludes;
-        this.sourceExcludes = sourceExcludes;
+    public InstrumentSourceScanner(InstrumentRules rules) {
+        this.rules = rules;
     }
 
-    @Override
-    public Set<File> getIncludedSources(File sourceDir, File targetDir) throws InclusionScanException {
-        String[] potentialIncludes = scanForSources(sourceDir, sourceIncludes, sourceExcludes);
-        Set<File> matchingSources = new HashSet<File>(potentialIncludes != null ? potentialIncludes.length : 0);
-        if (potentialIncludes != null) {
-            for (String potentialSource : potentialIncludes) {
-                matchingSources.add(new File(sourceDir, potentialSource));
+    public void scan(File sourceDir, SourceHandler handler) throws IOException {
+        Path base = sourceDir.toPath();
+        if (!Files.isDirectory(base)) return;
+
+        scan(base, base, new HashSet<Path>(), handler);
+    }
+
+    /**
+     * Visit the entries of a directory sorted by their names, so that the class files are handed
+     * over in the same order on every run, whatever the order the file system lists them in.
+     */
+    private void scan(Path base, Path dir, Set<Path> visited, SourceHandler handler) throws IOException {
+        if (!visited.add(dir.toRealPath())) return; // a link back to a visited directory
+
+        List<Path> entries = new ArrayList<Path>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path entry : stream) {
+                entries.add(entry);
             }
         }
-        return matchingSources;
+        Collections.sort(entries);
+
+        for (Path entry : entries) {
+            if (Files.isDirectory(entry)) {
+                if (rules.mayIncludeDirectory(relativePath(base, entry))) scan(base, entry, visited, handler);
+            } else if (Files.isRegularFile(entry) && entry.getFileName().toString().endsWith(".class")
+                    && rules.isIncluded(relativePath(base, entry))) {
+                handler.handle(entry.toFile());
+            }
+        }
+    }
+
+    private static String relativePath(Path base, Path path) {
+        return base.relativize(path).toString().replace(File.separatorChar, '/');
     }
 }
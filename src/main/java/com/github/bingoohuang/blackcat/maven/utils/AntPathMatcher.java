@@ -1,7 +1,10 @@
 package com.github.bingoohuang.blackcat.maven.utils;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -38,10 +41,19 @@ public class AntPathMatcher implements PathMatcher {
      */
     public static final String DEFAULT_PATH_SEPARATOR = "/";
 
-    private static final int CACHE_TURNOFF_THRESHOLD = 65536;
+    /**
+     * Default maximum number of patterns in each pattern cache.
+     */
+    public static final int DEFAULT_PATTERN_CACHE_SIZE = 65536;
 
     private static final Pattern VARIABLE_PATTERN = Pattern.compile("\\{[^/]+?\\}");
 
+    private static final ThreadLocal<int[]> PATH_SEGMENTS = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[33];
+        }
+    };
 
     private String pathSeparator;
 
@@ -49,11 +61,11 @@ public class AntPathMatcher implements PathMatcher {
 
     private boolean trimTokens = true;
 
-    private volatile Boolean cachePatterns;
+    private volatile boolean cachePatterns = true;
 
-    private final Map<String, String[]> tokenizedPatternCache = new ConcurrentHashMap<String, String[]>(256);
+    private volatile Cache<String, String[]> tokenizedPatternCache;
 
-    final Map<String, AntPathStringMatcher> stringMatcherCache = new ConcurrentHashMap<String, AntPathStringMatcher>(256);
+    private volatile Cache<String, AntPathStringMatcher> stringMatcherCache;
 
 
     /**
@@ -62,6 +74,7 @@ public class AntPathMatcher implements PathMatcher {
     public AntPathMatcher() {
         this.pathSeparator = DEFAULT_PATH_SEPARATOR;
         this.pathSeparatorPatternCache = new PathSeparatorPatternCache(DEFAULT_PATH_SEPARATOR);
+        setPatternCacheSize(DEFAULT_PATTERN_CACHE_SIZE);
     }
 
     /**
@@ -74,6 +87,7 @@ public class AntPathMatcher implements PathMatcher {
         checkNotNull(pathSeparator, "'pathSeparator' is required");
         this.pathSeparator = pathSeparator;
         this.pathSeparatorPatternCache = new PathSeparatorPatternCache(pathSeparator);
+        setPatternCacheSize(DEFAULT_PATTERN_CACHE_SIZE);
     }
 
 
@@ -96,13 +110,11 @@ public class AntPathMatcher implements PathMatcher {
 
     /**
      * Specify whether to cache parsed pattern metadata for patterns passed
-     * into this matcher's {@link #match} method. A value of {@code true}
-     * activates an unlimited pattern cache; a value of {@code false} turns
+     * into this matcher's {@link #match} method. A value of {@code false} turns
      * the pattern cache off completely.
-     * <p>Default is for the cache to be on, but with the variant to automatically
-     * turn it off when encountering too many patterns to cache at runtime
-     * (the threshold is 65536), assuming that arbitrary permutations of patterns
-     * are coming in, with little chance for encountering a reoccurring pattern.
+     * <p>Default is for the cache to be on, bounded by {@link #setPatternCacheSize}:
+     * when more patterns come in, the least recently used ones are evicted, so that
+     * a long-lived matcher keeps caching its reoccurring patterns.
      *
      * @see #getStringMatcher(String)
      */
@@ -110,10 +122,27 @@ public class AntPathMatcher implements PathMatcher {
         this.cachePatterns = cachePatterns;
     }
 
-    private void deactivatePatternCache() {
-        this.cachePatterns = false;
-        this.tokenizedPatternCache.clear();
-        this.stringMatcherCache.clear();
+    /**
+     * Set the maximum number of patterns in each pattern cache, emptying the caches and their statistics.
+     * Default is {@link #DEFAULT_PATTERN_CACHE_SIZE}.
+     */
+    public void setPatternCacheSize(long maximumSize) {
+        this.tokenizedPatternCache = CacheBuilder.newBuilder().maximumSize(maximumSize).recordStats().build();
+        this.stringMatcherCache = CacheBuilder.newBuilder().maximumSize(maximumSize).recordStats().build();
+    }
+
+    /**
+     * @return the hits, misses and evictions of the tokenized pattern cache
+     */
+    public CacheStats getTokenizedPatternCacheStats() {
+        return this.tokenizedPatternCache.stats();
+    }
+
+    /**
+     * @return the hits, misses and evictions of the string matcher cache
+     */
+    public CacheStats getStringMatcherCacheStats() {
+        return this.stringMatcherCache.stats();
     }
 
 
@@ -134,6 +163,9 @@ public class AntPathMatcher implements PathMatcher {
 
     /**
      * Actually match the given {@code path} against the given {@code pattern}.
+     * <p>The path is walked as offsets into the original string: no path tokens are created, '*' and '?'
+     * segments are matched by {@link Utils#matchGlob}, and regular expressions are only used for
+     * '{var:regex}' segments or to extract the URI template variables.
      *
      * @param pattern   the pattern to match against
      * @param path      the path String to test
@@ -147,12 +179,12 @@ public class AntPathMatcher implements PathMatcher {
         }
 
         String[] pattDirs = tokenizePattern(pattern);
-        String[] pathDirs = tokenizePath(path);
+        int[] pathDirs = segmentPath(path);
 
         int pattIdxStart = 0;
         int pattIdxEnd = pattDirs.length - 1;
         int pathIdxStart = 0;
-        int pathIdxEnd = pathDirs.length - 1;
+        int pathIdxEnd = pathDirs[0] - 1;
 
         // Match all elements up to the first **
         while (pattIdxStart <= pattIdxEnd && pathIdxStart <= pathIdxEnd) {
@@ -160,7 +192,7 @@ public class AntPathMatcher implements PathMatcher {
             if ("**".equals(pattDir)) {
                 break;
             }
-            if (!matchStrings(pattDir, pathDirs[pathIdxStart], uriTemplateVariables)) {
+            if (!matchSegment(pattDir, path, pathDirs, pathIdxStart, uriTemplateVariables)) {
                 return false;
             }
             pattIdxStart++;
@@ -199,7 +231,7 @@ public class AntPathMatcher implements PathMatcher {
             if (pattDir.equals("**")) {
                 break;
             }
-            if (!matchStrings(pattDir, pathDirs[pathIdxEnd], uriTemplateVariables)) {
+            if (!matchSegment(pattDir, path, pathDirs, pathIdxEnd, uriTemplateVariables)) {
                 return false;
             }
             pattIdxEnd--;
@@ -238,8 +270,7 @@ public class AntPathMatcher implements PathMatcher {
             for (int i = 0; i <= strLength - patLength; i++) {
                 for (int j = 0; j < patLength; j++) {
                     String subPat = pattDirs[pattIdxStart + j + 1];
-                    String subStr = pathDirs[pathIdxStart + i + j];
-                    if (!matchStrings(subPat, subStr, uriTemplateVariables)) {
+                    if (!matchSegment(subPat, path, pathDirs, pathIdxStart + i + j, uriTemplateVariables)) {
                         continue strLoop;
                     }
                 }
@@ -264,6 +295,52 @@ public class AntPathMatcher implements PathMatcher {
         return true;
     }
 
+    /**
+     * Locate the path segments the way {@link #tokenizePath(String)} tokenizes them.
+     *
+     * @return a per-thread reused array: the segment count followed by the start and end of each segment
+     */
+    private int[] segmentPath(String path) {
+        int[] segments = PATH_SEGMENTS.get();
+        int count = 0;
+        int length = path.length();
+        for (int start = 0; start < length; ) {
+            int end = start;
+            while (end < length && this.pathSeparator.indexOf(path.charAt(end)) < 0) end++;
+
+            int from = start, to = end;
+            if (this.trimTokens) {
+                while (from < to && Character.isWhitespace(path.charAt(from))) from++;
+                while (to > from && Character.isWhitespace(path.charAt(to - 1))) to--;
+            }
+            start = end + 1;
+            if (from == to) continue;
+
+            if (2 * count + 2 >= segments.length) {
+                segments = Arrays.copyOf(segments, segments.length * 2 + 1);
+                PATH_SEGMENTS.set(segments);
+            }
+            segments[2 * count + 1] = from;
+            segments[2 * count + 2] = to;
+            count++;
+        }
+        segments[0] = count;
+        return segments;
+    }
+
+    private boolean matchSegment(String pattDir, String path, int[] segments, int index,
+                                 Map<String, String> uriTemplateVariables) {
+        int from = segments[2 * index + 1];
+        int to = segments[2 * index + 2];
+        if (uriTemplateVariables != null || pattDir.indexOf('{') != -1) {
+            return matchStrings(pattDir, path.substring(from, to), uriTemplateVariables);
+        }
+        if (pattDir.indexOf('*') != -1 || pattDir.indexOf('?') != -1) {
+            return Utils.matchGlob(pattDir, 0, pattDir.length(), path, from, to);
+        }
+        return pattDir.length() == to - from && path.regionMatches(from, pattDir, 0, to - from);
+    }
+
     /**
      * Tokenize the given path pattern into parts, based on this matcher's settings.
      * <p>Performs caching based on {@link #setCachePatterns}, delegating to
@@ -273,23 +350,13 @@ public class AntPathMatcher implements PathMatcher {
      * @return the tokenized pattern parts
      */
     protected String[] tokenizePattern(String pattern) {
-        String[] tokenized = null;
-        Boolean cachePatterns = this.cachePatterns;
-        if (cachePatterns == null || cachePatterns.booleanValue()) {
-            tokenized = this.tokenizedPatternCache.get(pattern);
-        }
+        if (!this.cachePatterns) return tokenizePath(pattern);
+
+        Cache<String, String[]> cache = this.tokenizedPatternCache;
+        String[] tokenized = cache.getIfPresent(pattern);
         if (tokenized == null) {
             tokenized = tokenizePath(pattern);
-            if (cachePatterns == null && this.tokenizedPatternCache.size() >= CACHE_TURNOFF_THRESHOLD) {
-                // Try to adapt to the runtime situation that we're encountering:
-                // There are obviously too many different patterns coming in here...
-                // So let's turn off the cache since the patterns are unlikely to be reoccurring.
-                deactivatePatternCache();
-                return tokenized;
-            }
-            if (cachePatterns == null || cachePatterns.booleanValue()) {
-                this.tokenizedPatternCache.put(pattern, tokenized);
-            }
+            cache.put(pattern, tokenized);
         }
         return tokenized;
     }
@@ -319,10 +386,8 @@ public class AntPathMatcher implements PathMatcher {
      * Build or retrieve an {@link AntPathStringMatcher} for the given pattern.
      * <p>The default implementation checks this AntPathMatcher's internal cache
      * (see {@link #setCachePatterns}), creating a new AntPathStringMatcher instance
-     * if no cached copy is found.
-     * When encountering too many patterns to cache at runtime (the threshold is 65536),
-     * it turns the default cache off, assuming that arbitrary permutations of patterns
-     * are coming in, with little chance for encountering a reoccurring pattern.
+     * if no cached copy is found, and evicting the least recently used patterns
+     * beyond the {@link #setPatternCacheSize pattern cache size}.
      * <p>This method may get overridden to implement a custom cache strategy.
      *
      * @param pattern the pattern to match against (never {@code null})
@@ -330,23 +395,13 @@ public class AntPathMatcher implements PathMatcher {
      * @see #setCachePatterns
      */
     protected AntPathStringMatcher getStringMatcher(String pattern) {
-        AntPathStringMatcher matcher = null;
-        Boolean cachePatterns = this.cachePatterns;
-        if (cachePatterns == null || cachePatterns.booleanValue()) {
-            matcher = this.stringMatcherCache.get(pattern);
-        }
+        if (!this.cachePatterns) return new AntPathStringMatcher(pattern);
+
+        Cache<String, AntPathStringMatcher> cache = this.stringMatcherCache;
+        AntPathStringMatcher matcher = cache.getIfPresent(pattern);
         if (matcher == null) {
             matcher = new AntPathStringMatcher(pattern);
-            if (cachePatterns == null && this.stringMatcherCache.size() >= CACHE_TURNOFF_THRESHOLD) {
-                // Try to adapt to the runtime situation that we're encountering:
-                // There are obviously too many different patterns coming in here...
-                // So let's turn off the cache since the patterns are unlikely to be reoccurring.
-                deactivatePatternCache();
-                return matcher;
-            }
-            if (cachePatterns == null || cachePatterns.booleanValue()) {
-                this.stringMatcherCache.put(pattern, matcher);
-            }
+            cache.put(pattern, matcher);
         }
         return matcher;
     }
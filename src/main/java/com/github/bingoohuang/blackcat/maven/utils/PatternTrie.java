@@ -0,0 +1,156 @@
+package com.github.bingoohuang.blackcat.maven.utils;
+
+import java.util.*;
+
+/**
+ * A set of Ant-style path patterns compiled into a segment trie, so that all the patterns
+ * matching a path are found in a single pass over the path segments, instead of running
+ * {@link AntPathMatcher#match} once per pattern.
+ * <p>Like {@link AntPathMatcher}, a pattern without '**' matches a path ending with the path
+ * separator only if it ends with it too, or if its last segment is a single '*' matching nothing.
+ */
+public class PatternTrie {
+    private static final String SEPARATOR = AntPathMatcher.DEFAULT_PATH_SEPARATOR;
+
+    private final Node root = new Node(null);
+    private final Node absoluteRoot = new Node(null);
+
+    public PatternTrie(Collection<String> patterns) {
+        for (String pattern : patterns) {
+            add(pattern);
+        }
+    }
+
+    private void add(String pattern) {
+        String[] segments = Utils.tokenizeToStringArray(pattern, SEPARATOR, true, true);
+        boolean hasDoubleStar = false;
+        Node node = pattern.startsWith(SEPARATOR) ? absoluteRoot : root;
+        for (String segment : segments) {
+            if ("**".equals(segment)) {
+                hasDoubleStar = true;
+                if (node.doubleStar == null) node.doubleStar = new Node("**");
+                node = node.doubleStar;
+            } else if (segment.indexOf('*') < 0 && segment.indexOf('?') < 0 && segment.indexOf('{') < 0) {
+                Node child = node.literals.get(segment);
+                if (child == null) node.literals.put(segment, child = new Node(segment));
+                node = child;
+            } else {
+                node = node.globChild(segment);
+            }
+        }
+
+        if (hasDoubleStar) node.patterns.add(pattern);
+        else if (pattern.endsWith(SEPARATOR)) node.directoryPatterns.add(pattern);
+        else node.filePatterns.add(pattern);
+    }
+
+    /**
+     * Find all the patterns which fully match the given path.
+     *
+     * @param path the file path to match
+     * @return the matching patterns, in no particular order
+     */
+    public List<String> match(String path) {
+        List<Node> active = new ArrayList<Node>();
+        addClosure(active, path.startsWith(SEPARATOR) ? absoluteRoot : root);
+
+        List<Node> next = new ArrayList<Node>();
+        int length = path.length();
+        for (int start = 0; start < length && !active.isEmpty(); ) {
+            int end = start;
+            while (end < length && SEPARATOR.indexOf(path.charAt(end)) < 0) ++end;
+
+            int from = start, to = end;
+            while (from < to && Character.isWhitespace(path.charAt(from))) ++from;
+            while (to > from && Character.isWhitespace(path.charAt(to - 1))) --to;
+            start = end + 1;
+            if (from == to) continue;
+
+            String segment = null;
+            for (Node node : active) {
+                if (node.isDoubleStar()) addClosure(next, node);
+                if (!node.literals.isEmpty()) {
+                    if (segment == null) segment = path.substring(from, to);
+                    Node child = node.literals.get(segment);
+                    if (child != null) addClosure(next, child);
+                }
+                for (Node glob : node.globs) {
+                    if (glob.matchSegment(path, from, to)) addClosure(next, glob);
+                }
+            }
+
+            List<Node> swap = active;
+            active = next;
+            next = swap;
+            next.clear();
+        }
+
+        boolean directory = path.endsWith(SEPARATOR);
+        List<String> matched = new ArrayList<String>();
+        for (Node node : active) {
+            matched.addAll(node.patterns);
+            matched.addAll(directory ? node.directoryPatterns : node.filePatterns);
+            if (!directory) continue;
+
+            // a last '*' segment matches the empty name after the trailing separator
+            for (Node glob : node.globs) {
+                if ("*".equals(glob.segment)) {
+                    matched.addAll(glob.filePatterns);
+                    matched.addAll(glob.directoryPatterns);
+                }
+            }
+        }
+        return matched;
+    }
+
+    public boolean matches(String path) {
+        return !match(path).isEmpty();
+    }
+
+    private static void addClosure(List<Node> nodes, Node node) {
+        for (Node existing : nodes) {
+            if (existing == node) return;
+        }
+
+        nodes.add(node);
+        if (node.doubleStar != null) addClosure(nodes, node.doubleStar);
+    }
+
+    private static class Node {
+        final String segment;
+        final Map<String, Node> literals = new HashMap<String, Node>();
+        final List<Node> globs = new ArrayList<Node>();
+        // the patterns with '**', and the others by whether they end with the separator
+        final List<String> patterns = new ArrayList<String>();
+        final List<String> directoryPatterns = new ArrayList<String>();
+        final List<String> filePatterns = new ArrayList<String>();
+        final AntPathMatcher.AntPathStringMatcher variableMatcher;
+        Node doubleStar;
+
+        Node(String segment) {
+            this.segment = segment;
+            this.variableMatcher = segment != null && segment.indexOf('{') >= 0
+                    ? new AntPathMatcher.AntPathStringMatcher(segment) : null;
+        }
+
+        boolean isDoubleStar() {
+            return "**".equals(segment);
+        }
+
+        Node globChild(String segment) {
+            for (Node glob : globs) {
+                if (glob.segment.equals(segment)) return glob;
+            }
+
+            Node child = new Node(segment);
+            globs.add(child);
+            return child;
+        }
+
+        boolean matchSegment(String path, int from, int to) {
+            if (variableMatcher != null) return variableMatcher.matchStrings(path.substring(from, to), null);
+
+            return Utils.matchGlob(segment, 0, segment.length(), path, from, to);
+        }
+    }
+}
@@ -45,6 +45,48 @@ public class Utils {
         return tokens.toArray(new String[tokens.size()]);
     }
 
+    /**
+     * Match a glob where '*' matches zero or more characters and '?' matches exactly one character.
+     *
+     * @param pattern the glob pattern
+     * @param str     the String to match
+     * @return {@code true} if the whole string matches the glob
+     */
+    public static boolean matchGlob(String pattern, String str) {
+        return matchGlob(pattern, 0, pattern.length(), str, 0, str.length());
+    }
+
+    /**
+     * Match the glob {@code pattern[patternStart, patternEnd)} against {@code str[strStart, strEnd)}
+     * without any allocation, backtracking only to the last '*' seen.
+     */
+    public static boolean matchGlob(String pattern, int patternStart, int patternEnd,
+                                    String str, int strStart, int strEnd) {
+        int p = patternStart, s = strStart, starP = -1, starS = -1;
+        while (s < strEnd) {
+            if (p < patternEnd) {
+                char c = pattern.charAt(p);
+                if (c == '*') {
+                    starP = ++p;
+                    starS = s;
+                    continue;
+                }
+                if (c == '?' || c == str.charAt(s)) {
+                    ++p;
+                    ++s;
+                    continue;
+                }
+            }
+            if (starP < 0) return false;
+
+            p = starP;
+            s = ++starS;
+        }
+
+        while (p < patternEnd && pattern.charAt(p) == '*') ++p;
+        return p == patternEnd;
+    }
+
     public static boolean hasLength(CharSequence str) {
         return (str != null && str.length() > 0);
     }
@@ -0,0 +1,96 @@
+package com.github.bingoohuang.blackcat.maven.watch;
+
+import lombok.val;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches a class directory tree, the directories created later included, and hands out the
+ * changed class files once a burst of changes, like a compiler writing a whole package, has settled.
+ */
+public class ClassFileWatcher implements Closeable {
+    private final Path root;
+    private final long debounceMillis;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> directories = new HashMap<WatchKey, Path>();
+
+    public ClassFileWatcher(File root, long debounceMillis) throws IOException {
+        this.root = root.toPath();
+        this.debounceMillis = debounceMillis;
+        this.watchService = this.root.getFileSystem().newWatchService();
+        registerTree(this.root, null);
+    }
+
+    /**
+     * Block until some class files are changed and no more change comes for the debounce time.
+     *
+     * @return the changed and the deleted class files, sorted, which may be deleted since
+     */
+    public List<File> awaitChanges() throws InterruptedException, IOException {
+        val changed = new TreeSet<File>();
+        WatchKey key = watchService.take();
+        while (key != null) {
+            collect(key, changed);
+            key = watchService.poll(debounceMillis, TimeUnit.MILLISECONDS);
+        }
+        return new ArrayList<File>(changed);
+    }
+
+    private void collect(WatchKey key, Set<File> changed) throws IOException {
+        val directory = directories.get(key);
+        for (val event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                // some events are lost, fall back to everything under the root
+                registerTree(root, changed);
+                continue;
+            }
+            if (directory == null) continue;
+
+            val path = directory.resolve((Path) event.context());
+            if (event.kind() == ENTRY_DELETE) {
+                // for the class index to forget them
+                if (isClassFile(path)) changed.add(path.toFile());
+            } else if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                // the classes written before the registration would be missed otherwise
+                if (event.kind() == ENTRY_CREATE) registerTree(path, changed);
+            } else if (isClassFile(path)) {
+                changed.add(path.toFile());
+            }
+        }
+
+        if (!key.reset()) directories.remove(key);
+    }
+
+    private void registerTree(Path start, final Set<File> classFiles) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                directories.put(dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (classFiles != null && isClassFile(file)) classFiles.add(file.toFile());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static boolean isClassFile(Path path) {
+        return path.getFileName().toString().endsWith(".class");
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
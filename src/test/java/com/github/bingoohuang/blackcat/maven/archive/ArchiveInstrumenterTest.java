@@ -0,0 +1,255 @@
+package com.github.bingoohuang.blackcat.maven.archive;
+
+import com.github.bingoohuang.blackcat.maven.classfile.ClassFileReader;
+import com.github.bingoohuang.blackcat.maven.classfile.InstrumentedMarker;
+import com.github.bingoohuang.blackcat.maven.instrument.ClassWeaver;
+import com.github.bingoohuang.blackcat.maven.instrument.InlinePolicy;
+import com.github.bingoohuang.blackcat.maven.instrument.InstrumentRules;
+import com.github.bingoohuang.blackcat.maven.instrument.WeavingFixture;
+import com.github.bingoohuang.blackcat.maven.instrument.WeavingFixtures;
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ForwardingExecutorService;
+import com.google.common.util.concurrent.ForwardingFuture;
+import junit.framework.TestCase;
+import lombok.val;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+public class ArchiveInstrumenterTest extends TestCase {
+    private static final byte[] SCRIPT = "#!/bin/sh\nexec java -jar \"$0\" \"$@\"\n".getBytes(Charsets.US_ASCII);
+    private static final byte[] CLASS = WeavingFixtures.bytes(WeavingFixture.class);
+
+    private final ExecutorService pool = Executors.newFixedThreadPool(4);
+    private File directory;
+
+    public static void timed(int methodId, long elapsedNanos) {
+    }
+
+    @Override protected void setUp() {
+        directory = Files.createTempDir();
+    }
+
+    @Override protected void tearDown() {
+        pool.shutdownNow();
+        WeavingFixtures.delete(directory);
+    }
+
+    public void testClassPath() {
+        assertEquals("com/foo/Bar.class", ArchiveInstrumenter.classPath("com/foo/Bar.class"));
+        assertEquals("com/foo/Bar.class", ArchiveInstrumenter.classPath("WEB-INF/classes/com/foo/Bar.class"));
+        assertEquals("com/foo/Bar.class", ArchiveInstrumenter.classPath("BOOT-INF/classes/com/foo/Bar.class"));
+        assertNull(ArchiveInstrumenter.classPath("WEB-INF/lib/foo.jar"));
+        assertNull(ArchiveInstrumenter.classPath("BOOT-INF/lib/com/foo/Bar.class"));
+        assertNull(ArchiveInstrumenter.classPath("META-INF/versions/9/com/foo/Bar.class"));
+        assertNull(ArchiveInstrumenter.classPath("com/foo/bar.properties"));
+    }
+
+    public void testRoundTrip() throws IOException {
+        roundTrip(new byte[0]);
+    }
+
+    public void testRoundTripWithPrependedScript() throws IOException {
+        roundTrip(SCRIPT);
+    }
+
+    public void testArchiveWithoutMatchedClassesIsUntouched() throws IOException {
+        val entries = new LinkedHashMap<String, byte[]>();
+        entries.put("org/other/Other.class", CLASS);
+        entries.put("readme.txt", "hello".getBytes(Charsets.UTF_8));
+        val archive = writeArchive(SCRIPT, entries, Collections.<String>emptySet());
+        byte[] original = Files.toByteArray(archive);
+
+        assertEquals(0, instrumenter(pool, 4).instrument(archive));
+        assertTrue(Arrays.equals(original, Files.toByteArray(archive)));
+        assertEquals(1, directory.list().length);
+    }
+
+    public void testMaxInFlight() throws IOException {
+        val entries = new LinkedHashMap<String, byte[]>();
+        val woven = new HashSet<String>();
+        for (int i = 0; i < 24; ++i) {
+            entries.put("com/foo/C" + i + ".class", CLASS);
+            woven.add("com/foo/C" + i + ".class");
+            if (i % 3 == 0) entries.put("com/foo/r" + i + ".txt", ("resource " + i).getBytes(Charsets.UTF_8));
+        }
+        val archive = writeArchive(new byte[0], entries, Collections.<String>emptySet());
+
+        val counting = new InFlightCountingPool(pool);
+        assertEquals(24, instrumenter(counting, 3).instrument(archive));
+        assertEquals(24, counting.submitted.get());
+        assertEquals(0, counting.inFlight.get());
+        assertTrue("max in flight " + counting.maxInFlight, counting.maxInFlight.get() <= 3);
+        assertTrue("max in flight " + counting.maxInFlight, counting.maxInFlight.get() > 1);
+        assertContent(archive, entries, woven);
+    }
+
+    private void roundTrip(byte[] prefix) throws IOException {
+        val entries = new LinkedHashMap<String, byte[]>();
+        entries.put("META-INF/MANIFEST.MF", "Manifest-Version: 1.0\r\n\r\n".getBytes(Charsets.UTF_8));
+        entries.put("com/foo/Deflated.class", CLASS);
+        entries.put("com/foo/Stored.class", CLASS);
+        entries.put("com/foo/bar/Nested.class", CLASS);
+        entries.put("org/other/Other.class", CLASS);
+        entries.put("com/foo/empty/", new byte[0]);
+        entries.put("WEB-INF/classes/com/foo/Web.class", CLASS);
+        entries.put("WEB-INF/lib/lib.jar", "not really a jar".getBytes(Charsets.UTF_8));
+        entries.put("BOOT-INF/classes/com/foo/Boot.class", CLASS);
+        entries.put("BOOT-INF/lib/com/foo/Lib.class", CLASS);
+        entries.put("META-INF/versions/9/com/foo/Versioned.class", CLASS);
+        entries.put("com/foo/stored.txt", "stored text".getBytes(Charsets.UTF_8));
+        val stored = new HashSet<String>(Arrays.asList("com/foo/Stored.class", "com/foo/stored.txt"));
+        val archive = writeArchive(prefix, entries, stored);
+
+        assertEquals(4, instrumenter(pool, 2).instrument(archive));
+
+        byte[] rewritten = Files.toByteArray(archive);
+        assertTrue(Arrays.equals(prefix, Arrays.copyOf(rewritten, prefix.length)));
+        assertOffsetsFromStartOfFile(rewritten);
+        assertEquals(1, directory.list().length);
+
+        val woven = new HashSet<String>(Arrays.asList("com/foo/Deflated.class", "com/foo/Stored.class",
+                "WEB-INF/classes/com/foo/Web.class", "BOOT-INF/classes/com/foo/Boot.class"));
+        assertContent(archive, entries, woven);
+
+        try (ZipFile zip = new ZipFile(archive)) {
+            assertEquals(ZipEntry.DEFLATED, zip.getEntry("com/foo/Stored.class").getMethod());
+            assertEquals(ZipEntry.STORED, zip.getEntry("com/foo/stored.txt").getMethod());
+        }
+
+        // a second pass finds the classes marked
+        assertEquals(0, instrumenter(pool, 2).instrument(archive));
+        assertTrue(Arrays.equals(rewritten, Files.toByteArray(archive)));
+    }
+
+    /**
+     * Read every entry back, which checks its CRC, and compare it with the original content,
+     * or check that it is woven and still verifies.
+     */
+    private static void assertContent(File archive, Map<String, byte[]> entries,
+                                      Set<String> woven) throws IOException {
+        try (ZipFile zip = new ZipFile(archive)) {
+            assertEquals(entries.size(), zip.size());
+            for (val expected : entries.entrySet()) {
+                val entry = zip.getEntry(expected.getKey());
+                assertNotNull(expected.getKey(), entry);
+
+                byte[] content;
+                try (InputStream in = zip.getInputStream(entry)) {
+                    content = ByteStreams.toByteArray(in);
+                }
+                val crc = new CRC32();
+                crc.update(content);
+                assertEquals(expected.getKey(), entry.getCrc(), crc.getValue());
+                assertEquals(expected.getKey(), entry.getSize(), content.length);
+
+                boolean marked = expected.getKey().endsWith(".class")
+                        && InstrumentedMarker.isMarked(new ClassFileReader(content));
+                if (!woven.contains(expected.getKey())) {
+                    assertTrue(expected.getKey(), Arrays.equals(expected.getValue(), content));
+                    assertFalse(expected.getKey(), marked);
+                } else {
+                    assertTrue(expected.getKey(), marked);
+                    WeavingFixtures.define(WeavingFixture.class.getName(), content);
+                }
+            }
+        }
+    }
+
+    // the central directory ends right where the end record starts, its offset counting from the file start
+    private static void assertOffsetsFromStartOfFile(byte[] archive) {
+        val end = ByteBuffer.wrap(archive, archive.length - 22, 22).slice().order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(0x06054b50, end.getInt(0));
+        assertEquals(archive.length - 22, end.getInt(12) + end.getInt(16));
+    }
+
+    private File writeArchive(byte[] prefix, Map<String, byte[]> entries, Set<String> stored)
+            throws IOException {
+        val bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            for (val entry : entries.entrySet()) {
+                val zipEntry = new ZipEntry(entry.getKey());
+                if (stored.contains(entry.getKey())) {
+                    val crc = new CRC32();
+                    crc.update(entry.getValue());
+                    zipEntry.setMethod(ZipEntry.STORED);
+                    zipEntry.setSize(entry.getValue().length);
+                    zipEntry.setCrc(crc.getValue());
+                }
+                zip.putNextEntry(zipEntry);
+                zip.write(entry.getValue());
+                zip.closeEntry();
+            }
+        }
+
+        val archive = new File(directory, "app.jar");
+        val content = new ByteArrayOutputStream();
+        content.write(prefix);
+        bytes.writeTo(content);
+        Files.write(content.toByteArray(), archive);
+        return archive;
+    }
+
+    private static ArchiveInstrumenter instrumenter(ExecutorService pool, int maxInFlight) {
+        val rules = new InstrumentRules(WeavingFixtures.set("com.foo.*"), Collections.<String>emptySet());
+        val weaver = new ClassWeaver(null, ArchiveInstrumenterTest.class.getName() + ".timed", InlinePolicy.NONE, null);
+        return new ArchiveInstrumenter(rules, weaver, pool, maxInFlight, new SystemStreamLog());
+    }
+
+    /**
+     * Count the classes submitted and not taken by the writer yet.
+     */
+    private static class InFlightCountingPool extends ForwardingExecutorService {
+        final ExecutorService delegate;
+        final AtomicInteger submitted = new AtomicInteger();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+
+        InFlightCountingPool(ExecutorService delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override protected ExecutorService delegate() {
+            return delegate;
+        }
+
+        @Override public <T> Future<T> submit(Callable<T> task) {
+            submitted.incrementAndGet();
+            int count = inFlight.incrementAndGet();
+            while (true) {
+                int max = maxInFlight.get();
+                if (count <= max || maxInFlight.compareAndSet(max, count)) break;
+            }
+
+            return new ForwardingFuture.SimpleForwardingFuture<T>(super.submit(task)) {
+                @Override public T get() throws InterruptedException, ExecutionException {
+                    inFlight.decrementAndGet();
+                    return super.get();
+                }
+            };
+        }
+    }
+}
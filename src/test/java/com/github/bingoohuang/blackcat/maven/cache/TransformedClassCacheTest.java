@@ -0,0 +1,140 @@
+package com.github.bingoohuang.blackcat.maven.cache;
+
+import com.github.bingoohuang.blackcat.maven.instrument.WeavingFixtures;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class TransformedClassCacheTest extends TestCase {
+    private static final long HOUR = 3600000L;
+
+    private File directory;
+    private TransformedClassCache cache;
+
+    @Override protected void setUp() {
+        directory = Files.createTempDir();
+        cache = new TransformedClassCache(directory, TransformedClassCache.salt("reporter", null, 3));
+    }
+
+    @Override protected void tearDown() {
+        WeavingFixtures.delete(directory);
+    }
+
+    public void testSalt() {
+        assertEquals(TransformedClassCache.salt("reporter", null, 3), TransformedClassCache.salt("reporter", null, 3));
+        assertFalse(TransformedClassCache.salt("reporter", null, 3).equals(TransformedClassCache.salt("reporter", 3)));
+        assertFalse(TransformedClassCache.salt("reporter").equals(TransformedClassCache.salt("other")));
+        // the format, then the hash of the code
+        assertTrue(TransformedClassCache.salt().matches("\\d+:[0-9a-f]{32}:"));
+    }
+
+    public void testKey() {
+        byte[] original = bytes("class bytes");
+        String key = cache.key(original, original.length, "+com.foo.*:[*]");
+        assertEquals(key, cache.key(bytes("class bytes and more"), original.length, "+com.foo.*:[*]"));
+        assertFalse(key.equals(cache.key(original, original.length - 1, "+com.foo.*:[*]")));
+        assertFalse(key.equals(cache.key(bytes("class bytez"), original.length, "+com.foo.*:[*]")));
+        assertFalse(key.equals(cache.key(original, original.length, "+com.foo.*:[get*]")));
+        assertFalse(key.equals(new TransformedClassCache(directory, TransformedClassCache.salt("reporter", null, 4))
+                .key(original, original.length, "+com.foo.*:[*]")));
+    }
+
+    public void testGetAndPut() throws IOException {
+        String key = key("woven");
+        assertNull(cache.get(key));
+        cache.put(key, bytes("woven"), Collections.singletonMap("get()I", "5 bytes, under minMethodSize 8"));
+        assertTrue(Arrays.equals(bytes("woven"), cache.get(key)));
+        assertEquals("5 bytes, under minMethodSize 8", cache.getSkipped(key).get("get()I"));
+
+        String unchanged = key("unchanged");
+        cache.put(unchanged, null);
+        assertEquals(0, cache.get(unchanged).length);
+        assertTrue(cache.getSkipped(unchanged).isEmpty());
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        File target = new File(directory, "Target.class");
+        Files.write(bytes("original"), target);
+        cache.copyTo(key, target);
+        assertTrue(Arrays.equals(bytes("woven"), Files.toByteArray(target)));
+    }
+
+    public void testEvictsTheLeastRecentlyUsed() throws IOException {
+        long now = System.currentTimeMillis();
+        String[] keys = {key("a"), key("b"), key("c")};
+        for (int i = 0; i < keys.length; ++i) {
+            cache.put(keys[i], new byte[100]);
+            cache.get(keys[i]);
+            used(keys[i]).setLastModified(now - (3 - i) * HOUR);
+        }
+        // a hit makes the oldest entry the most recently used one
+        cache.get(keys[0]);
+
+        assertEquals(0, cache.evict(300));
+        assertEquals(1, cache.evict(250));
+        assertNull(cache.get(keys[1]));
+        assertFalse(used(keys[1]).exists());
+        assertNotNull(cache.get(keys[0]));
+        assertNotNull(cache.get(keys[2]));
+
+        assertEquals(2, cache.evict(0));
+        assertEquals(0, countFiles(directory));
+    }
+
+    public void testEntriesWithoutUseAreByTheirWriteTime() throws IOException {
+        String older = key("older"), newer = key("newer");
+        cache.put(older, new byte[100]);
+        cache.put(newer, new byte[100]);
+        entry(older).setLastModified(System.currentTimeMillis() - HOUR);
+
+        assertEquals(1, cache.evict(100));
+        assertFalse(entry(older).exists());
+        assertTrue(entry(newer).exists());
+    }
+
+    public void testOrphanedSidecarsGoFirst() throws IOException {
+        String entry = key("entry"), orphan = key("orphan");
+        cache.put(entry, new byte[100]);
+        used(entry).setLastModified(System.currentTimeMillis() - HOUR);
+        cache.put(orphan, new byte[10], Collections.singletonMap("get()I", "too small"));
+        cache.get(orphan);
+        // another process evicted the class bytes but not the sidecars yet
+        assertTrue(entry(orphan).delete());
+
+        assertEquals(1, cache.evict(110));
+        assertFalse(used(orphan).exists());
+        assertFalse(new File(entry(orphan).getPath() + ".skipped").exists());
+        assertTrue(entry(entry).exists());
+    }
+
+    private String key(String content) {
+        byte[] bytes = bytes(content);
+        return cache.key(bytes, bytes.length, "+*");
+    }
+
+    private File entry(String key) {
+        return new File(directory, key.substring(0, 2) + File.separator + key.substring(2) + ".class");
+    }
+
+    private File used(String key) {
+        return new File(entry(key).getPath() + ".used");
+    }
+
+    private static int countFiles(File file) {
+        File[] children = file.listFiles();
+        if (children == null) return 1;
+
+        int count = 0;
+        for (File child : children) count += countFiles(child);
+        return count;
+    }
+
+    private static byte[] bytes(String content) {
+        return content.getBytes(Charsets.UTF_8);
+    }
+}
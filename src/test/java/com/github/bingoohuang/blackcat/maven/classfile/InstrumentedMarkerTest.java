@@ -0,0 +1,69 @@
+package com.github.bingoohuang.blackcat.maven.classfile;
+
+import com.github.bingoohuang.blackcat.maven.instrument.WeavingFixture;
+import com.github.bingoohuang.blackcat.maven.instrument.WeavingFixtures;
+import junit.framework.TestCase;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+public class InstrumentedMarkerTest extends TestCase {
+    public static class NamedLikeTheMarker {
+        public String name() {
+            return "BlackcatInstrumented";
+        }
+    }
+
+    public void testMarkRoundTrip() {
+        byte[] original = WeavingFixtures.bytes(WeavingFixture.class);
+        assertFalse(InstrumentedMarker.isMarked(original));
+
+        byte[] marked = InstrumentedMarker.mark(original);
+        assertTrue(InstrumentedMarker.isMarked(marked));
+        assertTrue(InstrumentedMarker.isMarked(marked, marked.length));
+        assertEquals(new ClassFileReader(original).getConstantPoolCount() + 1,
+                new ClassFileReader(marked).getConstantPoolCount());
+        assertEquals(new ClassFileReader(original).readCodeLengths(), new ClassFileReader(marked).readCodeLengths());
+
+        // the JVM ignores the attribute
+        WeavingFixtures.define(WeavingFixture.class.getName(), marked);
+    }
+
+    public void testStringConstantIsNotTheMarker() throws ReflectiveOperationException {
+        byte[] original = WeavingFixtures.bytes(NamedLikeTheMarker.class);
+        assertFalse(InstrumentedMarker.isMarked(original));
+
+        byte[] marked = InstrumentedMarker.mark(original);
+        assertTrue(InstrumentedMarker.isMarked(marked));
+        // the name is taken from the constant pool
+        assertEquals(new ClassFileReader(original).getConstantPoolCount(),
+                new ClassFileReader(marked).getConstantPoolCount());
+        Class<?> definedClass = WeavingFixtures.define(NamedLikeTheMarker.class.getName(), marked);
+        assertEquals("BlackcatInstrumented", WeavingFixtures.call(definedClass, definedClass.newInstance(), "name"));
+    }
+
+    public void testFullConstantPool() {
+        try {
+            InstrumentedMarker.mark(fullConstantPool(null));
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("constant pool of com/foo/Full is full"));
+        }
+
+        byte[] marked = InstrumentedMarker.mark(fullConstantPool(InstrumentedMarker.ATTRIBUTE));
+        assertTrue(InstrumentedMarker.isMarked(marked));
+    }
+
+    private static byte[] fullConstantPool(String constant) {
+        ClassWriter writer = new ClassWriter(0);
+        writer.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC, "com/foo/Full", null, "java/lang/Object", null);
+        if (constant != null) writer.newUTF8(constant);
+        for (int i = 0; writer.newUTF8("c" + i) < 0xFFFE; ++i) {
+            // fill the pool up to its last index
+        }
+        writer.visitEnd();
+
+        byte[] b = writer.toByteArray();
+        assertEquals(0xFFFF, new ClassFileReader(b).getConstantPoolCount());
+        return b;
+    }
+}
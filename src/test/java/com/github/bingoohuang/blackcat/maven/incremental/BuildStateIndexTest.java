@@ -0,0 +1,165 @@
+package com.github.bingoohuang.blackcat.maven.incremental;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.TypeReference;
+import com.github.bingoohuang.blackcat.maven.instrument.InstrumentRules;
+import com.github.bingoohuang.blackcat.maven.instrument.WeavingFixtures;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+import lombok.val;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+public class BuildStateIndexTest extends TestCase {
+    private static final Set<String> NONE = Collections.emptySet();
+    private static final String PATH = "com/foo/Bar.class";
+    private static final byte[] ORIGINAL = "original bytes".getBytes(Charsets.UTF_8);
+    private static final byte[] WOVEN = "woven bytes, longer".getBytes(Charsets.UTF_8);
+
+    private File directory;
+    private File outputDirectory;
+    private File stateDirectory;
+    private File classFile;
+
+    @Override protected void setUp() throws IOException {
+        directory = Files.createTempDir();
+        outputDirectory = new File(directory, "classes");
+        stateDirectory = new File(directory, "blackcat");
+        classFile = new File(outputDirectory, PATH);
+        Files.createParentDirs(classFile);
+    }
+
+    @Override protected void tearDown() {
+        WeavingFixtures.delete(directory);
+    }
+
+    public void testUnchangedClassIsUpToDate() throws IOException {
+        Files.write(ORIGINAL, classFile);
+        val index = load();
+        assertFalse(index.isUpToDate(classFile, PATH, "+com.foo.*:[*]"));
+        index.record(classFile, PATH, "+com.foo.*:[*]", ORIGINAL, false);
+        index.save();
+
+        assertTrue(load().isUpToDate(classFile, PATH, "+com.foo.*:[*]"));
+
+        // rebuilt with the same bytes, the hash tells it apart from a change
+        assertTrue(classFile.setLastModified(classFile.lastModified() - 10000));
+        assertTrue(load().isUpToDate(classFile, PATH, "+com.foo.*:[*]"));
+    }
+
+    public void testChangedClassIsProcessedAgain() throws IOException {
+        recordWoven("+com.foo.*:[*]");
+
+        byte[] recompiled = "recompiled bytes!!!".getBytes(Charsets.UTF_8);
+        assertEquals(WOVEN.length, recompiled.length);
+        Files.write(recompiled, classFile);
+        assertTrue(classFile.setLastModified(classFile.lastModified() + 10000));
+
+        val index = load();
+        assertFalse(index.isUpToDate(classFile, PATH, "+com.foo.*:[*]"));
+        assertTrue(Arrays.equals(recompiled, Files.toByteArray(classFile)));
+
+        // forgotten until recorded again, so a failed build processes it next time too
+        index.save();
+        assertFalse(load().isUpToDate(classFile, PATH, "+com.foo.*:[*]"));
+    }
+
+    public void testRuleChangeRestoresTheOriginal() throws IOException {
+        recordWoven("+com.foo.*:[*]");
+
+        val index = load();
+        assertFalse(index.isUpToDate(classFile, PATH, "+com.foo.*:[get*]"));
+        assertTrue(Arrays.equals(ORIGINAL, Files.toByteArray(classFile)));
+    }
+
+    public void testOptionChangeRestoresTheOriginal() throws IOException {
+        String rules = new InstrumentRules(WeavingFixtures.set("com.foo.*:*:sample=8"), NONE).match(PATH).getRules();
+        recordWoven(rules);
+        assertTrue(load().isUpToDate(classFile, PATH, rules));
+
+        String changed = new InstrumentRules(WeavingFixtures.set("com.foo.*:*:sample=16"), NONE).match(PATH).getRules();
+        assertFalse(load().isUpToDate(classFile, PATH, changed));
+        assertTrue(Arrays.equals(ORIGINAL, Files.toByteArray(classFile)));
+    }
+
+    public void testSavedState() throws IOException {
+        recordWoven("+com.foo.*:[*]");
+
+        Map<String, ClassState> saved = JSON.parseObject(
+                Files.toString(new File(stateDirectory, "instrument-index.json"), Charsets.UTF_8),
+                new TypeReference<Map<String, ClassState>>() {
+                });
+        val state = saved.get(PATH);
+        assertEquals(PATH, state.getPath());
+        assertEquals(WOVEN.length, state.getSize());
+        assertEquals(classFile.lastModified(), state.getMtime());
+        assertEquals("+com.foo.*:[*]", state.getRules());
+        assertTrue(state.isInstrumented());
+        assertEquals(32, state.getHash().length());
+    }
+
+    public void testRuleChangeWithoutTheOriginalKeepsTheClass() throws IOException {
+        recordWoven("+com.foo.*:[*]");
+        assertTrue(new File(stateDirectory, "originals/" + PATH).delete());
+
+        assertTrue(load().isUpToDate(classFile, PATH, "+com.foo.*:[get*]"));
+        assertTrue(Arrays.equals(WOVEN, Files.toByteArray(classFile)));
+    }
+
+    public void testRemoveUnseenRestoresTheOriginal() throws IOException {
+        recordWoven("+com.foo.*:[*]");
+
+        val index = load();
+        index.removeUnseen(outputDirectory);
+        index.save();
+        assertTrue(Arrays.equals(ORIGINAL, Files.toByteArray(classFile)));
+        assertFalse(new File(stateDirectory, "originals/" + PATH).exists());
+        assertFalse(load().isUpToDate(classFile, PATH, "+com.foo.*:[*]"));
+    }
+
+    public void testRemoveUnseenKeepsSeenAndDeletedClasses() throws IOException {
+        recordWoven("+com.foo.*:[*]");
+
+        val index = load();
+        assertTrue(index.isUpToDate(classFile, PATH, "+com.foo.*:[*]"));
+        index.removeUnseen(outputDirectory);
+        assertTrue(Arrays.equals(WOVEN, Files.toByteArray(classFile)));
+        assertTrue(new File(stateDirectory, "originals/" + PATH).isFile());
+
+        assertTrue(classFile.delete());
+        load().removeUnseen(outputDirectory);
+        assertFalse(classFile.exists());
+        assertFalse(new File(stateDirectory, "originals/" + PATH).exists());
+    }
+
+    public void testUnreadableIndexProcessesAllClasses() throws IOException {
+        recordWoven("+com.foo.*:[*]");
+        Files.write("{not json", new File(stateDirectory, "instrument-index.json"), Charsets.UTF_8);
+
+        assertFalse(load().isUpToDate(classFile, PATH, "+com.foo.*:[*]"));
+    }
+
+    /**
+     * What the instrument goal does for a woven class: back up the original bytes, overwrite them, record them.
+     */
+    private void recordWoven(String rules) throws IOException {
+        val index = load();
+        Files.write(ORIGINAL, classFile);
+        assertFalse(index.isUpToDate(classFile, PATH, rules));
+        index.backup(PATH, ORIGINAL);
+        Files.write(WOVEN, classFile);
+        index.record(classFile, PATH, rules, WOVEN, true);
+        index.save();
+    }
+
+    private BuildStateIndex load() {
+        return BuildStateIndex.load(stateDirectory, new SystemStreamLog());
+    }
+}
@@ -0,0 +1,149 @@
+package com.github.bingoohuang.blackcat.maven.instrument;
+
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+import lombok.val;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * The classes of the hierarchy are generated in a directory and a jar, out of the classpath of the test.
+ */
+public class ClassHierarchyTest extends TestCase {
+    private File directory;
+    private ClassHierarchy hierarchy;
+
+    @Override protected void setUp() throws IOException {
+        directory = Files.createTempDir();
+        val classes = new File(directory, "classes");
+        write(classes, "com/foo/Base", "java/lang/Object", Opcodes.ACC_PUBLIC | Opcodes.ACC_ABSTRACT);
+        write(classes, "com/foo/A", "com/foo/Base", Opcodes.ACC_PUBLIC);
+
+        val jar = new File(directory, "lib.jar");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar))) {
+            for (String[] type : new String[][]{{"com/foo/B", "com/foo/Base"}, {"com/foo/C", "com/foo/A"},
+                    {"com/foo/A", "java/lang/Object"}}) {
+                out.putNextEntry(new ZipEntry(type[0] + ".class"));
+                out.write(type(type[0], type[1], Opcodes.ACC_PUBLIC));
+            }
+            out.putNextEntry(new ZipEntry("com/foo/Api.class"));
+            out.write(type("com/foo/Api", "java/lang/Object",
+                    Opcodes.ACC_PUBLIC | Opcodes.ACC_INTERFACE | Opcodes.ACC_ABSTRACT));
+        }
+
+        hierarchy = ClassHierarchy.build(Arrays.asList(classes, jar, new File(directory, "missing")), 2);
+    }
+
+    @Override protected void tearDown() throws IOException {
+        hierarchy.close();
+        WeavingFixtures.delete(directory);
+    }
+
+    public void testTypesAreNotOnThePluginClasspath() {
+        try {
+            Class.forName("com.foo.A");
+            fail();
+        } catch (ClassNotFoundException e) {
+            // expected
+        }
+    }
+
+    public void testGetCommonSuperClass() {
+        assertEquals(5, hierarchy.size());
+        assertEquals("com/foo/Base", hierarchy.getCommonSuperClass("com/foo/A", "com/foo/B"));
+        assertEquals("com/foo/Base", hierarchy.getCommonSuperClass("com/foo/C", "com/foo/B"));
+        assertEquals("com/foo/A", hierarchy.getCommonSuperClass("com/foo/C", "com/foo/A"));
+        assertEquals("com/foo/A", hierarchy.getCommonSuperClass("com/foo/A", "com/foo/A"));
+        assertEquals(ClassHierarchy.OBJECT, hierarchy.getCommonSuperClass("com/foo/A", "java/lang/String"));
+        assertEquals(ClassHierarchy.OBJECT, hierarchy.getCommonSuperClass("com/foo/Api", "com/foo/A"));
+        assertEquals("java/lang/Number", hierarchy.getCommonSuperClass("java/lang/Integer", "java/lang/Long"));
+
+        // the directory comes first on the classpath
+        assertEquals("com/foo/Base", hierarchy.getHeader("com/foo/A").getSuperName());
+        assertTrue(hierarchy.getHeader("com/foo/Api").isInterface());
+
+        try {
+            hierarchy.getCommonSuperClass("com/foo/Missing", "com/foo/A");
+            fail();
+        } catch (TypeNotPresentException e) {
+            assertEquals("com.foo.Missing", e.typeName());
+        }
+    }
+
+    public void testComputeFrames() {
+        byte[] user = pickUser();
+        try {
+            val reader = new ClassReader(user);
+            reader.accept(new ClassWriter(ClassWriter.COMPUTE_FRAMES), 0);
+            fail("the plugin class loader does not see the classes");
+        } catch (RuntimeException e) {
+            // expected
+        }
+
+        val stackTypes = new ArrayList<Object>();
+        new ClassReader(hierarchy.computeFrames(user)).accept(new ClassVisitor(Opcodes.ASM5) {
+            @Override public MethodVisitor visitMethod(int access, String name, String desc,
+                                                       String signature, String[] exceptions) {
+                return new MethodVisitor(Opcodes.ASM5) {
+                    @Override public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack) {
+                        stackTypes.addAll(Arrays.asList(stack).subList(0, nStack));
+                    }
+                };
+            }
+        }, ClassReader.EXPAND_FRAMES);
+        assertEquals(Arrays.<Object>asList("com/foo/Base"), stackTypes);
+    }
+
+    // Base pick(boolean a) { return a ? new A() : new B(); }
+    private static byte[] pickUser() {
+        val writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC, "com/foo/User", null, "java/lang/Object", null);
+        val mv = writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "pick", "(Z)Lcom/foo/Base;", null, null);
+        mv.visitCode();
+        val elseLabel = new Label();
+        val endLabel = new Label();
+        mv.visitVarInsn(Opcodes.ILOAD, 0);
+        mv.visitJumpInsn(Opcodes.IFEQ, elseLabel);
+        newInstance(mv, "com/foo/A");
+        mv.visitJumpInsn(Opcodes.GOTO, endLabel);
+        mv.visitLabel(elseLabel);
+        newInstance(mv, "com/foo/B");
+        mv.visitLabel(endLabel);
+        mv.visitInsn(Opcodes.ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    private static void newInstance(MethodVisitor mv, String type) {
+        mv.visitTypeInsn(Opcodes.NEW, type);
+        mv.visitInsn(Opcodes.DUP);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, type, "<init>", "()V", false);
+    }
+
+    private static void write(File directory, String name, String superName, int access) throws IOException {
+        val file = new File(directory, name + ".class");
+        Files.createParentDirs(file);
+        Files.write(type(name, superName, access), file);
+    }
+
+    private static byte[] type(String name, String superName, int access) {
+        val writer = new ClassWriter(0);
+        writer.visit(Opcodes.V1_7, access, name, null, superName, null);
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+}
@@ -0,0 +1,79 @@
+package com.github.bingoohuang.blackcat.maven.instrument;
+
+import com.github.bingoohuang.blackcat.maven.classfile.ClassFileReader;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+import lombok.val;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class InstrumentAnalysisTest extends TestCase {
+    private static final String PROBE_OWNER = InstrumentAnalysisTest.class.getName().replace('.', '/');
+
+    public static void probe() {
+    }
+
+    public static void slow(String className, String method, long elapsedNanos) {
+    }
+
+    public void testProbesAreTheMethodsLeftWoven() {
+        byte[] original = WeavingFixtures.bytes(WeavingFixture.class);
+        byte[] woven = WeavingFixtures.probeEntries(original, WeavingFixtures.select("countDown", "join"), PROBE_OWNER, "probe");
+        assertEquals(2, countProbes(original, woven));
+        assertEquals(0, countProbes(original, original));
+    }
+
+    public void testInlineSkippedMethodsAreNotProbes() {
+        byte[] original = WeavingFixtures.bytes(WeavingFixture.class);
+        val selector = WeavingFixtures.select("countDown", "join", "getTotal");
+        byte[] woven = WeavingFixtures.probeEntries(original, selector, PROBE_OWNER, "probe");
+        selector.skip("getTotal", "()J", "5 bytes, under minMethodSize 8");
+        // what MethodFilter does with the skipped method
+        byte[] filtered = MethodFilter.filter(original, woven, selector);
+        assertEquals(2, countProbes(original, filtered));
+    }
+
+    public void testTimedAndSampledMethodsCountOnceWithoutTheirCopies() {
+        Map<String, MethodOptions> options = new HashMap<String, MethodOptions>();
+        options.put("sleep", new MethodOptions(0, TimeUnit.MILLISECONDS.toNanos(1)));
+        options.put("join", new MethodOptions(16, 0));
+        val selector = new MethodSelector(WeavingFixtures.set("sleep", "join", "countDown"),
+                Collections.<String>emptySet(), options, 1);
+
+        byte[] original = WeavingFixtures.bytes(WeavingFixture.class);
+        byte[] probed = WeavingFixtures.probeEntries(original, selector, PROBE_OWNER, "probe");
+        byte[] timed = new ThresholdWeaver(InstrumentAnalysisTest.class.getName() + ".slow").weave(probed, selector);
+        byte[] woven = SamplingWeaver.sample(original, timed, selector);
+        assertEquals(3, countProbes(original, woven));
+    }
+
+    public void testReport() throws Exception {
+        val rules = new InstrumentRules(WeavingFixtures.set("com.github/*:countDown"), Collections.<String>emptySet());
+        val analysis = new InstrumentAnalysis(rules);
+        String path = WeavingFixture.class.getName().replace('.', '/') + ".class";
+        analysis.matched(path);
+
+        byte[] original = WeavingFixtures.bytes(WeavingFixture.class);
+        val selector = rules.match(path).newMethodSelector();
+        analysis.woven(path, original, WeavingFixtures.probeEntries(original, selector, PROBE_OWNER, "probe"), selector);
+
+        val reportFile = File.createTempFile("instrument-analysis", ".json");
+        try {
+            analysis.writeReport(reportFile);
+            String report = Files.toString(reportFile, Charsets.UTF_8);
+            assertTrue(report, report.contains("\"classes\":1"));
+            assertTrue(report, report.contains("\"probes\":1"));
+        } finally {
+            reportFile.delete();
+        }
+    }
+
+    private static int countProbes(byte[] original, byte[] woven) {
+        return InstrumentAnalysis.countProbes(new ClassFileReader(original), original, new ClassFileReader(woven), woven);
+    }
+}
@@ -0,0 +1,209 @@
+package com.github.bingoohuang.blackcat.maven.instrument;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+import lombok.val;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.bingoohuang.blackcat.maven.instrument.WeavingFixtures.set;
+
+public class InstrumentRulesTest extends TestCase {
+    private static final Set<String> NONE = Collections.emptySet();
+    private static final String PREFIX = InstrumentRulesTest.class.getName().replace('.', '/');
+
+    @Retention(RetentionPolicy.CLASS)
+    @interface Marked {
+    }
+
+    @Marked
+    static class Annotated {
+        @Marked void timed() {
+        }
+
+        void plain() {
+        }
+    }
+
+    static class Task implements Runnable {
+        @Override public void run() {
+        }
+    }
+
+    static class SubTask extends Task {
+    }
+
+    public void testPatternKeys() {
+        assertEquals(ImmutableSet.of("**/*.class"), rules().getIncludes().keySet());
+        assertEquals(ImmutableSet.of("**/*.class"), rules("*").getIncludes().keySet());
+        assertEquals(ImmutableSet.of("com/foo/Bar.class", "com/foo/*.class", "com/foo/**/*.class"),
+                rules("com.foo.Bar", "com.foo.*", "com.foo/*").getIncludes().keySet());
+
+        val rules = rules("com.foo.*", "org/*");
+        assertTrue(rules.isIncluded("com/foo/Bar.class"));
+        assertFalse(rules.isIncluded("com/foo/bar/Baz.class"));
+        assertTrue(rules.isIncluded("org/foo/bar/Baz.class"));
+        assertFalse(rules.isIncluded("net/Baz.class"));
+        assertTrue(rules.mayIncludeDirectory("org/foo"));
+        assertFalse(rules.mayIncludeDirectory("net"));
+    }
+
+    public void testMethodsAndOptions() {
+        val rules = new InstrumentRules(set("com.foo.Bar:get*:sample=1000",
+                "com.foo.Bar:doWork(Ljava/lang/String;)*:threshold=5ms", "com.foo.*:@com.foo.Timed"), NONE, 1,
+                new ClassIndex());
+        assertEquals(ImmutableSet.of("get*", "doWork(Ljava/lang/String;)*"), rules.getIncludes().get("com/foo/Bar.class"));
+        assertEquals(ImmutableSet.of("@com/foo/Timed"), rules.getIncludes().get("com/foo/*.class"));
+        assertTrue(rules.hasThresholds());
+
+        val match = rules.match("com/foo/Bar.class");
+        assertEquals(ImmutableSet.of("get*", "doWork(Ljava/lang/String;)*", "@com/foo/Timed"), match.getIncludesSet());
+        val selector = match.newMethodSelector();
+        assertTrue(selector.isSelected("getName", "()V"));
+        assertEquals(1000, selector.getSampleRate("getName", "()V"));
+        assertTrue(selector.isSelected("doWork", "(Ljava/lang/String;)V"));
+        assertFalse(selector.isSelected("doWork", "(I)V"));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(5), selector.getThresholdNanos("doWork", "(Ljava/lang/String;)V"));
+        assertFalse(selector.isSelected("run", "()V"));
+    }
+
+    public void testExcludes() {
+        val rules = new InstrumentRules(set("com.foo.*"), set("com.foo.Secret", "com.foo.Bar:get*"));
+        assertTrue(rules.match("com/foo/Secret.class").isExcluded());
+        val match = rules.match("com/foo/Bar.class");
+        assertFalse(match.isExcluded());
+        assertFalse(match.newMethodSelector().isSelected("getName", "()V"));
+        assertTrue(match.newMethodSelector().isSelected("setName", "(Ljava/lang/String;)V"));
+        assertEquals(Arrays.asList("+com.foo.*", "-com.foo.Bar:get*"), rules.matchRuleNames("com/foo/Bar.class"));
+        assertEquals(Arrays.asList("+com.foo.*", "-com.foo.Bar:get*", "-com.foo.Secret"), rules.getRuleNames());
+    }
+
+    public void testMalformed() {
+        for (String rule : new String[]{":", ":get*", "@", "+", "@:run", "com.foo.Bar::sample=2", "com.foo.Bar:@",
+                "com.foo.Bar:get*:set*", "com.foo.Bar:get*:sample=0", "com.foo.Bar:*:threshold=fast"}) {
+            try {
+                rules(rule);
+                fail(rule);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+
+        try {
+            new InstrumentRules(set("com.foo.*"), set("com.foo.Bar:get*:sample=2"));
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("only allowed on include rules"));
+        }
+        try {
+            rules("@com.foo.Marked");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("indexed"));
+        }
+    }
+
+    public void testRulesSignatureIsStable() {
+        List<String> sources = Arrays.asList("com.foo.Bar:get*:sample=8", "com.foo.Bar:get*:sample=2",
+                "com.foo.*:run:threshold=5ms", "com.foo.Bar:doWork(I)*", "com.foo/*:@com.foo.Timed");
+        String rules = null;
+        for (int i = 0; i < sources.size(); ++i) {
+            val rotated = new LinkedHashSet<String>(sources.subList(i, sources.size()));
+            rotated.addAll(sources.subList(0, i));
+            val match = new InstrumentRules(rotated, NONE, 1, new ClassIndex()).match("com/foo/Bar.class");
+            if (rules == null) rules = match.getRules();
+            assertEquals(rules, match.getRules());
+            assertEquals(2, match.getOptions().get("get*").getSampleRate());
+        }
+        assertTrue(rules, rules.contains("get*:sample=2"));
+        assertTrue(rules, rules.contains("run:threshold=5000000ns"));
+
+        String sameOptions = rules("com.foo.*:run:threshold=5000us").match("com/foo/Bar.class").getRules();
+        assertEquals(rules("com.foo.*:run:threshold=5ms").match("com/foo/Bar.class").getRules(), sameOptions);
+        assertFalse(sameOptions.equals(rules("com.foo.*:run:threshold=6ms").match("com/foo/Bar.class").getRules()));
+        assertFalse(sameOptions.equals(new InstrumentRules(set("com.foo.*:run:threshold=5ms"), NONE, 16)
+                .match("com/foo/Bar.class").getRules()));
+    }
+
+    public void testAnnotationAndSupertypeRules() throws Exception {
+        File directory = Files.createTempDir();
+        try {
+            for (Class<?> fixture : Arrays.asList(Annotated.class, Task.class, SubTask.class, WeavingFixture.class)) {
+                write(directory, fixture);
+            }
+            val index = ClassIndex.build(Collections.singletonList(directory), 2);
+
+            String marked = Marked.class.getName();
+            assertTrue(InstrumentRules.needsIndex(set("@" + marked), NONE));
+            assertTrue(InstrumentRules.needsIndex(NONE, set("+java.lang.Runnable")));
+            assertTrue(InstrumentRules.needsIndex(set("com.foo.*:@" + marked), NONE));
+            assertFalse(InstrumentRules.needsIndex(set("com.foo.Bar:get*+:sample=2"), NONE));
+
+            val rules = new InstrumentRules(set("@" + marked, "+java.lang.Runnable:run"), NONE, 1, index);
+            assertTrue(rules.isIncluded(PREFIX + "$Annotated.class"));
+            assertTrue(rules.isIncluded(PREFIX + "$Task.class"));
+            assertTrue(rules.isIncluded(PREFIX + "$SubTask.class"));
+            assertFalse(rules.isIncluded(PREFIX.replace("InstrumentRulesTest", "WeavingFixture") + ".class"));
+            assertTrue(rules.mayIncludeDirectory(PREFIX.substring(0, PREFIX.lastIndexOf('/'))));
+            assertEquals(Collections.singletonList("++java.lang.Runnable:run"),
+                    rules.matchRuleNames(PREFIX + "$SubTask.class"));
+
+            val methodRules = new InstrumentRules(set("com.github/*:@" + marked), NONE, 1, index);
+            val selector = methodRules.match(PREFIX + "$Annotated.class").newMethodSelector();
+            assertTrue(selector.isSelected("timed", "()V"));
+            assertFalse(selector.isSelected("plain", "()V"));
+        } finally {
+            WeavingFixtures.delete(directory);
+        }
+    }
+
+    public void testClassIndexUpdate() throws Exception {
+        File directory = Files.createTempDir();
+        try {
+            File task = write(directory, Task.class);
+            File subTask = write(directory, SubTask.class);
+            val index = ClassIndex.build(Collections.singletonList(directory), 2);
+            assertTrue(index.getSupertypes(PREFIX + "$SubTask").contains("java/lang/Runnable"));
+
+            // Task no longer implements Runnable, SubTask is deleted and WeavingFixture is new
+            val writer = new ClassWriter(0);
+            writer.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC, PREFIX + "$Task", null, "java/lang/Object", null);
+            writer.visitEnd();
+            Files.write(writer.toByteArray(), task);
+            File added = write(directory, WeavingFixture.class);
+            index.update(directory, Arrays.asList(task, added));
+            assertFalse(index.getSupertypes(PREFIX + "$SubTask").contains("java/lang/Runnable"));
+            assertEquals(3, index.size());
+
+            assertTrue(subTask.delete());
+            index.update(directory, Arrays.asList(subTask, new File(directory.getParentFile(), "Other.class")));
+            assertEquals(ImmutableSet.of(PREFIX + "$Task", WeavingFixture.class.getName().replace('.', '/')),
+                    ImmutableSet.copyOf(index.getClassNames()));
+        } finally {
+            WeavingFixtures.delete(directory);
+        }
+    }
+
+    private static File write(File directory, Class<?> fixture) throws IOException {
+        File classFile = new File(directory, fixture.getName().replace('.', '/') + ".class");
+        Files.createParentDirs(classFile);
+        Files.write(WeavingFixtures.bytes(fixture), classFile);
+        return classFile;
+    }
+
+    private static InstrumentRules rules(String... includes) {
+        return new InstrumentRules(set(includes), NONE);
+    }
+}
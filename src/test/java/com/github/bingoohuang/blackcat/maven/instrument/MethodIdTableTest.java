@@ -0,0 +1,144 @@
+package com.github.bingoohuang.blackcat.maven.instrument;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+import lombok.val;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class MethodIdTableTest extends TestCase {
+    private static final String FIXTURE = Fixture.class.getName().replace('.', '/');
+    private static final List<Integer> reported = new ArrayList<Integer>();
+
+    private File outputDirectory;
+
+    public static void timed(int methodId, long nanos) {
+        assertTrue(nanos >= 0);
+        reported.add(methodId);
+    }
+
+    public static class Fixture {
+        private int x;
+
+        public int getX() {
+            return x;
+        }
+
+        public void add(int delta) {
+            x += delta;
+        }
+
+        public static long twice(long value) {
+            return 2 * value;
+        }
+
+        public static int sum(int[] values) {
+            int sum = 0;
+            for (int value : values) sum += value;
+            return sum;
+        }
+    }
+
+    @Override
+    protected void setUp() {
+        outputDirectory = Files.createTempDir();
+        reported.clear();
+    }
+
+    @Override
+    protected void tearDown() {
+        WeavingFixtures.delete(outputDirectory);
+    }
+
+    public void testProbesPassTheIdsOfTheManifest() throws Exception {
+        val ids = new MethodIdTable();
+        byte[] woven = weave(ids, WeavingFixtures.select("getX", "add"));
+        assertEquals(2, ids.write(outputDirectory, new SystemStreamLog()));
+        assertEquals("0\t" + Fixture.class.getName() + "\tgetX\t()I\n"
+                + "1\t" + Fixture.class.getName() + "\tadd\t(I)V\n", manifest());
+
+        Class<?> fixture = WeavingFixtures.define(Fixture.class.getName(), woven);
+        Object instance = fixture.newInstance();
+        fixture.getMethod("add", int.class).invoke(instance, 3);
+        assertEquals(3, fixture.getMethod("getX").invoke(instance));
+        assertEquals(8L, fixture.getMethod("twice", long.class).invoke(null, 4L));
+        assertEquals("[1, 0]", reported.toString());
+    }
+
+    public void testIdsAreKeptAndFreedIdsReused() throws Exception {
+        val first = new MethodIdTable();
+        weave(first, WeavingFixtures.select("getX", "add"));
+        first.write(outputDirectory, new SystemStreamLog());
+
+        // getX removed from the rules, twice added
+        val second = MethodIdTable.load(outputDirectory);
+        weave(second, WeavingFixtures.select("add", "twice"));
+        second.write(outputDirectory, new SystemStreamLog());
+        assertEquals("1\t" + Fixture.class.getName() + "\tadd\t(I)V\n"
+                + "2\t" + Fixture.class.getName() + "\ttwice\t(J)J\n", manifest());
+
+        val third = MethodIdTable.load(outputDirectory);
+        weave(third, WeavingFixtures.select("getX", "add", "twice"));
+        third.write(outputDirectory, new SystemStreamLog());
+        assertEquals("0\t" + Fixture.class.getName() + "\tgetX\t()I\n"
+                + "1\t" + Fixture.class.getName() + "\tadd\t(I)V\n"
+                + "2\t" + Fixture.class.getName() + "\ttwice\t(J)J\n", manifest());
+    }
+
+    public void testInlineSkippedMethodsGiveTheirIdsBack() throws Exception {
+        val ids = new MethodIdTable();
+        val selector = WeavingFixtures.selectAll();
+        // the wrappers of getX and twice cross a MaxInlineSize of 8 bytes, add and sum are over it already
+        val weaver = new ClassWeaver(null, MethodIdTableTest.class.getName() + ".timed",
+                new InlinePolicy(0, true, 8, 325), null);
+        write(weaver.weave(WeavingFixtures.bytes(Fixture.class), selector, ids));
+        assertEquals(WeavingFixtures.set("getX()I", "twice(J)J"), selector.getSkipped().keySet());
+        assertEquals(2, ids.write(outputDirectory, new SystemStreamLog()));
+        assertEquals("1\t" + Fixture.class.getName() + "\tadd\t(I)V\n"
+                + "3\t" + Fixture.class.getName() + "\tsum\t([I)I\n", manifest());
+        assertEquals(0, ids.idOf("com/foo/Bar", "run", "()V"));
+    }
+
+    public void testSampledMethodsKeepTheirIds() throws Exception {
+        val ids = new MethodIdTable();
+        val selector = new MethodSelector(WeavingFixtures.set("twice"), WeavingFixtures.<String>set(),
+                Collections.<String, MethodOptions>emptyMap(), 4);
+        byte[] woven = weave(ids, selector);
+        assertEquals(1, ids.write(outputDirectory, new SystemStreamLog()));
+        assertEquals("0\t" + Fixture.class.getName() + "\ttwice\t(J)J\n", manifest());
+
+        Class<?> fixture = WeavingFixtures.define(Fixture.class.getName(), woven);
+        for (int i = 0; i < 256; ++i) assertEquals(2L * i, fixture.getMethod("twice", long.class).invoke(null, i));
+        assertFalse(reported.isEmpty());
+        assertTrue(reported.size() < 256);
+    }
+
+    public void testNoManifestWithoutIds() throws Exception {
+        Files.createParentDirs(new File(outputDirectory, MethodIdTable.MANIFEST));
+        Files.write("0\tcom.foo.Gone\tm\t()V\n", new File(outputDirectory, MethodIdTable.MANIFEST), Charsets.UTF_8);
+        assertEquals(0, MethodIdTable.load(outputDirectory).write(outputDirectory, new SystemStreamLog()));
+        assertFalse(new File(outputDirectory, MethodIdTable.MANIFEST).exists());
+    }
+
+    private byte[] weave(MethodIdTable ids, MethodSelector selector) throws Exception {
+        val weaver = new ClassWeaver(null, MethodIdTableTest.class.getName() + ".timed", InlinePolicy.NONE, null);
+        byte[] woven = weaver.weave(WeavingFixtures.bytes(Fixture.class), selector, ids);
+        write(woven);
+        return woven;
+    }
+
+    private void write(byte[] woven) throws Exception {
+        val classFile = new File(outputDirectory, FIXTURE + ".class");
+        Files.createParentDirs(classFile);
+        Files.write(woven, classFile);
+    }
+
+    private String manifest() throws Exception {
+        return Files.toString(new File(outputDirectory, MethodIdTable.MANIFEST), Charsets.UTF_8);
+    }
+}
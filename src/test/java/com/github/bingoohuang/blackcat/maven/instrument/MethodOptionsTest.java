@@ -0,0 +1,51 @@
+package com.github.bingoohuang.blackcat.maven.instrument;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.TimeUnit;
+
+public class MethodOptionsTest extends TestCase {
+    private static final String RULE = "com.foo.Bar:*";
+
+    public void testParse() {
+        assertEquals(new MethodOptions(1024, 0), parse("sample=1024"));
+        assertEquals(new MethodOptions(0, 5), parse("threshold=5ns"));
+        assertEquals(new MethodOptions(0, TimeUnit.MICROSECONDS.toNanos(5)), parse("threshold=5us"));
+        assertEquals(new MethodOptions(0, TimeUnit.MILLISECONDS.toNanos(5)), parse("threshold=5ms"));
+        assertEquals(new MethodOptions(0, TimeUnit.MILLISECONDS.toNanos(5)), parse("threshold=5"));
+        assertEquals(new MethodOptions(0, TimeUnit.SECONDS.toNanos(5)), parse("threshold=5s"));
+        assertEquals(new MethodOptions(8, 0), parse(" sample = 8 "));
+
+        MethodOptions options = MethodOptions.parse(RULE, "sample=8", MethodOptions.NONE);
+        assertEquals(new MethodOptions(8, 5), MethodOptions.parse(RULE, "threshold=5ns", options));
+    }
+
+    public void testMalformed() {
+        for (String option : new String[]{"sample", "sample=", "sample=0", "sample=-1", "sample=x",
+                "threshold=0", "threshold=-5ms", "threshold=5h", "threshold=ms", "rate=2"}) {
+            try {
+                parse(option);
+                fail(option);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    public void testMerge() {
+        assertEquals(new MethodOptions(2, 5), new MethodOptions(8, 5).merge(new MethodOptions(2, 0)));
+        assertEquals(new MethodOptions(8, 3), new MethodOptions(8, 5).merge(new MethodOptions(0, 3)));
+        assertEquals(new MethodOptions(8, 5), MethodOptions.NONE.merge(new MethodOptions(8, 5)));
+    }
+
+    public void testSignatureIsTheSameForTheSameOptions() {
+        assertEquals("", MethodOptions.NONE.signature());
+        assertEquals(":sample=16:threshold=5000000ns", new MethodOptions(16, 5000000).signature());
+        assertEquals(parse("threshold=5ms").signature(), parse("threshold=5000us").signature());
+        assertEquals(parse("threshold=1s").signature(), parse("threshold=1000").signature());
+    }
+
+    private static MethodOptions parse(String option) {
+        return MethodOptions.parse(RULE, option, MethodOptions.NONE);
+    }
+}
@@ -0,0 +1,80 @@
+package com.github.bingoohuang.blackcat.maven.instrument;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.github.bingoohuang.blackcat.maven.instrument.WeavingFixtures.set;
+
+public class MethodSelectorTest extends TestCase {
+    public void testNameGlobs() {
+        MethodSelector selector = new MethodSelector(set("get*", "is?"), set("getClass"));
+        assertTrue(selector.isSelected("getName", "()Ljava/lang/String;"));
+        assertTrue(selector.isSelected("isA", "()Z"));
+        assertFalse(selector.isSelected("isOk", "()Z"));
+        assertFalse(selector.isSelected("getClass", "()Ljava/lang/Class;"));
+        assertFalse(selector.isSelected("setName", "(Ljava/lang/String;)V"));
+        assertFalse(selector.isSelectAll());
+    }
+
+    public void testDescriptorGlobs() {
+        MethodSelector selector = new MethodSelector(set("doWork(Ljava/lang/String;)*", "run()V"),
+                Collections.<String>emptySet());
+        assertTrue(selector.isSelected("doWork", "(Ljava/lang/String;)V"));
+        assertTrue(selector.isSelected("doWork", "(Ljava/lang/String;)I"));
+        assertFalse(selector.isSelected("doWork", "(I)V"));
+        assertTrue(selector.isSelected("run", "()V"));
+        assertFalse(selector.isSelected("run", "()I"));
+        assertFalse(selector.isSelected("runner", "()V"));
+    }
+
+    public void testAnnotationSelectors() {
+        Map<String, List<String>> methodAnnotations = new HashMap<String, List<String>>();
+        methodAnnotations.put("handle(I)V", Arrays.asList("com/foo/Timed", "com/foo/Other"));
+        methodAnnotations.put("other()V", Collections.singletonList("com/foo/Other"));
+        MethodSelector selector = new MethodSelector(set("@com/foo/Timed"), set("@com/foo/Skipped"),
+                Collections.<String, MethodOptions>emptyMap(), 1, methodAnnotations);
+        assertTrue(selector.isSelected("handle", "(I)V"));
+        assertFalse(selector.isSelected("handle", "()V"));
+        assertFalse(selector.isSelected("other", "()V"));
+        assertFalse(selector.isSelected("plain", "()V"));
+
+        methodAnnotations.put("skipped()V", Arrays.asList("com/foo/Timed", "com/foo/Skipped"));
+        assertFalse(selector.isSelected("skipped", "()V"));
+    }
+
+    public void testOptions() {
+        Map<String, MethodOptions> options = new HashMap<String, MethodOptions>();
+        options.put("get*", new MethodOptions(64, 0));
+        options.put("getName", new MethodOptions(8, 0));
+        options.put("slow*", new MethodOptions(0, 5000));
+        options.put("slowest", new MethodOptions(0, 1000));
+        MethodSelector selector = new MethodSelector(set("get*", "getName", "slow*", "slowest", "*"),
+                Collections.<String>emptySet(), options, 1024);
+
+        assertEquals(8, selector.getSampleRate("getName", "()V"));
+        assertEquals(64, selector.getSampleRate("getId", "()V"));
+        assertEquals(1024, selector.getSampleRate("run", "()V"));
+        assertEquals(5000, selector.getThresholdNanos("slow", "()V"));
+        assertEquals(1000, selector.getThresholdNanos("slowest", "()V"));
+        assertEquals(0, selector.getThresholdNanos("run", "()V"));
+        assertTrue(selector.isProbed("run", "()V"));
+        assertFalse(selector.isProbed("slow", "()V"));
+        assertTrue(selector.isSampling());
+        assertTrue(selector.hasThresholds());
+    }
+
+    public void testSkip() {
+        MethodSelector selector = WeavingFixtures.selectAll();
+        assertTrue(selector.isSelectAll());
+        selector.skip("run", "()V", "too small");
+        assertFalse(selector.isSelected("run", "()V"));
+        assertTrue(selector.isSelected("run", "(I)V"));
+        assertFalse(selector.isSelectAll());
+        assertEquals("too small", selector.getSkipped().get("run()V"));
+    }
+}
@@ -0,0 +1,95 @@
+package com.github.bingoohuang.blackcat.maven.instrument;
+
+import junit.framework.TestCase;
+
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class SamplingWeaverTest extends TestCase {
+    private static final int CALLS = 512;
+    private static int probes;
+
+    public static void probe() {
+        ++probes;
+    }
+
+    @Override
+    protected void setUp() {
+        probes = 0;
+    }
+
+    public void testSampleRateIsRoundedUpToAPowerOfTwo() {
+        assertEquals(0, SamplingWeaver.mask(1));
+        assertEquals(1, SamplingWeaver.mask(2));
+        assertEquals(3, SamplingWeaver.mask(3));
+        assertEquals(3, SamplingWeaver.mask(4));
+        assertEquals(7, SamplingWeaver.mask(5));
+        assertEquals(1023, SamplingWeaver.mask(1000));
+        assertEquals((1 << 30) - 1, SamplingWeaver.mask(1 << 30));
+        assertEquals((1 << 30) - 1, SamplingWeaver.mask(Integer.MAX_VALUE));
+    }
+
+    public void testUnsampledClassIsLeftAsWoven() {
+        byte[] original = WeavingFixtures.bytes(WeavingFixture.class);
+        MethodSelector selector = WeavingFixtures.selectAll();
+        byte[] woven = probe(original, selector);
+        assertSame(woven, SamplingWeaver.sample(original, woven, selector));
+    }
+
+    public void testSampledMethodsRunUnderTheVerifier() throws Exception {
+        Class<?> fixture = sample(selector(4, Collections.<String, MethodOptions>emptyMap()));
+        Object instance = fixture.newInstance();
+        for (int i = 0; i < CALLS; ++i) {
+            assertEquals(0, WeavingFixtures.call(fixture, null, "countDown", 3));
+            assertEquals(5.0, WeavingFixtures.call(fixture, instance, "scale", 2L, 2.5));
+            WeavingFixtures.call(fixture, instance, "add", 2L);
+            assertEquals("a1", WeavingFixtures.call(fixture, instance, "join", "a", 1));
+            Object[] wrapped = (Object[]) WeavingFixtures.call(fixture, null, "wrap", 1.5, 2, 3L);
+            assertEquals(3L, wrapped[2]);
+            try {
+                WeavingFixtures.call(fixture, null, "fail", "boom");
+                fail();
+            } catch (IllegalStateException e) {
+                assertEquals("boom", e.getMessage());
+            }
+        }
+        assertEquals(2L * CALLS, WeavingFixtures.call(fixture, instance, "getTotal"));
+
+        // 6 sampled methods called CALLS times each, and getTotal once
+        assertTrue("probes " + probes, probes > 0 && probes < 6 * CALLS / 2);
+    }
+
+    public void testWovenBodyMovesToASyntheticCopy() throws Exception {
+        Class<?> fixture = sample(selector(4, Collections.<String, MethodOptions>emptyMap()));
+        java.lang.reflect.Method copy = fixture.getDeclaredMethod("countDown" + SamplingWeaver.COPY_SUFFIX, int.class);
+        assertTrue(copy.isSynthetic());
+        assertTrue(Modifier.isPrivate(copy.getModifiers()));
+        assertTrue(Modifier.isStatic(copy.getModifiers()));
+    }
+
+    public void testRuleSampleRateOverridesTheDefault() throws Exception {
+        Map<String, MethodOptions> options = new HashMap<String, MethodOptions>();
+        options.put("countDown", new MethodOptions(1, 0));
+        options.put("*", MethodOptions.NONE);
+        Class<?> fixture = sample(selector(1 << 30, options));
+        for (int i = 0; i < CALLS; ++i) WeavingFixtures.call(fixture, null, "countDown", 1);
+        assertEquals(CALLS, probes);
+    }
+
+    private static MethodSelector selector(int defaultSampleRate, Map<String, MethodOptions> options) {
+        return new MethodSelector(WeavingFixtures.set("*", "countDown"), Collections.<String>emptySet(),
+                options, defaultSampleRate);
+    }
+
+    private static Class<?> sample(MethodSelector selector) {
+        byte[] original = WeavingFixtures.bytes(WeavingFixture.class);
+        byte[] sampled = SamplingWeaver.sample(original, probe(original, selector), selector);
+        return WeavingFixtures.define(WeavingFixture.class.getName(), sampled);
+    }
+
+    private static byte[] probe(byte[] original, MethodSelector selector) {
+        return WeavingFixtures.probeEntries(original, selector, SamplingWeaverTest.class.getName().replace('.', '/'), "probe");
+    }
+}
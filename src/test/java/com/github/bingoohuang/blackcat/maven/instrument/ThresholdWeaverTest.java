@@ -0,0 +1,139 @@
+package com.github.bingoohuang.blackcat.maven.instrument;
+
+import junit.framework.TestCase;
+import lombok.val;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class ThresholdWeaverTest extends TestCase {
+    private static final String REPORTER = ThresholdWeaverTest.class.getName() + ".slow";
+    private static final List<String> reports = new ArrayList<String>();
+    private static int probes;
+
+    public static void slow(String className, String method, long elapsedNanos) {
+        reports.add(className.substring(className.lastIndexOf('.') + 1) + "." + method
+                + (elapsedNanos >= TimeUnit.MILLISECONDS.toNanos(1) ? "" : " too fast"));
+    }
+
+    public static void probe() {
+        ++probes;
+    }
+
+    @Override
+    protected void setUp() {
+        reports.clear();
+        probes = 0;
+    }
+
+    public void testNothingToTime() {
+        assertNull(new ThresholdWeaver(REPORTER).weave(WeavingFixtures.bytes(WeavingFixture.class),
+                WeavingFixtures.selectAll()));
+    }
+
+    public void testInvalidReporter() {
+        try {
+            new ThresholdWeaver("slow");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("threshold reporter"));
+        }
+    }
+
+    public void testTimedMethodsRunUnderTheVerifier() throws Exception {
+        Class<?> fixture = weave(WeavingFixtures.bytes(WeavingFixture.class), selector("*", "3600s"));
+        callAll(fixture);
+        assertEquals(Collections.<String>emptyList(), reports);
+    }
+
+    public void testTimedMethodsRunUnderTheVerifierWithoutFrames() throws Exception {
+        byte[] java5 = withVersion(WeavingFixtures.bytes(WeavingFixture.class), Opcodes.V1_5);
+        Class<?> fixture = weave(java5, selector("*", "3600s"));
+        callAll(fixture);
+        assertEquals(Collections.<String>emptyList(), reports);
+    }
+
+    public void testSlowCallsAreReported() throws Exception {
+        Class<?> fixture = weave(WeavingFixtures.bytes(WeavingFixture.class), selector("sleep*", "1ms"));
+        WeavingFixtures.call(fixture, null, "sleep", 5L);
+        assertEquals(Collections.singletonList("WeavingFixture.sleep(J)V"), reports);
+    }
+
+    public void testSlowCallsEndingWithAnExceptionAreReported() throws Exception {
+        Class<?> fixture = weave(WeavingFixtures.bytes(WeavingFixture.class), selector("sleep*", "1ms"));
+        try {
+            WeavingFixtures.call(fixture, null, "sleepAndFail", 5L);
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("slow", e.getMessage());
+        }
+        assertEquals(Collections.singletonList("WeavingFixture.sleepAndFail(J)V"), reports);
+    }
+
+    public void testTimedAndSampledMethodsTogether() throws Exception {
+        Map<String, MethodOptions> options = new HashMap<String, MethodOptions>();
+        options.put("sleep", new MethodOptions(0, TimeUnit.MILLISECONDS.toNanos(1)));
+        val selector = new MethodSelector(WeavingFixtures.set("*", "sleep"), Collections.<String>emptySet(), options, 2);
+
+        // in the order of ClassWeaver: probes, threshold checks, then sampling
+        byte[] original = WeavingFixtures.bytes(WeavingFixture.class);
+        byte[] probed = WeavingFixtures.probeEntries(original, selector,
+                ThresholdWeaverTest.class.getName().replace('.', '/'), "probe");
+        byte[] timed = new ThresholdWeaver(REPORTER).weave(probed, selector);
+        Class<?> fixture = WeavingFixtures.define(WeavingFixture.class.getName(),
+                SamplingWeaver.sample(original, timed, selector));
+
+        for (int i = 0; i < 64; ++i) callAll(fixture);
+        WeavingFixtures.call(fixture, null, "sleep", 5L);
+        assertEquals(Collections.singletonList("WeavingFixture.sleep(J)V"), reports);
+        assertTrue("probes " + probes, probes > 0 && probes < 64 * 7);
+    }
+
+    private static void callAll(Class<?> fixture) throws Exception {
+        Object instance = fixture.newInstance();
+        assertEquals(0, WeavingFixtures.call(fixture, null, "countDown", 3));
+        assertEquals(5.0, WeavingFixtures.call(fixture, instance, "scale", 2L, 2.5));
+        WeavingFixtures.call(fixture, instance, "add", 2L);
+        assertEquals(2L, WeavingFixtures.call(fixture, instance, "getTotal"));
+        assertEquals("a1", WeavingFixtures.call(fixture, instance, "join", "a", 1));
+        assertEquals(2, ((Object[]) WeavingFixtures.call(fixture, null, "wrap", 1.5, 2, 3L))[1]);
+        try {
+            WeavingFixtures.call(fixture, null, "fail", "boom");
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("boom", e.getMessage());
+        }
+    }
+
+    private static MethodSelector selector(String methods, String threshold) {
+        Map<String, MethodOptions> options = Collections.singletonMap(methods,
+                MethodOptions.parse(methods, "threshold=" + threshold, MethodOptions.NONE));
+        return new MethodSelector(WeavingFixtures.set(methods), Collections.<String>emptySet(), options, 1);
+    }
+
+    private static Class<?> weave(byte[] original, MethodSelector selector) {
+        byte[] timed = new ThresholdWeaver(REPORTER).weave(original, selector);
+        return WeavingFixtures.define(WeavingFixture.class.getName(), timed);
+    }
+
+    private static byte[] withVersion(byte[] b, final int version) {
+        val reader = new ClassReader(b);
+        val writer = new ClassWriter(0);
+        reader.accept(new ClassVisitor(Opcodes.ASM5, writer) {
+            @Override
+            public void visit(int ignored, int access, String name, String signature,
+                              String superName, String[] interfaces) {
+                super.visit(version, access, name, signature, superName, interfaces);
+            }
+        }, ClassReader.SKIP_FRAMES);
+        return writer.toByteArray();
+    }
+}
@@ -0,0 +1,48 @@
+package com.github.bingoohuang.blackcat.maven.instrument;
+
+/**
+ * The method shapes the weavers must keep valid: static and instance methods, wide arguments,
+ * void and reference returns, a loop starting at bytecode offset 0, and thrown exceptions.
+ */
+public class WeavingFixture {
+    private long total;
+
+    // the loop head is at offset 0, so the original code starts with a stack map frame
+    public static int countDown(int n) {
+        while (n > 0) n--;
+        return n;
+    }
+
+    public double scale(long value, double factor) {
+        return value * factor;
+    }
+
+    public void add(long value) {
+        total += value;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public String join(String prefix, Object value) {
+        return prefix + value;
+    }
+
+    public static Object[] wrap(double d, int i, long l) {
+        return new Object[]{d, i, l};
+    }
+
+    public static int fail(String message) {
+        throw new IllegalStateException(message);
+    }
+
+    public static void sleep(long millis) throws InterruptedException {
+        Thread.sleep(millis);
+    }
+
+    public static void sleepAndFail(long millis) throws InterruptedException {
+        Thread.sleep(millis);
+        throw new IllegalStateException("slow");
+    }
+}
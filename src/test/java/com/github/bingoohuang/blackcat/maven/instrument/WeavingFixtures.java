@@ -0,0 +1,130 @@
+package com.github.bingoohuang.blackcat.maven.instrument;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+import lombok.SneakyThrows;
+import lombok.val;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Reads the bytes of the fixture classes and defines their woven bytes, which the JVM verifies.
+ */
+public class WeavingFixtures {
+
+    @SneakyThrows
+    public static byte[] bytes(Class<?> fixture) {
+        InputStream in = fixture.getResourceAsStream("/" + fixture.getName().replace('.', '/') + ".class");
+        try {
+            return ByteStreams.toByteArray(in);
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Stand in for the probes of {@code BlackcatInstrument}: call a static {@code ()V} method on entry
+     * of every selected method with a body, except the constructors and static initializers.
+     */
+    public static byte[] probeEntries(byte[] original, final MethodSelector selector,
+                                      final String probeOwner, final String probeName) {
+        val reader = new ClassReader(original);
+        val writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+        reader.accept(new ClassVisitor(Opcodes.ASM5, writer) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc,
+                                             String signature, String[] exceptions) {
+                val mv = super.visitMethod(access, name, desc, signature, exceptions);
+                if (name.startsWith("<") || !selector.isProbed(name, desc)) return mv;
+
+                return new MethodVisitor(Opcodes.ASM5, mv) {
+                    @Override public void visitCode() {
+                        super.visitCode();
+                        super.visitMethodInsn(Opcodes.INVOKESTATIC, probeOwner, probeName, "()V", false);
+                    }
+                };
+            }
+        }, 0);
+        return writer.toByteArray();
+    }
+
+    /**
+     * Define a class from its woven bytes in a loader of its own, and link it so that it is verified.
+     */
+    @SneakyThrows
+    public static Class<?> define(String className, byte[] woven) {
+        val loader = new FixtureLoader(WeavingFixtures.class.getClassLoader());
+        Class<?> definedClass = loader.define(className, woven);
+        Class.forName(className, true, loader);
+        return definedClass;
+    }
+
+    /**
+     * Call the only method of the given name, rethrowing what it throws.
+     */
+    @SneakyThrows
+    public static Object call(Class<?> definedClass, Object target, String name, Object... args) {
+        for (Method method : definedClass.getDeclaredMethods()) {
+            if (!method.getName().equals(name)) continue;
+
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+        throw new NoSuchMethodException(name);
+    }
+
+    /**
+     * Delete a temporary directory of a test with its content.
+     */
+    public static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) delete(child);
+        }
+        file.delete();
+    }
+
+    public static MethodSelector selectAll() {
+        return select("*");
+    }
+
+    public static MethodSelector select(String... includes) {
+        return new MethodSelector(set(includes), Collections.<String>emptySet());
+    }
+
+    public static Set<String> set(String... values) {
+        Set<String> set = new HashSet<String>();
+        Collections.addAll(set, values);
+        return set;
+    }
+
+    private static class FixtureLoader extends ClassLoader {
+        FixtureLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String className, byte[] b) {
+            return defineClass(className, b, 0, b.length);
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            Class<?> loaded = findLoadedClass(name);
+            return loaded != null ? loaded : super.loadClass(name, resolve);
+        }
+    }
+}
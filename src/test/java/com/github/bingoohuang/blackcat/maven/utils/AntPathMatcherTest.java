@@ -0,0 +1,67 @@
+package com.github.bingoohuang.blackcat.maven.utils;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class AntPathMatcherTest extends TestCase {
+    private static final String ALPHABET = "ab/*?. ";
+
+    private final AntPathMatcher matcher = new AntPathMatcher();
+
+    public void testMatch() {
+        assertTrue(matcher.match("com/foo/**", "com/foo/bar/Baz"));
+        assertTrue(matcher.match("com/**/Baz", "com/Baz"));
+        assertTrue(matcher.match("com/*/B?z", "com/foo/Baz"));
+        assertTrue(matcher.match("com/**/*Service*", "com/foo/bar/UserServiceImpl"));
+        assertTrue(matcher.match("/com/foo/", "/com/foo/"));
+        assertTrue(matcher.match("com/ foo /bar", "com/foo/bar"));
+        assertTrue(matcher.match("com/{name:[a-z]+}/Bar", "com/foo/Bar"));
+
+        assertFalse(matcher.match("com/foo/*", "com/foo/bar/Baz"));
+        assertFalse(matcher.match("com/foo/", "com/foo"));
+        assertFalse(matcher.match("/com/**", "com/foo"));
+        assertFalse(matcher.match("com/**/Qux", "com/foo/bar/Baz"));
+        assertFalse(matcher.match("com/{name:[a-z]+}/Bar", "com/Foo/Bar"));
+    }
+
+    public void testMatchStart() {
+        assertTrue(matcher.matchStart("com/foo/**/Baz", "com/foo"));
+        assertTrue(matcher.matchStart("com/*/bar/Baz", "com/foo"));
+        assertFalse(matcher.matchStart("com/qux/**", "com/foo"));
+    }
+
+    public void testExtractUriTemplateVariables() {
+        Map<String, String> variables = matcher.extractUriTemplateVariables("com/{module}/**/{name}.class",
+                "com/foo/bar/Baz.class");
+        assertEquals("foo", variables.get("module"));
+        assertEquals("Baz", variables.get("name"));
+    }
+
+    /**
+     * The glob segments are matched without any regular expression unless the URI template variables
+     * are extracted, which must not change the outcome of a match.
+     */
+    public void testGlobSegmentsMatchLikeRegularExpressions() {
+        Random random = new Random(20161017L);
+        for (int i = 0; i < 300000; i++) {
+            String pattern = randomString(random);
+            String path = randomString(random);
+
+            boolean fullMatch = random.nextBoolean();
+            boolean expected = matcher.doMatch(pattern, path, fullMatch, new HashMap<String, String>());
+            assertEquals("'" + pattern + "' against '" + path + "'",
+                    expected, matcher.doMatch(pattern, path, fullMatch, null));
+        }
+    }
+
+    private static String randomString(Random random) {
+        char[] chars = new char[random.nextInt(12)];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,79 @@
+package com.github.bingoohuang.blackcat.maven.utils;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+public class PatternTrieTest extends TestCase {
+    private static final String ALPHABET = "ab/*?. ";
+
+    private final AntPathMatcher matcher = new AntPathMatcher();
+
+    public void testMatchesLikeAntPathMatcher() {
+        String[][] cases = {
+                {"com/foo/Bar.class", "com/foo/Bar.class"},
+                {"com/foo/Bar.class", "com/foo/Baz.class"},
+                {"com/foo/*.class", "com/foo/Bar.class"},
+                {"com/foo/*.class", "com/foo/bar/Baz.class"},
+                {"com/foo/B?r.class", "com/foo/Bar.class"},
+                {"com/foo/B?r.class", "com/foo/Br.class"},
+                {"**/*.class", "Bar.class"},
+                {"**/*.class", "com/foo/Bar.class"},
+                {"com/**/Bar.class", "com/Bar.class"},
+                {"com/**/Bar.class", "com/foo/bar/Bar.class"},
+                {"com/**/bar/**/*.class", "com/foo/bar/baz/Qux.class"},
+                {"com/foo/**", "com/foo"},
+                {"com/foo/**", "com/foo/"},
+                {"com/foo/**", "com/foo/bar/Baz.class"},
+                {"com/foo", "com/foo/"},
+                {"com/foo/", "com/foo/"},
+                {"com/foo/", "com/foo"},
+                {"com/*", "com/"},
+                {"com/*/", "com/"},
+                {"com/*", "com/foo/"},
+                {"com/*/", "com/foo/"},
+                {"**/foo/*", "foo/"},
+                {"/", "/"},
+                {"/*", "/"},
+                {"/com/**", "/com/foo/"},
+                {"/com/**", "com/foo"},
+                {"com/ foo /Bar", "com/foo/Bar"},
+                {"", ""},
+                {"", "/"},
+        };
+        for (String[] c : cases) {
+            assertMatch(c[0], c[1]);
+        }
+    }
+
+    public void testMatchesAllThePatterns() {
+        PatternTrie trie = new PatternTrie(Arrays.asList("com/**", "com/foo/*.class", "**/Bar.class", "org/**"));
+        assertEquals(new HashSet<String>(Arrays.asList("com/**", "com/foo/*.class", "**/Bar.class")),
+                new HashSet<String>(trie.match("com/foo/Bar.class")));
+        assertTrue(trie.match("net/Baz.class").isEmpty());
+    }
+
+    public void testRandomPatternsMatchLikeAntPathMatcher() {
+        Random random = new Random(20161017L);
+        for (int i = 0; i < 300000; i++) {
+            assertMatch(randomString(random), randomString(random));
+        }
+    }
+
+    private void assertMatch(String pattern, String path) {
+        List<String> matched = new PatternTrie(Collections.singletonList(pattern)).match(path);
+        assertEquals("'" + pattern + "' against '" + path + "'", matcher.match(pattern, path), !matched.isEmpty());
+    }
+
+    private static String randomString(Random random) {
+        char[] chars = new char[random.nextInt(12)];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+        }
+        return new String(chars);
+    }
+}